@@ -0,0 +1,504 @@
+package sergeysav.linalg;
+
+/**
+ * A class containing dense linear algebra kernels for row-major matrices stored in flat arrays
+ *
+ * The innermost loop of every kernel walks contiguous memory with unit stride and has no branches
+ * so that the JIT compiler can turn it into SIMD instructions.
+ *
+ * @author sergeys
+ *
+ */
+public class Kernels {
+
+	//The number of rows of B that are kept in cache while every row of A is multiplied with them
+	//64 rows of 512 doubles is 256KiB, which fits in the L2 cache of most processors
+	private static final int BLOCK_ROWS = 64;
+
+	//The number of columns of B and C that are updated at once by a tile of the plain product
+	private static final int BLOCK_COLUMNS = 256;
+
+	/**
+	 * Multiply a matrix with the transpose of another matrix and add the result to a third matrix
+	 *
+	 * C += A * B^T
+	 *
+	 * Rows of B are processed in blocks so that a block stays in cache while it is reused by every row of A,
+	 * and four rows of A are multiplied at once so that every element of B loaded is used four times.
+	 *
+	 * @param a the m by k matrix A
+	 * @param b the n by k matrix B
+	 * @param c the m by n matrix C
+	 * @param m the number of rows of A and C
+	 * @param n the number of rows of B and columns of C
+	 * @param k the number of columns of A and B
+	 */
+	public static void multiplyTransposed(double[] a, double[] b, double[] c, int m, int n, int k) {
+		for (int jBlock = 0; jBlock<n; jBlock += BLOCK_ROWS) {
+			int jEnd = Math.min(n, jBlock + BLOCK_ROWS);
+
+			int i = 0;
+			for (; i + 4<=m; i += 4) {
+				int a0 = i * k;
+				int a1 = a0 + k;
+				int a2 = a1 + k;
+				int a3 = a2 + k;
+				for (int j = jBlock; j<jEnd; j++) {
+					int bRow = j * k;
+					double s0 = 0;
+					double s1 = 0;
+					double s2 = 0;
+					double s3 = 0;
+					for (int p = 0; p<k; p++) {
+						double w = b[bRow + p];
+						s0 += a[a0 + p] * w;
+						s1 += a[a1 + p] * w;
+						s2 += a[a2 + p] * w;
+						s3 += a[a3 + p] * w;
+					}
+					c[i * n + j] += s0;
+					c[(i + 1) * n + j] += s1;
+					c[(i + 2) * n + j] += s2;
+					c[(i + 3) * n + j] += s3;
+				}
+			}
+
+			//The remaining rows of A
+			for (; i<m; i++) {
+				int aRow = i * k;
+				for (int j = jBlock; j<jEnd; j++) {
+					int bRow = j * k;
+					double s = 0;
+					for (int p = 0; p<k; p++) {
+						s += a[aRow + p] * b[bRow + p];
+					}
+					c[i * n + j] += s;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Multiply two matrices and add the result to a third matrix
+	 *
+	 * C += A * B
+	 *
+	 * The product is computed in tiles of B so that each tile stays in cache while it is reused by every row of A.
+	 * Inside a tile a row of C is updated with a scaled row of B, which is a unit stride loop.
+	 *
+	 * @param a the m by k matrix A
+	 * @param b the k by n matrix B
+	 * @param c the m by n matrix C
+	 * @param m the number of rows of A and C
+	 * @param n the number of columns of B and C
+	 * @param k the number of columns of A and rows of B
+	 */
+	public static void multiply(double[] a, double[] b, double[] c, int m, int n, int k) {
+		for (int pBlock = 0; pBlock<k; pBlock += BLOCK_ROWS) {
+			int pEnd = Math.min(k, pBlock + BLOCK_ROWS);
+			for (int jBlock = 0; jBlock<n; jBlock += BLOCK_COLUMNS) {
+				int jEnd = Math.min(n, jBlock + BLOCK_COLUMNS);
+				for (int i = 0; i<m; i++) {
+					int cRow = i * n;
+					int aRow = i * k;
+					for (int p = pBlock; p<pEnd; p++) {
+						double s = a[aRow + p];
+						int bRow = p * n;
+						for (int j = jBlock; j<jEnd; j++) {
+							c[cRow + j] += s * b[bRow + j];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the scaled outer product of two vectors to a matrix
+	 *
+	 * A += alpha * x * y^T
+	 *
+	 * @param alpha the scale of the product
+	 * @param x the vector with an element for each row of A
+	 * @param xOffset the index of the first element of x
+	 * @param y the vector with an element for each column of A
+	 * @param yOffset the index of the first element of y
+	 * @param a the m by n matrix A
+	 * @param m the number of rows of A
+	 * @param n the number of columns of A
+	 */
+	public static void outerProduct(double alpha, double[] x, int xOffset, double[] y, int yOffset, double[] a, int m, int n) {
+		for (int i = 0; i<m; i++) {
+			double s = alpha * x[xOffset + i];
+			if (s == 0) continue; //A whole row can be skipped, which is common after a rectifier
+			axpy(s, y, yOffset, a, i * n, n);
+		}
+	}
+
+	/**
+	 * Add the scaled outer product of a dense vector and a sparse vector to a matrix
+	 *
+	 * A += alpha * x * y^T
+	 *
+	 * Only the columns of A where y is non-zero are touched
+	 *
+	 * @param alpha the scale of the product
+	 * @param x the vector with an element for each row of A
+	 * @param xOffset the index of the first element of x
+	 * @param yIndices the column of each non-zero element of y
+	 * @param yValues the value of each non-zero element of y
+	 * @param ySize the number of non-zero elements of y
+	 * @param a the m by n matrix A
+	 * @param m the number of rows of A
+	 * @param n the number of columns of A
+	 */
+	public static void sparseOuterProduct(double alpha, double[] x, int xOffset, int[] yIndices, double[] yValues, int ySize, double[] a, int m, int n) {
+		for (int i = 0; i<m; i++) {
+			double s = alpha * x[xOffset + i];
+			if (s == 0) continue;
+			int row = i * n;
+			for (int p = 0; p<ySize; p++) {
+				a[row + yIndices[p]] += s * yValues[p];
+			}
+		}
+	}
+
+	/**
+	 * Add a scaled vector to another vector
+	 *
+	 * y += alpha * x
+	 *
+	 * @param alpha the scale of x
+	 * @param x the vector to add
+	 * @param xOffset the index of the first element of x
+	 * @param y the vector to add to
+	 * @param yOffset the index of the first element of y
+	 * @param n the number of elements
+	 */
+	public static void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int n) {
+		for (int i = 0; i<n; i++) {
+			y[yOffset + i] += alpha * x[xOffset + i];
+		}
+	}
+
+	/**
+	 * Add a scaled vector to another vector of the same length
+	 *
+	 * y += alpha * x
+	 *
+	 * @param alpha the scale of x
+	 * @param x the vector to add
+	 * @param y the vector to add to
+	 */
+	public static void axpy(double alpha, double[] x, double[] y) {
+		axpy(alpha, x, 0, y, 0, y.length);
+	}
+
+	/**
+	 * Perform a step of gradient descent with momentum
+	 *
+	 * v += alpha * g
+	 * w += beta * v
+	 * v *= friction
+	 *
+	 * The three updates are fused so that each array is only streamed through memory once.
+	 *
+	 * @param alpha the scale of the gradient when it is added to the velocity
+	 * @param gradient the gradient g
+	 * @param velocity the velocity v
+	 * @param beta the scale of the velocity when it is added to the weights
+	 * @param weights the weights w
+	 * @param friction the fraction of the velocity kept for the next step
+	 */
+	public static void momentumStep(double alpha, double[] gradient, double[] velocity, double beta, double[] weights, double friction) {
+		int n = weights.length;
+		for (int i = 0; i<n; i++) {
+			double v = velocity[i] + alpha * gradient[i];
+			weights[i] += beta * v;
+			velocity[i] = v * friction;
+		}
+	}
+
+	/**
+	 * Add the outer product of two vectors to a velocity and to weights at once, as a step of gradient descent with momentum
+	 * that learns from a single sample without first accumulating its gradient
+	 *
+	 * v += alpha * x * y^T
+	 * w += beta * x * y^T
+	 *
+	 * Rows where x is zero are not touched
+	 *
+	 * @param alpha the scale of the product when it is added to the velocity
+	 * @param x the vector with an element for each row
+	 * @param y the vector with an element for each column
+	 * @param yOffset the index of the first element of y
+	 * @param velocity the m by n velocity v
+	 * @param beta the scale of the product when it is added to the weights
+	 * @param weights the m by n weights w
+	 * @param m the number of rows
+	 * @param n the number of columns
+	 */
+	public static void momentumOuterProduct(double alpha, double[] x, double[] y, int yOffset, double[] velocity, double beta, double[] weights, int m, int n) {
+		for (int i = 0; i<m; i++) {
+			if (x[i] == 0) continue;
+			int row = i * n;
+			axpy(alpha * x[i], y, yOffset, velocity, row, n);
+			axpy(beta * x[i], y, yOffset, weights, row, n);
+		}
+	}
+
+	/**
+	 * Add the outer product of a dense vector and a sparse vector to a velocity and to weights at once
+	 *
+	 * v += alpha * x * y^T
+	 * w += beta * x * y^T
+	 *
+	 * Only the columns where y is non-zero and the rows where x is non-zero are touched
+	 *
+	 * @see Kernels#momentumOuterProduct(double, double[], double[], int, double[], double, double[], int, int)
+	 *
+	 * @param alpha the scale of the product when it is added to the velocity
+	 * @param x the vector with an element for each row
+	 * @param yIndices the column of each non-zero element of y
+	 * @param yValues the value of each non-zero element of y
+	 * @param ySize the number of non-zero elements of y
+	 * @param velocity the m by n velocity v
+	 * @param beta the scale of the product when it is added to the weights
+	 * @param weights the m by n weights w
+	 * @param m the number of rows
+	 * @param n the number of columns
+	 */
+	public static void sparseMomentumOuterProduct(double alpha, double[] x, int[] yIndices, double[] yValues, int ySize, double[] velocity, double beta, double[] weights, int m, int n) {
+		for (int i = 0; i<m; i++) {
+			if (x[i] == 0) continue;
+			int row = i * n;
+			for (int p = 0; p<ySize; p++) {
+				double g = x[i] * yValues[p];
+				velocity[row + yIndices[p]] += alpha * g;
+				weights[row + yIndices[p]] += beta * g;
+			}
+		}
+	}
+
+	/**
+	 * Add a vector to a velocity and to weights at once
+	 *
+	 * v += alpha * x
+	 * w += beta * x
+	 *
+	 * @param alpha the scale of x when it is added to the velocity
+	 * @param x the vector to add
+	 * @param velocity the velocity v
+	 * @param beta the scale of x when it is added to the weights
+	 * @param weights the weights w
+	 */
+	public static void momentumAxpy(double alpha, double[] x, double[] velocity, double beta, double[] weights) {
+		int n = weights.length;
+		for (int i = 0; i<n; i++) {
+			velocity[i] += alpha * x[i];
+			weights[i] += beta * x[i];
+		}
+	}
+
+	/**
+	 * Decay a velocity and add it to weights
+	 *
+	 * v *= friction
+	 * w += beta * v
+	 *
+	 * Together with {@link Kernels#momentumOuterProduct(double, double[], double[], int, double[], double, double[], int, int)}
+	 * this splits {@link Kernels#momentumStep(double, double[], double[], double, double[], double)} into the part that depends on each sample
+	 * and the part that only depends on the velocity
+	 *
+	 * @param velocity the velocity v
+	 * @param beta the scale of the velocity when it is added to the weights
+	 * @param weights the weights w
+	 * @param friction the fraction of the velocity kept
+	 */
+	public static void momentumDecay(double[] velocity, double beta, double[] weights, double friction) {
+		int n = weights.length;
+		for (int i = 0; i<n; i++) {
+			double v = velocity[i] * friction;
+			velocity[i] = v;
+			weights[i] += beta * v;
+		}
+	}
+
+	/**
+	 * Multiply a matrix with the transpose of a float matrix and add the result to a third matrix
+	 *
+	 * C += A * B^T
+	 *
+	 * The products are summed in double precision
+	 *
+	 * @see Kernels#multiplyTransposed(double[], double[], double[], int, int, int)
+	 *
+	 * @param a the m by k matrix A
+	 * @param b the n by k matrix B
+	 * @param c the m by n matrix C
+	 * @param m the number of rows of A and C
+	 * @param n the number of rows of B and columns of C
+	 * @param k the number of columns of A and B
+	 */
+	public static void multiplyTransposed(double[] a, float[] b, double[] c, int m, int n, int k) {
+		for (int jBlock = 0; jBlock<n; jBlock += BLOCK_ROWS) {
+			int jEnd = Math.min(n, jBlock + BLOCK_ROWS);
+
+			int i = 0;
+			for (; i + 4<=m; i += 4) {
+				int a0 = i * k;
+				int a1 = a0 + k;
+				int a2 = a1 + k;
+				int a3 = a2 + k;
+				for (int j = jBlock; j<jEnd; j++) {
+					int bRow = j * k;
+					double s0 = 0;
+					double s1 = 0;
+					double s2 = 0;
+					double s3 = 0;
+					for (int p = 0; p<k; p++) {
+						double w = b[bRow + p];
+						s0 += a[a0 + p] * w;
+						s1 += a[a1 + p] * w;
+						s2 += a[a2 + p] * w;
+						s3 += a[a3 + p] * w;
+					}
+					c[i * n + j] += s0;
+					c[(i + 1) * n + j] += s1;
+					c[(i + 2) * n + j] += s2;
+					c[(i + 3) * n + j] += s3;
+				}
+			}
+
+			//The remaining rows of A
+			for (; i<m; i++) {
+				int aRow = i * k;
+				for (int j = jBlock; j<jEnd; j++) {
+					int bRow = j * k;
+					double s = 0;
+					for (int p = 0; p<k; p++) {
+						s += a[aRow + p] * b[bRow + p];
+					}
+					c[i * n + j] += s;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add a scaled float vector to a vector
+	 *
+	 * y += alpha * x
+	 *
+	 * @param alpha the scale of x
+	 * @param x the vector to add
+	 * @param xOffset the index of the first element of x
+	 * @param y the vector to add to
+	 * @param yOffset the index of the first element of y
+	 * @param n the number of elements
+	 */
+	public static void axpy(double alpha, float[] x, int xOffset, double[] y, int yOffset, int n) {
+		for (int i = 0; i<n; i++) {
+			y[yOffset + i] += alpha * x[xOffset + i];
+		}
+	}
+
+	/**
+	 * Perform a step of gradient descent with momentum on float weights
+	 *
+	 * The gradient is accumulated in double precision and the step is computed in double precision,
+	 * so only the velocity and the weights are rounded when they are stored
+	 *
+	 * @see Kernels#momentumStep(double, double[], double[], double, double[], double)
+	 *
+	 * @param alpha the scale of the gradient when it is added to the velocity
+	 * @param gradient the gradient g
+	 * @param velocity the velocity v
+	 * @param beta the scale of the velocity when it is added to the weights
+	 * @param weights the weights w
+	 * @param friction the fraction of the velocity kept for the next step
+	 */
+	public static void momentumStep(double alpha, double[] gradient, float[] velocity, double beta, float[] weights, double friction) {
+		int n = weights.length;
+		for (int i = 0; i<n; i++) {
+			double v = velocity[i] + alpha * gradient[i];
+			weights[i] = (float) (weights[i] + beta * v);
+			velocity[i] = (float) (v * friction);
+		}
+	}
+
+	/**
+	 * Add the outer product of two vectors to a float velocity and to float weights at once
+	 *
+	 * @see Kernels#momentumOuterProduct(double, double[], double[], int, double[], double, double[], int, int)
+	 *
+	 * @param alpha the scale of the product when it is added to the velocity
+	 * @param x the vector with an element for each row
+	 * @param y the vector with an element for each column
+	 * @param yOffset the index of the first element of y
+	 * @param velocity the m by n velocity v
+	 * @param beta the scale of the product when it is added to the weights
+	 * @param weights the m by n weights w
+	 * @param m the number of rows
+	 * @param n the number of columns
+	 */
+	public static void momentumOuterProduct(double alpha, double[] x, double[] y, int yOffset, float[] velocity, double beta, float[] weights, int m, int n) {
+		for (int i = 0; i<m; i++) {
+			if (x[i] == 0) continue;
+			int row = i * n;
+			for (int p = 0; p<n; p++) {
+				double g = x[i] * y[yOffset + p];
+				velocity[row + p] = (float) (velocity[row + p] + alpha * g);
+				weights[row + p] = (float) (weights[row + p] + beta * g);
+			}
+		}
+	}
+
+	/**
+	 * Add the outer product of a dense vector and a sparse vector to a float velocity and to float weights at once
+	 *
+	 * @see Kernels#sparseMomentumOuterProduct(double, double[], int[], double[], int, double[], double, double[], int, int)
+	 *
+	 * @param alpha the scale of the product when it is added to the velocity
+	 * @param x the vector with an element for each row
+	 * @param yIndices the column of each non-zero element of y
+	 * @param yValues the value of each non-zero element of y
+	 * @param ySize the number of non-zero elements of y
+	 * @param velocity the m by n velocity v
+	 * @param beta the scale of the product when it is added to the weights
+	 * @param weights the m by n weights w
+	 * @param m the number of rows
+	 * @param n the number of columns
+	 */
+	public static void sparseMomentumOuterProduct(double alpha, double[] x, int[] yIndices, double[] yValues, int ySize, float[] velocity, double beta, float[] weights, int m, int n) {
+		for (int i = 0; i<m; i++) {
+			if (x[i] == 0) continue;
+			int row = i * n;
+			for (int p = 0; p<ySize; p++) {
+				int k = row + yIndices[p];
+				double g = x[i] * yValues[p];
+				velocity[k] = (float) (velocity[k] + alpha * g);
+				weights[k] = (float) (weights[k] + beta * g);
+			}
+		}
+	}
+
+	/**
+	 * Decay a float velocity and add it to float weights
+	 *
+	 * @see Kernels#momentumDecay(double[], double, double[], double)
+	 *
+	 * @param velocity the velocity v
+	 * @param beta the scale of the velocity when it is added to the weights
+	 * @param weights the weights w
+	 * @param friction the fraction of the velocity kept
+	 */
+	public static void momentumDecay(float[] velocity, double beta, float[] weights, double friction) {
+		int n = weights.length;
+		for (int i = 0; i<n; i++) {
+			double v = velocity[i] * friction;
+			velocity[i] = (float) v;
+			weights[i] = (float) (weights[i] + beta * v);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package sergeysav.neuralnetwork;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * The activation functions that a layer of neurons can use
+ *
+ * Works on primitive doubles so that no boxing happens when a layer is evaluated
+ * Being an enum it is serialized by name along with the layer that uses it
+ *
+ * @author sergeys
+ *
+ */
+public enum Activation implements DoubleUnaryOperator {
+	/**
+	 * @see Neuron#fancyTanh(double)
+	 */
+	FANCY_TANH,
+	/**
+	 * @see Neuron#sigmoid(double)
+	 */
+	SIGMOID,
+	/**
+	 * y = x
+	 */
+	IDENTITY,
+	/**
+	 * y = max(0, x)
+	 */
+	RELU,
+	/**
+	 * y = x if x > 0 otherwise 0.01x
+	 */
+	LEAKY_RELU;
+
+	//The slope of the leaky relu function for negative inputs
+	private static final double LEAK = 0.01;
+
+	/**
+	 * Calculate the value of this activation function
+	 *
+	 * @param x the input x value to the activation function
+	 * @return f(x)
+	 */
+	@Override
+	public double applyAsDouble(double x) {
+		switch (this) {
+		case FANCY_TANH:
+			return Neuron.fancyTanh(x);
+		case SIGMOID:
+			return Neuron.sigmoid(x);
+		case RELU:
+			return x > 0 ? x : 0;
+		case LEAKY_RELU:
+			return x > 0 ? x : LEAK * x;
+		default:
+			return x;
+		}
+	}
+
+	/**
+	 * Calculate the derivative of this activation function
+	 *
+	 * @param y the output of the activation function f(x)
+	 * @return f'(x)
+	 */
+	public double derivative(double y) {
+		switch (this) {
+		case FANCY_TANH:
+			return Neuron.fancyTanhDerivative(y);
+		case SIGMOID:
+			return Neuron.sigmoidDerivative(y);
+		case RELU:
+			return y > 0 ? 1 : 0;
+		case LEAKY_RELU:
+			return y > 0 ? 1 : LEAK;
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Replace every value in a range of an array with its activated value
+	 *
+	 * @param values the array of values
+	 * @param from the first index to activate
+	 * @param to the index after the last index to activate
+	 */
+	public void applyAll(double[] values, int from, int to) {
+		//Switch once per vector so that each loop only contains a single inlinable function
+		switch (this) {
+		case FANCY_TANH:
+			for (int i = from; i<to; i++) {
+				values[i] = Neuron.fancyTanh(values[i]);
+			}
+			break;
+		case SIGMOID:
+			for (int i = from; i<to; i++) {
+				values[i] = Neuron.sigmoid(values[i]);
+			}
+			break;
+		case RELU:
+			for (int i = from; i<to; i++) {
+				values[i] = values[i] > 0 ? values[i] : 0;
+			}
+			break;
+		case LEAKY_RELU:
+			for (int i = from; i<to; i++) {
+				values[i] = values[i] > 0 ? values[i] : LEAK * values[i];
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Multiply every value in a range of an array by the derivative of this activation function
+	 *
+	 * @param outputs the activated outputs f(x)
+	 * @param values the array of values to multiply by f'(x)
+	 * @param from the first index to multiply
+	 * @param to the index after the last index to multiply
+	 */
+	public void multiplyDerivative(double[] outputs, double[] values, int from, int to) {
+		switch (this) {
+		case FANCY_TANH:
+			for (int i = from; i<to; i++) {
+				values[i] *= Neuron.fancyTanhDerivative(outputs[i]);
+			}
+			break;
+		case SIGMOID:
+			for (int i = from; i<to; i++) {
+				values[i] *= Neuron.sigmoidDerivative(outputs[i]);
+			}
+			break;
+		case RELU:
+			for (int i = from; i<to; i++) {
+				values[i] = outputs[i] > 0 ? values[i] : 0;
+			}
+			break;
+		case LEAKY_RELU:
+			for (int i = from; i<to; i++) {
+				values[i] = outputs[i] > 0 ? values[i] : LEAK * values[i];
+			}
+			break;
+		default:
+			break;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package sergeysav.neuralnetwork;
+
+/**
+ * Preallocated buffers for evaluating a neural network on many inputs at once
+ *
+ * The inputs are packed into a single matrix so that each layer is evaluated as a matrix-matrix product
+ * which reuses every weight for the whole batch. An evaluator must only be used by one thread at a time.
+ *
+ * @author sergeys
+ *
+ */
+public class BatchEvaluator {
+
+	//The network being evaluated
+	private NeuralNetwork network;
+
+	//The maximum number of inputs in a batch
+	private int maxBatchSize;
+
+	//The packed inputs of the batch
+	private double[] inputs;
+
+	//The packed outputs of each layer
+	private double[][] outputs;
+
+	/**
+	 * Create a new batch evaluator for a given network
+	 *
+	 * @param network the network to evaluate
+	 * @param maxBatchSize the maximum number of inputs in a batch
+	 */
+	public BatchEvaluator(NeuralNetwork network, int maxBatchSize) {
+		this.network = network;
+		this.maxBatchSize = maxBatchSize;
+		Layer[] layers = network.getLayers();
+		inputs = new double[maxBatchSize * network.getInputNeurons()];
+		outputs = new double[layers.length][];
+		for (int i = 0; i<layers.length; i++) {
+			outputs[i] = new double[maxBatchSize * layers[i].getOutputs()];
+		}
+	}
+
+	/**
+	 * Copy an input into the batch
+	 *
+	 * @param row the index of the input in the batch
+	 * @param data the array containing the input
+	 * @param offset the index of the first input value
+	 */
+	public void setInput(int row, double[] data, int offset) {
+		int n = network.getInputNeurons();
+		System.arraycopy(data, offset, inputs, row * n, n);
+	}
+
+	/**
+	 * Get the packed input matrix
+	 * Input i of the batch starts at index i * the number of input neurons
+	 *
+	 * @return the input matrix
+	 */
+	public double[] getInputs() {
+		return inputs;
+	}
+
+	/**
+	 * Evaluate the network for the first inputs of the batch
+	 *
+	 * @param batchSize the number of inputs to evaluate
+	 * @return the packed output matrix, which is overwritten by the next call
+	 */
+	public double[] evaluate(int batchSize) {
+		if (batchSize > maxBatchSize) throw new IllegalArgumentException("There are " + batchSize + " inputs when at most " + maxBatchSize + " were expected.");
+		Layer[] layers = network.getLayers();
+		double[] lastLayer = inputs;
+		for (int i = 0; i<layers.length; i++) {
+			layers[i].forwardBatch(lastLayer, outputs[i], batchSize);
+			lastLayer = outputs[i];
+		}
+		return lastLayer;
+	}
+
+	/**
+	 * Calculate the error of an output of the last evaluated batch
+	 *
+	 * @param row the index of the input in the batch
+	 * @param data the array containing the target outputs
+	 * @param targetOffset the index of the first target output value
+	 * @return the mean squared error divided by the number of outputs
+	 * @see TrainingWorkspace#calculateError(double[], int, int)
+	 */
+	public double calculateError(int row, double[] data, int targetOffset) {
+		double[] result = outputs[outputs.length-1];
+		int n = network.getLayers()[outputs.length-1].getOutputs();
+		double err = 0;
+		for (int j = 0; j<n; j++) {
+			double e = result[row * n + j] - data[targetOffset + j];
+			err += e*e;
+		}
+		return err/n/n;
+	}
+
+	/**
+	 * Get the maximum number of inputs in a batch
+	 *
+	 * @return the maximum batch size
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+}
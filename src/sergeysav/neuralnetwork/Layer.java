@@ -0,0 +1,369 @@
+package sergeysav.neuralnetwork;
+
+import java.io.Serializable;
+import java.util.function.Function;
+
+import sergeysav.linalg.Kernels;
+
+/**
+ * A dense layer of neurons
+ *
+ * The weights of every neuron in the layer are stored in a single contiguous row-major matrix
+ * so that evaluating the layer is a tight matrix-vector loop instead of a walk over many small objects
+ *
+ * @author sergeys
+ *
+ */
+public class Layer implements Serializable {
+
+	/**
+	 * The Serial Version UID
+	 * Used for Serialization
+	 */
+	private static final long serialVersionUID = 6215049829313578317L;
+
+	//The activation function to use for this layer
+	private Activation activation;
+
+	//The precision that the weights are stored in
+	private Precision precision;
+
+	//The weight matrix: the weight from input k to neuron j is at weights[j * inputs + k]
+	//Only one of the double and float matrices is used, depending on the precision
+	private double[] weights;
+	private float[] floatWeights;
+
+	//The bias value for each neuron
+	private double[] biases;
+
+	//The number of inputs to this layer
+	private int inputs;
+
+	//The number of neurons in this layer
+	private int outputs;
+
+	/**
+	 * Create a new layer of neurons with random weights from -1 to 1 and biases of 0
+	 * 
+	 * This layer will use the fancy tanh activation function.
+	 *
+	 * @param inputs the number of neurons in the previous layer
+	 * @param outputs the number of neurons in this layer
+	 */
+	public Layer(int inputs, int outputs) {
+		this(inputs, outputs, Activation.FANCY_TANH);
+	}
+
+	/**
+	 * Create a new layer of neurons with random weights from -1 to 1 and biases of 0
+	 *
+	 * @param inputs the number of neurons in the previous layer
+	 * @param outputs the number of neurons in this layer
+	 * @param activation the activation function to use
+	 */
+	public Layer(int inputs, int outputs, Activation activation) {
+		this(inputs, outputs, activation, Precision.DOUBLE);
+	}
+
+	/**
+	 * Create a new layer of neurons with random weights from -1 to 1 and biases of 0
+	 *
+	 * @param inputs the number of neurons in the previous layer
+	 * @param outputs the number of neurons in this layer
+	 * @param activation the activation function to use
+	 * @param precision the precision to store the weights in
+	 */
+	public Layer(int inputs, int outputs, Activation activation, Precision precision) {
+		this.inputs = inputs;
+		this.outputs = outputs;
+		//Set the weights as random values from -1 to 1
+		weights = NeuralNetwork.rand.doubles(inputs * outputs, -1, 1).toArray();
+		//Set the biases to 0
+		biases = new double[outputs];
+		//Set the activation function as the given function
+		this.activation = activation;
+		//Store the weights in the given precision
+		this.precision = Precision.DOUBLE;
+		setPrecision(precision);
+	}
+
+	/**
+	 * Calculate the outputs of this layer for a given set of inputs
+	 *
+	 * @throws IllegalArgumentException when the length of the input array is not equal to the expected length
+	 *
+	 * @param prevLayer the outputs of the previous layer of neurons
+	 * @param result the array to store the activated value of each neuron in
+	 */
+	public void forward(double[] prevLayer, double[] result) {
+		//Throw exception if the number of parameters is not the same as the number of inputs
+		if (prevLayer.length != inputs) throw new IllegalArgumentException("There are " + prevLayer.length + " input neuron values when " + inputs + " were expected.");
+
+		forward(prevLayer, 0, result);
+	}
+
+	/**
+	 * Calculate the outputs of this layer for a set of inputs stored inside of a larger array
+	 *
+	 * @param data the array containing the outputs of the previous layer of neurons
+	 * @param offset the index in the array of the first input
+	 * @param result the array to store the activated value of each neuron in
+	 */
+	public void forward(double[] data, int offset, double[] result) {
+		if (precision == Precision.FLOAT) {
+			for (int j = 0; j<outputs; j++) {
+				//Calculate the total value as bias + ∑(weight * value), summing in double precision
+				double total = biases[j];
+				int row = j * inputs - offset;
+				for (int k = offset; k<offset + inputs; k++) {
+					total += floatWeights[row + k] * data[k];
+				}
+				result[j] = total;
+			}
+		} else {
+			for (int j = 0; j<outputs; j++) {
+				//Calculate the total value as bias + ∑(weight * value)
+				double total = biases[j];
+				int row = j * inputs - offset;
+				for (int k = offset; k<offset + inputs; k++) {
+					total += weights[row + k] * data[k];
+				}
+				result[j] = total;
+			}
+		}
+
+		//Activate the whole layer at once
+		activation.applyAll(result, 0, outputs);
+	}
+
+	/**
+	 * Calculate the outputs of this layer for a sparse set of inputs
+	 *
+	 * Only the weights of the non-zero inputs are read
+	 *
+	 * @throws IllegalArgumentException when the length of the input vector is not equal to the expected length
+	 *
+	 * @param prevLayer the outputs of the previous layer of neurons
+	 * @param result the array to store the activated value of each neuron in
+	 */
+	public void forward(SparseVector prevLayer, double[] result) {
+		//Throw exception if the number of parameters is not the same as the number of inputs
+		if (prevLayer.length() != inputs) throw new IllegalArgumentException("There are " + prevLayer.length() + " input neuron values when " + inputs + " were expected.");
+
+		int[] indices = prevLayer.getIndices();
+		double[] values = prevLayer.getValues();
+		int size = prevLayer.size();
+		for (int j = 0; j<outputs; j++) {
+			//Calculate the total value as bias + ∑(weight * value) over the non-zero values
+			double total = biases[j];
+			int row = j * inputs;
+			if (precision == Precision.FLOAT) {
+				for (int n = 0; n<size; n++) {
+					total += floatWeights[row + indices[n]] * values[n];
+				}
+			} else {
+				for (int n = 0; n<size; n++) {
+					total += weights[row + indices[n]] * values[n];
+				}
+			}
+			result[j] = total;
+		}
+
+		//Activate the whole layer at once
+		activation.applyAll(result, 0, outputs);
+	}
+
+	/**
+	 * Calculate the outputs of this layer for a batch of inputs
+	 *
+	 * @param prevLayer the outputs of the previous layer for each sample packed one sample after another
+	 * @param result the array to store the activated value of each neuron for each sample in, packed the same way
+	 * @param batchSize the number of samples in the batch
+	 */
+	public void forwardBatch(double[] prevLayer, double[] result, int batchSize) {
+		//Start every sample at the bias values
+		for (int b = 0; b<batchSize; b++) {
+			System.arraycopy(biases, 0, result, b * outputs, outputs);
+		}
+
+		//Add ∑(weight * value) for every neuron of every sample at once
+		if (precision == Precision.FLOAT) {
+			Kernels.multiplyTransposed(prevLayer, floatWeights, result, batchSize, outputs, inputs);
+		} else {
+			Kernels.multiplyTransposed(prevLayer, weights, result, batchSize, outputs, inputs);
+		}
+
+		//Activate the whole batch at once
+		activation.applyAll(result, 0, batchSize * outputs);
+	}
+
+	/**
+	 * Calculate the output of a single neuron in this layer for a given set of inputs
+	 *
+	 * @param neuron the index of the neuron in this layer
+	 * @param prevLayer the outputs of the previous layer of neurons
+	 * @return the activated value of the neuron
+	 */
+	public double getOutput(int neuron, double[] prevLayer) {
+		//Throw exception if the number of parameters is not the same as the number of inputs
+		if (prevLayer.length != inputs) throw new IllegalArgumentException("There are " + prevLayer.length + " input neuron values when " + inputs + " were expected.");
+
+		double total = biases[neuron];
+		for (int k = 0; k<inputs; k++) {
+			total += getWeight(neuron, k) * prevLayer[k];
+		}
+		return activation.applyAsDouble(total);
+	}
+
+	/**
+	 * Get the number of inputs to this layer
+	 *
+	 * @return the number of neurons in the previous layer
+	 */
+	public int getInputs() {
+		return inputs;
+	}
+
+	/**
+	 * Get the number of neurons in this layer
+	 *
+	 * @return the number of neurons
+	 */
+	public int getOutputs() {
+		return outputs;
+	}
+
+	/**
+	 * Get the row-major weight matrix of this layer
+	 * Modifying the returned array modifies the layer
+	 *
+	 * @throws IllegalStateException when the weights are stored as floats
+	 *
+	 * @return the weight matrix
+	 */
+	public double[] getWeights() {
+		if (precision != Precision.DOUBLE) throw new IllegalStateException("The weights of this layer are stored with " + precision + " precision.");
+		return weights;
+	}
+
+	/**
+	 * Get the row-major weight matrix of this layer when it is stored as floats
+	 * Modifying the returned array modifies the layer
+	 *
+	 * @throws IllegalStateException when the weights are stored as doubles
+	 *
+	 * @return the weight matrix
+	 */
+	public float[] getFloatWeights() {
+		if (precision != Precision.FLOAT) throw new IllegalStateException("The weights of this layer are stored with " + precision + " precision.");
+		return floatWeights;
+	}
+
+	/**
+	 * Get the number of weights in this layer
+	 *
+	 * @return the number of inputs times the number of neurons
+	 */
+	public int getWeightCount() {
+		return inputs * outputs;
+	}
+
+	/**
+	 * Get the precision that the weights of this layer are stored in
+	 *
+	 * @return the precision
+	 */
+	public Precision getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Convert the weights of this layer to a different precision
+	 * Converting to float rounds every weight to the nearest float
+	 *
+	 * @param precision the new precision
+	 */
+	public final void setPrecision(Precision precision) {
+		if (precision == this.precision) return;
+		if (precision == Precision.FLOAT) {
+			floatWeights = new float[weights.length];
+			for (int k = 0; k<weights.length; k++) {
+				floatWeights[k] = (float) weights[k];
+			}
+			weights = null;
+		} else {
+			weights = new double[floatWeights.length];
+			for (int k = 0; k<floatWeights.length; k++) {
+				weights[k] = floatWeights[k];
+			}
+			floatWeights = null;
+		}
+		this.precision = precision;
+	}
+
+	/**
+	 * Get the biases of this layer
+	 * Modifying the returned array modifies the layer
+	 *
+	 * @return the bias of each neuron
+	 */
+	public double[] getBiases() {
+		return biases;
+	}
+
+	/**
+	 * Get a single weight of this layer
+	 *
+	 * @param neuron the index of the neuron in this layer
+	 * @param input the index of the neuron in the previous layer
+	 * @return the weight between the two neurons
+	 */
+	public double getWeight(int neuron, int input) {
+		if (precision == Precision.FLOAT) return floatWeights[neuron * inputs + input];
+		return weights[neuron * inputs + input];
+	}
+
+	/**
+	 * Set a single weight of this layer
+	 *
+	 * @param neuron the index of the neuron in this layer
+	 * @param input the index of the neuron in the previous layer
+	 * @param weight the weight between the two neurons
+	 */
+	public void setWeight(int neuron, int input, double weight) {
+		if (precision == Precision.FLOAT) {
+			floatWeights[neuron * inputs + input] = (float) weight;
+		} else {
+			weights[neuron * inputs + input] = weight;
+		}
+	}
+
+	/**
+	 * Get the activation function of this layer
+	 *
+	 * @return the activation function
+	 */
+	public Activation getActivation() {
+		return activation;
+	}
+
+	/**
+	 * Set the activation function of this layer
+	 *
+	 * @param activation the activation function
+	 */
+	public void setActivation(Activation activation) {
+		this.activation = activation;
+	}
+
+	/**
+	 * Get the derivative of the activation function as a boxed function
+	 * 
+	 * @see Layer#getActivation()
+	 * 
+	 * @return the derivative function
+	 */
+	public Function<Double, Double> getDerivativeFunction() {
+		return activation::derivative;
+	}
+}
@@ -33,6 +33,7 @@ public class Main {
 
 			//Train the network
 			TrainingResult result = trainer.train(1e-2, 100000);
+			trainer.close();
 			
 			if (result.success) successes++;
 			trials++;
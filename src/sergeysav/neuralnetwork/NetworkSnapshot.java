@@ -0,0 +1,220 @@
+package sergeysav.neuralnetwork;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sergeysav.linalg.Kernels;
+
+/**
+ * A read only copy of the weights of a {@link NeuralNetwork} for evaluating it while the network keeps training
+ *
+ * Each layer is kept as one row-major float matrix, its biases and the activation function it had when the copy was made.
+ * Weights stored as doubles are rounded to floats, which halves the memory that has to be read for every evaluation.
+ * Nothing can modify a snapshot through its public methods, and its methods keep their intermediate values in arrays of their own
+ * (or of the caller), so any number of threads can evaluate it at once without locks.
+ *
+ * Snapshots are created with {@link NeuralNetwork#snapshot()}, or published by a {@link SnapshotPublisher}
+ * which reuses the arrays of old snapshots once nobody is reading them.
+ *
+ * @author sergeys
+ *
+ */
+public class NetworkSnapshot {
+
+	//The number of input neurons
+	private final int inputNeurons;
+
+	//The weights, biases and activation function of each layer excluding the input layer
+	private final float[][] weights;
+	private final double[][] biases;
+	private final Activation[] activations;
+
+	//The number of threads reading the snapshot, used by the publisher to know when it can be reused
+	final AtomicInteger readers = new AtomicInteger();
+
+	/**
+	 * Create a snapshot of the current weights of a network
+	 *
+	 * @param network the network to copy
+	 */
+	NetworkSnapshot(NeuralNetwork network) {
+		Layer[] layers = network.getLayers();
+		inputNeurons = network.getInputNeurons();
+		weights = new float[layers.length][];
+		biases = new double[layers.length][];
+		activations = new Activation[layers.length];
+		for (int i = 0; i<layers.length; i++) {
+			weights[i] = new float[layers[i].getWeightCount()];
+			biases[i] = new double[layers[i].getOutputs()];
+		}
+		copyFrom(network);
+	}
+
+	/**
+	 * Overwrite this snapshot with the current weights of a network with the same shape
+	 * Only called by a publisher while no thread is reading the snapshot
+	 *
+	 * @param network the network to copy
+	 */
+	void copyFrom(NeuralNetwork network) {
+		Layer[] layers = network.getLayers();
+		for (int i = 0; i<layers.length; i++) {
+			Layer layer = layers[i];
+			if (layer.getPrecision() == Precision.FLOAT) {
+				System.arraycopy(layer.getFloatWeights(), 0, weights[i], 0, weights[i].length);
+			} else {
+				double[] source = layer.getWeights();
+				for (int k = 0; k<source.length; k++) {
+					weights[i][k] = (float) source[k];
+				}
+			}
+			System.arraycopy(layer.getBiases(), 0, biases[i], 0, biases[i].length);
+			activations[i] = layer.getActivation();
+		}
+	}
+
+	/**
+	 * Check if a network has the same number of layers and neurons in each layer as this snapshot
+	 *
+	 * @param network the network
+	 * @return true if the snapshot can be overwritten with the weights of the network
+	 */
+	boolean hasShapeOf(NeuralNetwork network) {
+		Layer[] layers = network.getLayers();
+		if (network.getInputNeurons() != inputNeurons || layers.length != weights.length) return false;
+		for (int i = 0; i<layers.length; i++) {
+			if (layers[i].getWeightCount() != weights[i].length || layers[i].getOutputs() != biases[i].length) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the output neuron values for a given set of input neuron values
+	 *
+	 * @throws IllegalArgumentException when the number of inputs is not the number of input neurons
+	 *
+	 * @param inputs the values of the input neurons
+	 * @return the values of the output neurons
+	 */
+	public double[] testAll(double... inputs) {
+		if (inputs.length != inputNeurons) throw new IllegalArgumentException("There are " + inputs.length + " input neuron values when " + inputNeurons + " were expected.");
+
+		double[] lastLayer = inputs;
+		for (int i = 0; i<weights.length; i++) {
+			double[] newLayer = new double[biases[i].length];
+			forward(i, lastLayer, newLayer);
+			lastLayer = newLayer;
+		}
+		return lastLayer;
+	}
+
+	/**
+	 * Get the output neuron values for a sparse set of input neuron values without allocating anything
+	 *
+	 * @throws IllegalArgumentException when the length of the input vector is not the number of input neurons
+	 *
+	 * @param inputs the values of the input neurons
+	 * @param layerOutputs an array for the outputs of each layer, as created by {@link NetworkSnapshot#createLayerOutputs()}
+	 * @return the values of the output neurons, which is the last array of the layer outputs
+	 */
+	public double[] testAll(SparseVector inputs, double[][] layerOutputs) {
+		if (inputs.length() != inputNeurons) throw new IllegalArgumentException("There are " + inputs.length() + " input neuron values when " + inputNeurons + " were expected.");
+
+		//Only the weights of the non-zero inputs are read in the first layer
+		int[] indices = inputs.getIndices();
+		double[] values = inputs.getValues();
+		int size = inputs.size();
+		float[] first = weights[0];
+		double[] result = layerOutputs[0];
+		for (int j = 0; j<result.length; j++) {
+			double total = biases[0][j];
+			int row = j * inputNeurons;
+			for (int n = 0; n<size; n++) {
+				total += first[row + indices[n]] * values[n];
+			}
+			result[j] = total;
+		}
+		activations[0].applyAll(result, 0, result.length);
+
+		for (int i = 1; i<weights.length; i++) {
+			forward(i, layerOutputs[i-1], layerOutputs[i]);
+		}
+		return layerOutputs[weights.length-1];
+	}
+
+	/**
+	 * Get the output neuron values for a batch of inputs
+	 * Each layer is evaluated for the whole batch at once, which reuses every weight for every input
+	 *
+	 * @throws IllegalArgumentException when the length of the input array is less than the batch size times the number of input neurons
+	 *
+	 * @param inputs the values of the input neurons of every input packed one input after another
+	 * @param batchSize the number of inputs in the batch
+	 * @return the values of the output neurons of every input packed the same way
+	 */
+	public double[] testBatch(double[] inputs, int batchSize) {
+		if (inputs.length < batchSize * inputNeurons) throw new IllegalArgumentException("There are " + inputs.length + " input neuron values when " + (batchSize * inputNeurons) + " were expected.");
+
+		double[] lastLayer = inputs;
+		int lastSize = inputNeurons;
+		for (int i = 0; i<weights.length; i++) {
+			int outputs = biases[i].length;
+			double[] newLayer = new double[batchSize * outputs];
+			for (int b = 0; b<batchSize; b++) {
+				System.arraycopy(biases[i], 0, newLayer, b * outputs, outputs);
+			}
+			Kernels.multiplyTransposed(lastLayer, weights[i], newLayer, batchSize, outputs, lastSize);
+			activations[i].applyAll(newLayer, 0, batchSize * outputs);
+
+			lastLayer = newLayer;
+			lastSize = outputs;
+		}
+		return lastLayer;
+	}
+
+	/**
+	 * Create the arrays that {@link NetworkSnapshot#testAll(SparseVector, double[][])} stores the outputs of each layer in
+	 *
+	 * @return an array for the outputs of each layer
+	 */
+	public double[][] createLayerOutputs() {
+		double[][] layerOutputs = new double[biases.length][];
+		for (int i = 0; i<biases.length; i++) {
+			layerOutputs[i] = new double[biases[i].length];
+		}
+		return layerOutputs;
+	}
+
+	/**
+	 * Get the number of input neurons
+	 *
+	 * @return the number of input neurons
+	 */
+	public int getInputNeurons() {
+		return inputNeurons;
+	}
+
+	/**
+	 * Get the number of output neurons
+	 *
+	 * @return the number of neurons in the last layer
+	 */
+	public int getOutputNeurons() {
+		return biases[biases.length-1].length;
+	}
+
+	//Evaluate a dense layer
+	private void forward(int layer, double[] prevLayer, double[] result) {
+		float[] w = weights[layer];
+		double[] bias = biases[layer];
+		int inputs = prevLayer.length;
+		for (int j = 0; j<result.length; j++) {
+			double total = bias[j];
+			int row = j * inputs;
+			for (int k = 0; k<inputs; k++) {
+				total += w[row + k] * prevLayer[k];
+			}
+			result[j] = total;
+		}
+		activations[layer].applyAll(result, 0, result.length);
+	}
+}
@@ -10,6 +10,10 @@ import java.util.Random;
  * 
  * Can be saved and loaded from a file thanks to serialization
  * 
+ * The test methods only read the weights and keep their intermediate values in arrays of their own (or of the caller),
+ * and they never use the shared random generator, so any number of threads can evaluate a network at once while it is not being trained
+ * To evaluate a network while it is being trained, evaluate a {@link NetworkSnapshot} of it instead
+ * 
  * @author sergeys
  *
  */
@@ -19,23 +23,49 @@ public class NeuralNetwork implements Serializable {
 	 * The Serial Version UID
 	 * Used for Serialization
 	 */
-	private static final long serialVersionUID = 1940228265084135859L;
+	private static final long serialVersionUID = 4791874731568740038L;
 
 	//A random object used for generating numbers
 	public static transient final Random rand = new Random();
 
 	//The neuron layers excluding the input layer
-	private Neuron[][] layers;
+	private Layer[] layers;
+
+	//Neuron views of the layers, created when first requested
+	private transient Neuron[][] neuralData;
 
 	//The number of input neurons
 	private int inputNeurons;
 
 	/**
-	 * Create a new neural network
+	 * Create a new neural network where every layer uses the fancy tanh activation function
 	 * 
 	 * @param neuronsPerLayer the count of neurons per layer. The first number will be the count of input neurons. The last number will be the count of output neurons.
 	 */
 	public NeuralNetwork(boolean stepFunctionLast, int... neuronsPerLayer) {
+		this(Activation.FANCY_TANH, Activation.FANCY_TANH, neuronsPerLayer);
+	}
+
+	/**
+	 * Create a new neural network
+	 * 
+	 * @param hiddenActivation the activation function of the hidden layers
+	 * @param outputActivation the activation function of the output layer
+	 * @param neuronsPerLayer the count of neurons per layer. The first number will be the count of input neurons. The last number will be the count of output neurons.
+	 */
+	public NeuralNetwork(Activation hiddenActivation, Activation outputActivation, int... neuronsPerLayer) {
+		this(hiddenActivation, outputActivation, Precision.DOUBLE, neuronsPerLayer);
+	}
+
+	/**
+	 * Create a new neural network
+	 * 
+	 * @param hiddenActivation the activation function of the hidden layers
+	 * @param outputActivation the activation function of the output layer
+	 * @param precision the precision to store the weights in
+	 * @param neuronsPerLayer the count of neurons per layer. The first number will be the count of input neurons. The last number will be the count of output neurons.
+	 */
+	public NeuralNetwork(Activation hiddenActivation, Activation outputActivation, Precision precision, int... neuronsPerLayer) {
 		long seed = rand.nextLong();
 		//seed = -1698630836038324742L;
 		//System.out.println(seed);
@@ -44,21 +74,16 @@ public class NeuralNetwork implements Serializable {
 		//Set the number of input neurons
 		inputNeurons = neuronsPerLayer[0];
 
-		//Create the array of neurons
-		layers = new Neuron[neuronsPerLayer.length-1][0];
+		//Create the array of layers
+		layers = new Layer[neuronsPerLayer.length-1];
 
 		//For each layer of neurons except the input layer
 		for (int i = 1; i<neuronsPerLayer.length; i++) {
-			//Set the number of neurons based on the value that was inputed
-			layers[i-1] = new Neuron[neuronsPerLayer[i]];
-			//For each neuron in this layer
-			for (int j = 0; j<layers[i-1].length; j++) {
-				//Put the neuron in the array and set it's number of parent neurons
-				if (stepFunctionLast && i == neuronsPerLayer.length-1) {
-					layers[i-1][j] = new Neuron(neuronsPerLayer[i-1]); //, Neuron::identity, Neuron::sigmoidDerivative
-				} else {
-					layers[i-1][j] = new Neuron(neuronsPerLayer[i-1]);
-				}
+			//Create the layer using the number of neurons in it and in the previous layer
+			if (i == neuronsPerLayer.length-1) {
+				layers[i-1] = new Layer(neuronsPerLayer[i-1], neuronsPerLayer[i], outputActivation, precision);
+			} else {
+				layers[i-1] = new Layer(neuronsPerLayer[i-1], neuronsPerLayer[i], hiddenActivation, precision);
 			}
 		}
 	}
@@ -76,13 +101,10 @@ public class NeuralNetwork implements Serializable {
 		//Loop through each layer of neurons
 		for (int i = 0; i<layers.length; i++) {
 			//Create an array representing the outputs of this layer
-			double[] newLayer = new double[layers[i].length];
+			double[] newLayer = new double[layers[i].getOutputs()];
 
-			//Loop through each neuron in this layer
-			for (int j = 0; j<newLayer.length; j++) {
-				//Evaluate the given neuron using the values of the previous layer
-				newLayer[j] = layers[i][j].getOutput(lastLayer);
-			}
+			//Evaluate every neuron in this layer using the values of the previous layer
+			layers[i].forward(lastLayer, newLayer);
 
 			//Set the current layer as the last layer calculated
 			lastLayer = newLayer;
@@ -92,6 +114,113 @@ public class NeuralNetwork implements Serializable {
 		return lastLayer;
 	}
 
+	/**
+	 * Get the output neuron values for a sparse set of input neuron values
+	 * 
+	 * The first layer only reads the weights of the non-zero inputs
+	 * 
+	 * @param inputs the values of the input neurons
+	 * @return the values of the output neurons
+	 */
+	public double[] testAll(SparseVector inputs) {
+		double[] lastLayer = new double[layers[0].getOutputs()];
+		layers[0].forward(inputs, lastLayer);
+
+		for (int i = 1; i<layers.length; i++) {
+			double[] newLayer = new double[layers[i].getOutputs()];
+			layers[i].forward(lastLayer, newLayer);
+			lastLayer = newLayer;
+		}
+
+		return lastLayer;
+	}
+
+	/**
+	 * Get the output neuron values for a sparse set of input neuron values without allocating anything
+	 * 
+	 * @param inputs the values of the input neurons
+	 * @param layerOutputs an array for the outputs of each layer, with as many values as each layer has neurons
+	 * @return the values of the output neurons, which is the last array of the layer outputs
+	 */
+	public double[] testAll(SparseVector inputs, double[][] layerOutputs) {
+		layers[0].forward(inputs, layerOutputs[0]);
+		for (int i = 1; i<layers.length; i++) {
+			layers[i].forward(layerOutputs[i-1], layerOutputs[i]);
+		}
+		return layerOutputs[layers.length-1];
+	}
+
+	/**
+	 * Create the arrays that {@link NeuralNetwork#testAll(SparseVector, double[][])} stores the outputs of each layer in
+	 * 
+	 * @return an array for the outputs of each layer
+	 */
+	public double[][] createLayerOutputs() {
+		double[][] layerOutputs = new double[layers.length][];
+		for (int i = 0; i<layers.length; i++) {
+			layerOutputs[i] = new double[layers[i].getOutputs()];
+		}
+		return layerOutputs;
+	}
+
+	/**
+	 * Get the output neuron values for a batch of inputs
+	 * 
+	 * Each layer is evaluated for the whole batch at once, which reuses every weight for every input
+	 * 
+	 * @throws IllegalArgumentException when the length of the input array is less than the batch size times the number of input neurons
+	 * 
+	 * @param inputs the values of the input neurons of every input packed one input after another
+	 * @param batchSize the number of inputs in the batch
+	 * @return the values of the output neurons of every input packed the same way
+	 */
+	public double[] testBatch(double[] inputs, int batchSize) {
+		if (inputs.length < batchSize * inputNeurons) throw new IllegalArgumentException("There are " + inputs.length + " input neuron values when " + (batchSize * inputNeurons) + " were expected.");
+
+		//Define an array that represents the last layer that was evaluated
+		double[] lastLayer = inputs;
+
+		//Loop through each layer of neurons
+		for (int i = 0; i<layers.length; i++) {
+			//Create an array representing the outputs of this layer for every input
+			double[] newLayer = new double[batchSize * layers[i].getOutputs()];
+
+			//Evaluate every neuron in this layer for every input
+			layers[i].forwardBatch(lastLayer, newLayer, batchSize);
+
+			//Set the current layer as the last layer calculated
+			lastLayer = newLayer;
+		}
+
+		//Return the output layer
+		return lastLayer;
+	}
+
+	/**
+	 * Get the output neuron values for a batch of inputs
+	 * 
+	 * @see NeuralNetwork#testBatch(double[], int)
+	 * 
+	 * @param inputs the values of the input neurons of each input
+	 * @return the values of the output neurons of each input
+	 */
+	public double[][] testBatch(double[]... inputs) {
+		double[] packed = new double[inputs.length * inputNeurons];
+		for (int b = 0; b<inputs.length; b++) {
+			if (inputs[b].length != inputNeurons) throw new IllegalArgumentException("There are " + inputs[b].length + " input neuron values when " + inputNeurons + " were expected.");
+			System.arraycopy(inputs[b], 0, packed, b * inputNeurons, inputNeurons);
+		}
+
+		double[] outputs = testBatch(packed, inputs.length);
+
+		int outputNeurons = layers[layers.length-1].getOutputs();
+		double[][] result = new double[inputs.length][outputNeurons];
+		for (int b = 0; b<inputs.length; b++) {
+			System.arraycopy(outputs, b * outputNeurons, result[b], 0, outputNeurons);
+		}
+		return result;
+	}
+
 	/**
 	 * Gets the output value for a single neuron for a given set of input neuron values
 	 * 
@@ -108,7 +237,7 @@ public class NeuralNetwork implements Serializable {
 
 	public int getMaxNeuron(double... inputs) {
 		int maxIndex = -1;
-		double maxVal = Double.MIN_VALUE;
+		double maxVal = Double.NEGATIVE_INFINITY;
 
 		double[] outputs = testAll(inputs);
 		for (int i = 0; i<outputs.length; i++) {
@@ -123,7 +252,7 @@ public class NeuralNetwork implements Serializable {
 
 	public int getMinNeuron(double... inputs) {
 		int minIndex = -1;
-		double minVal = Double.MAX_VALUE;
+		double minVal = Double.POSITIVE_INFINITY;
 
 		double[] outputs = testAll(inputs);
 		for (int i = 0; i<outputs.length; i++) {
@@ -138,7 +267,7 @@ public class NeuralNetwork implements Serializable {
 
 	public int[] getMaxMinNeurons(double... inputs) {
 		int[] indicies = {-1,-1};
-		double[] maxVals = new double[] {Double.MIN_VALUE, Double.MAX_VALUE};
+		double[] maxVals = new double[] {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
 
 		double[] outputs = testAll(inputs);
 		for (int i = 0; i<outputs.length; i++) {
@@ -155,6 +284,18 @@ public class NeuralNetwork implements Serializable {
 		return indicies;
 	}
 
+	/**
+	 * Copy the current weights of this network into a read only snapshot
+	 * The snapshot can be evaluated by any number of threads while this network keeps training
+	 * 
+	 * @see SnapshotPublisher
+	 * 
+	 * @return the snapshot
+	 */
+	public NetworkSnapshot snapshot() {
+		return new NetworkSnapshot(this);
+	}
+
 	/**
 	 * Get the number of input neurons
 	 * 
@@ -164,34 +305,84 @@ public class NeuralNetwork implements Serializable {
 		return inputNeurons;
 	}
 
+	/**
+	 * Gets the layers of this network
+	 * 
+	 * @return the array of layers excluding the input layer
+	 */
+	public Layer[] getLayers() {
+		return layers;
+	}
+
 	/**
 	 * Gets the neural data of this network
+	 * The neurons are views of the layers of this network
+	 * 
+	 * @see NeuralNetwork#getLayers()
 	 * 
 	 * @return the two dimensional array of neurons
 	 */
 	public Neuron[][] getNeuralData() {
-		return layers;
+		if (neuralData == null) {
+			Neuron[][] views = new Neuron[layers.length][];
+			for (int i = 0; i<layers.length; i++) {
+				views[i] = new Neuron[layers[i].getOutputs()];
+				for (int j = 0; j<views[i].length; j++) {
+					views[i][j] = new Neuron(layers[i], j);
+				}
+			}
+			neuralData = views;
+		}
+		return neuralData;
 	}
 
 	/**
 	 * Set the neural data of this network
+	 * The weights and biases of the neurons are copied into new layers
 	 * 
 	 * @throws IllegalArgumentException thrown if the number of input neurons expected by the first layer of the neurons in the data is not equal to the number of input neurons in the network
 	 * 
 	 * @param neurons the two dimensional array of neurons
 	 */
 	public void setNeuralData(Neuron[][] neurons) {
-		if (neurons[0][0].getParentNeurons() != inputNeurons) new IllegalArgumentException("The inputted neurons expect " + neurons[0][0].getParentNeurons() + " input neurons. " + inputNeurons + " expected.");
-		layers = neurons;
+		if (neurons[0][0].getParentNeurons() != inputNeurons) throw new IllegalArgumentException("The inputted neurons expect " + neurons[0][0].getParentNeurons() + " input neurons. " + inputNeurons + " expected.");
+		Layer[] newLayers = new Layer[neurons.length];
+		for (int i = 0; i<neurons.length; i++) {
+			newLayers[i] = new Layer(neurons[i][0].getParentNeurons(), neurons[i].length, neurons[i][0].getActivation(), neurons[i][0].getLayer().getPrecision());
+			for (int j = 0; j<neurons[i].length; j++) {
+				Neuron neuron = neurons[i][j];
+				for (int k = 0; k<newLayers[i].getInputs(); k++) {
+					newLayers[i].setWeight(j, k, neuron.getLayer().getWeight(neuron.getIndex(), k));
+				}
+				newLayers[i].getBiases()[j] = neuron.getBias();
+			}
+		}
+		layers = newLayers;
+		neuralData = null;
 	}
 	
-	public void init() {
-		//Loop through each layer of neurons
+	/**
+	 * Get the precision that the weights of this network are stored in
+	 * 
+	 * @return the precision of the first layer
+	 */
+	public Precision getPrecision() {
+		return layers[0].getPrecision();
+	}
+
+	/**
+	 * Convert the weights of every layer to a different precision
+	 * Trainers created for this network must be recreated afterwards
+	 * 
+	 * @param precision the new precision
+	 */
+	public void setPrecision(Precision precision) {
 		for (int i = 0; i<layers.length; i++) {
-			//Loop through each neuron in this layer
-			for (int j = 0; j<layers[i].length; j++) {
-				layers[i][j].init();
-			}
+			layers[i].setPrecision(precision);
 		}
 	}
+
+	public void init() {
+		//The layers keep no transient state, so there is nothing to restore
+	}
 }
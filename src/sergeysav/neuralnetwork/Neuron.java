@@ -7,6 +7,8 @@ import java.util.function.Function;
 /**
  * A class representing a single neuron
  * 
+ * A neuron is a view of one row of a {@link Layer}, the layer owns the weights and bias
+ * 
  * @author sergeys
  * 
  */
@@ -16,57 +18,41 @@ public class Neuron implements Serializable {
 	 * The Serial Version UID
 	 * Used for Serialization
 	 */
-	private static final long serialVersionUID = -2054648138743362458L;
-	
-	//The activation function to use for this neuron
-	private transient Function<Double, Double> activationFunction;
-	private transient Function<Double, Double> derivativeFunction;
+	private static final long serialVersionUID = -1825755435606245390L;
 	
-	//The weights to the previous layer of neurons
-	private double[] weights;
+	//The layer that stores the weights and bias of this neuron
+	private Layer layer;
 	
-	//The bias value for this neuron
-	private double bias;
+	//The index of this neuron within its layer
+	private int index;
 	
 	/**
 	 * Create a new Neuron with a specified number of parents.
 	 * This neuron must always be called with an array of the same length as the number of parents.
 	 * 
-	 * This neuron will use the sigmoid activation function.
+	 * This neuron will use the fancy tanh activation function.
 	 * 
-	 * @see Neuron#sigmoid(double)
-	 * @see Neuron#Neuron(int, Function)
+	 * @see Neuron#fancyTanh(double)
 	 * 
 	 * @param numParents the number of parent nodes for this neuron
 	 */
 	public Neuron(int numParents) {
-		this(numParents, Neuron::fancyTanh, Neuron::fancyTanhDerivative);
+		this(new Layer(numParents, 1), 0);
 	}
 	
 	/**
-	 * Create a new Neuron with a specified number of parents.
-	 * This neuron must always be called with an array of the same length as the number of parents.
+	 * Create a new Neuron that views a single neuron of a layer
 	 * 
-	 * This neuron will use the specified activation function.
-	 * 
-	 * @see Neuron#Neuron(int)
-	 * 
-	 * @param numParents the number of parent nodes for this neuron
-	 * @param activationFunction the activation function to use
+	 * @param layer the layer that stores this neuron
+	 * @param index the index of the neuron within the layer
 	 */
-	private Neuron(int numParents, Function<Double, Double> activationFunction, Function<Double, Double> derivativeFunction) {
-		//Set the weights as random values from -1 to 1
-		weights = NeuralNetwork.rand.doubles(numParents, -1, 1).toArray();
-		//Set the bias to 0
-		bias = 0;
-		//Set the activation function as the given function
-		this.activationFunction = activationFunction;
-		this.derivativeFunction = derivativeFunction;
+	public Neuron(Layer layer, int index) {
+		this.layer = layer;
+		this.index = index;
 	}
 	
 	public void init() {
-		this.activationFunction = Neuron::fancyTanh;
-		this.derivativeFunction = Neuron::fancyTanhDerivative;
+		//The layer keeps no transient state, so there is nothing to restore
 	}
 	
 	/**
@@ -78,17 +64,7 @@ public class Neuron implements Serializable {
 	 * @return the activated value of this neuron
 	 */
 	public double getOutput(double... prevLayer) {
-		//Throw exception if the number of parameters is not the same as the number of parent neurons 
-		if (prevLayer.length != weights.length) throw new IllegalArgumentException("There are " + prevLayer.length + " input neuron values when " + weights.length + " were expected.");
-		
-		//Calculate the total value as bias + ∑(weight * value)
-		double total = bias;
-		for (int i = 0; i < prevLayer.length; i++) {
-			total += weights[i] * prevLayer[i];
-		}
-		
-		//Return the activated value of this total value
-		return activationFunction.apply(total);
+		return layer.getOutput(index, prevLayer);
 	}
 	
 	/**
@@ -152,15 +128,23 @@ public class Neuron implements Serializable {
 	 * @return the number of parent neurons
 	 */
 	public int getParentNeurons() {
-		return weights.length;
+		return layer.getInputs();
 	}
 	
 	/**
-	 * Get the weights of this neuron
+	 * Get a copy of the weights of this neuron
+	 * 
+	 * @deprecated the weights are stored in the backing layer, so modifying the returned array does not modify the neuron.
+	 * Use {@link Layer#getWeights()} or {@link Layer#setWeight(int, int, double)} to update the weights in place.
 	 * 
 	 * @return an array of the weights of this neuron
 	 */
+	@Deprecated
 	public double[] getWeights() {
+		double[] weights = new double[layer.getInputs()];
+		for (int k = 0; k<weights.length; k++) {
+			weights[k] = layer.getWeight(index, k);
+		}
 		return weights;
 	}
 	
@@ -173,8 +157,10 @@ public class Neuron implements Serializable {
 	 * @param weights an array of the weights of this neuron
 	 */
 	public void setWeights(double[] weights) {
-		if (weights.length != this.weights.length) throw new IllegalArgumentException("There are " + this.weights.length + " input neuron values when " + weights.length + " were expected.");
-		this.weights = weights;
+		if (weights.length != layer.getInputs()) throw new IllegalArgumentException("There are " + layer.getInputs() + " input neuron values when " + weights.length + " were expected.");
+		for (int k = 0; k<weights.length; k++) {
+			layer.setWeight(index, k, weights[k]);
+		}
 	}
 	
 	/**
@@ -183,7 +169,7 @@ public class Neuron implements Serializable {
 	 * @return the bias parameter
 	 */
 	public double getBias() {
-		return bias;
+		return layer.getBiases()[index];
 	}
 	
 	/**
@@ -192,15 +178,42 @@ public class Neuron implements Serializable {
 	 * @param bias the bias parameter
 	 */
 	public void setBias(double bias) {
-		this.bias = bias;
+		layer.getBiases()[index] = bias;
+	}
+	
+	/**
+	 * Get the layer that stores this neuron
+	 * 
+	 * @return the backing layer
+	 */
+	public Layer getLayer() {
+		return layer;
+	}
+	
+	/**
+	 * Get the index of this neuron within its layer
+	 * 
+	 * @return the row of the backing layer
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	/**
+	 * Get the activation function of this neuron
+	 * 
+	 * @return the activation function of the backing layer
+	 */
+	public Activation getActivation() {
+		return layer.getActivation();
 	}
 	
 	public Function<Double, Double> getDerivativeFunction() {
-		return derivativeFunction;
+		return layer.getDerivativeFunction();
 	}
 	
 	@Override
 	public String toString() {
-		return "Neuron[weights=" + Arrays.toString(weights) + ",bias=" + bias + "" + "]";
+		return "Neuron[weights=" + Arrays.toString(getWeights()) + ",bias=" + getBias() + "" + "]";
 	}
 }
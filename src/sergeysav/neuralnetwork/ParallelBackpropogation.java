@@ -0,0 +1,137 @@
+package sergeysav.neuralnetwork;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Performs backpropogation on a batch of samples by splitting it across a pool of workers
+ *
+ * Each worker reads the samples of a contiguous shard of the batch into its own buffer and accumulates their gradients into its own workspace.
+ * The workspaces are then summed pairwise as a tree so that the result only depends on the batch and the number of workers.
+ * The pool of workers must be shut down by closing the backpropogation once it is no longer needed.
+ *
+ * @author sergeys
+ *
+ */
+public class ParallelBackpropogation implements AutoCloseable {
+
+	//The network being trained
+	private NeuralNetwork network;
+
+	//The workspace of each worker
+	private TrainingWorkspace[] workspaces;
+
+	//The buffer that each worker reads its samples into
+	private double[][] buffers;
+
+	//The pool that runs the workers or null if there is only one worker
+	private ForkJoinPool pool;
+
+	/**
+	 * Create a new parallel backpropogation for a network
+	 *
+	 * @param network the network to train
+	 * @param workers the number of workers to split each batch across
+	 */
+	public ParallelBackpropogation(NeuralNetwork network, int workers) {
+		if (workers < 1) throw new IllegalArgumentException("There must be at least one worker. " + workers + " given.");
+		this.network = network;
+		workspaces = new TrainingWorkspace[workers];
+		Layer[] layers = network.getLayers();
+		buffers = new double[workers][network.getInputNeurons() + layers[layers.length-1].getOutputs()];
+		for (int w = 0; w<workers; w++) {
+			workspaces[w] = new TrainingWorkspace(network);
+		}
+		if (workers > 1) {
+			pool = new ForkJoinPool(workers);
+		}
+	}
+
+	/**
+	 * Perform backpropogation on every sample of a batch
+	 *
+	 * @param samples a reader of the samples of the batch, indexed from 0
+	 * @param count the number of samples in the batch
+	 * @return a workspace containing the summed gradients, error and count of the batch, which is overwritten by the next call
+	 */
+	public TrainingWorkspace backpropogate(SampleReader samples, int count) {
+		int workers = workspaces.length;
+		int inputs = network.getInputNeurons();
+
+		//Split the batch into contiguous shards
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[workers];
+		for (int w = 0; w<workers; w++) {
+			TrainingWorkspace workspace = workspaces[w];
+			double[] buffer = buffers[w];
+			int from = (int) ((long) count * w / workers);
+			int to = (int) ((long) count * (w + 1) / workers);
+			tasks[w] = ForkJoinTask.adapt(()->{
+				workspace.clear();
+				for (int i = from; i<to; i++) {
+					workspace.backpropogate(samples.read(i, buffer), 0, inputs);
+				}
+			});
+		}
+		run(tasks, workers);
+
+		//Sum the workspaces as a tree so that each level can be done in parallel
+		for (int stride = 1; stride<workers; stride *= 2) {
+			int n = 0;
+			for (int w = 0; w + stride<workers; w += 2 * stride) {
+				TrainingWorkspace target = workspaces[w];
+				TrainingWorkspace source = workspaces[w + stride];
+				tasks[n++] = ForkJoinTask.adapt(()->target.add(source));
+			}
+			run(tasks, n);
+		}
+
+		return workspaces[0];
+	}
+
+	/**
+	 * Run tasks on the pool and wait for all of them to complete
+	 *
+	 * @param tasks the array of tasks
+	 * @param n the number of tasks in the array to run
+	 */
+	private void run(ForkJoinTask<?>[] tasks, int n) {
+		if (pool == null || n == 1) {
+			for (int i = 0; i<n; i++) {
+				tasks[i].invoke();
+			}
+			return;
+		}
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				for (int i = 0; i<n; i++) {
+					tasks[i].fork();
+				}
+				for (int i = n-1; i>=0; i--) {
+					tasks[i].join();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Shut down the pool of workers
+	 * Batches cannot be backpropogated after the backpropogation has been closed
+	 */
+	@Override
+	public void close() {
+		if (pool != null) pool.shutdown();
+	}
+
+	/**
+	 * Get the number of workers
+	 *
+	 * @return the number of workers
+	 */
+	public int getWorkers() {
+		return workspaces.length;
+	}
+}
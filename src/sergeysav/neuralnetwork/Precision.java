@@ -0,0 +1,19 @@
+package sergeysav.neuralnetwork;
+
+/**
+ * The precision that the weights of a layer are stored and trained in
+ * 
+ * @author sergeys
+ *
+ */
+public enum Precision {
+	/**
+	 * Weights, weight gradients and momentum are stored as 64 bit doubles
+	 */
+	DOUBLE,
+	/**
+	 * Weights, weight gradients and momentum are stored as 32 bit floats, which halves the memory that has to be streamed for every sample
+	 * Sums are still accumulated in double precision
+	 */
+	FLOAT
+}
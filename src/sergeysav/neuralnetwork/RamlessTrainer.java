@@ -1,7 +1,8 @@
 package sergeysav.neuralnetwork;
 
 import java.util.function.Function;
-import java.util.stream.IntStream;
+
+import sergeysav.linalg.Kernels;
 
 /**
  * An implementation of a backpropogation neural network trainer where the data is not stored in ram when not needed
@@ -9,7 +10,10 @@ import java.util.stream.IntStream;
  * @author sergeys
  *
  */
-public class RamlessTrainer {
+public class RamlessTrainer implements AutoCloseable {
+
+	//The number of samples evaluated at once when calculating the error
+	private static final int EVALUATION_BATCH_SIZE = 64;
 
 	private double learningRate;
 	private Function<Integer, double[]> trainingData;
@@ -18,7 +22,11 @@ public class RamlessTrainer {
 	private int testingSize;
 
 	private NeuralNetwork network;
-	private double[][][] learningMomentum;
+	private double[][] weightMomentum;
+	private float[][] floatWeightMomentum;
+	private double[][] biasMomentum;
+	private ParallelBackpropogation backpropogation;
+	private BatchEvaluator evaluator;
 	
 	private int[] indexShuffle;
 
@@ -28,19 +36,36 @@ public class RamlessTrainer {
 	 * @param testingData
 	 */
 	public RamlessTrainer(double k, Function<Integer, double[]> trainingData, int trainingSize, Function<Integer, double[]> testingData, int testingSize, NeuralNetwork network) {
+		this(k, trainingData, trainingSize, testingData, testingSize, network, 1);
+	}
+
+	/**
+	 * @param k
+	 * @param trainingData a function to load the training data which must be safe to call from multiple threads
+	 * @param testingData
+	 * @param workers the number of threads to split the training data across
+	 */
+	public RamlessTrainer(double k, Function<Integer, double[]> trainingData, int trainingSize, Function<Integer, double[]> testingData, int testingSize, NeuralNetwork network, int workers) {
 		this.learningRate = k;
 		this.trainingData = trainingData;
 		this.trainingSize = trainingSize;
 		this.testingData = testingData;
 		this.testingSize = testingSize;
 		this.network = network;
-		learningMomentum = new double[network.getNeuralData().length][][];
-		for (int i = 0; i<learningMomentum.length; i++) {
-			learningMomentum[i] = new double[network.getNeuralData()[i].length][];
-			for (int j = 0; j<learningMomentum[i].length; j++) {
-				learningMomentum[i][j] = new double[network.getNeuralData()[i][j].getParentNeurons() + 1];
+		Layer[] layers = network.getLayers();
+		weightMomentum = new double[layers.length][];
+		floatWeightMomentum = new float[layers.length][];
+		biasMomentum = new double[layers.length][];
+		for (int i = 0; i<layers.length; i++) {
+			if (layers[i].getPrecision() == Precision.FLOAT) {
+				floatWeightMomentum[i] = new float[layers[i].getWeightCount()];
+			} else {
+				weightMomentum[i] = new double[layers[i].getWeightCount()];
 			}
+			biasMomentum[i] = new double[layers[i].getOutputs()];
 		}
+		backpropogation = new ParallelBackpropogation(network, workers);
+		evaluator = new BatchEvaluator(network, EVALUATION_BATCH_SIZE);
 		indexShuffle = new int[trainingSize];
 		for (int i = 1; i<indexShuffle.length; i++) {
 			indexShuffle[i] = i;
@@ -62,20 +87,14 @@ public class RamlessTrainer {
 			epochs++;
 			//oldNeuralData = network.getNeuralData().clone();
 			indexShuffle = shuffle(indexShuffle);
-			for (int i = 0; i<trainingSize; i++) {
-				final int iVal = i;
-				performBackpropogation(trainingData.apply(indexShuffle[iVal]));
-			}
-			for (int i = 0; i<learningMomentum.length; i++) {
-				for (int j = 0; j<learningMomentum[i].length; j++) {
-					Neuron n = network.getNeuralData()[i][j];
-					n.setBias(n.getBias() + learningMomentum[i][j][0]);
-					learningMomentum[i][j][0] *= 0.9;
-					for (int k = 1; k<learningMomentum[i][j].length; k++) {
-						n.getWeights()[k-1] += learningMomentum[i][j][k];
-						learningMomentum[i][j][k] *= 0.9;
-					}
-					//learningMomentum[i][j] = new double[network.getNeuralData()[i][j].getParentNeurons() + 1];
+			TrainingWorkspace gradients = backpropogation.backpropogate((i, buffer)->trainingData.apply(indexShuffle[i]), trainingSize);
+			for (int i = 0; i<weightMomentum.length; i++) {
+				Layer layer = network.getLayers()[i];
+				Kernels.momentumStep(learningRate, gradients.getBiasGradients()[i], biasMomentum[i], 1, layer.getBiases(), 0.9);
+				if (layer.getPrecision() == Precision.FLOAT) {
+					Kernels.momentumStep(learningRate, gradients.getWeightGradients()[i], floatWeightMomentum[i], 1, layer.getFloatWeights(), 0.9);
+				} else {
+					Kernels.momentumStep(learningRate, gradients.getWeightGradients()[i], weightMomentum[i], 1, layer.getWeights(), 0.9);
 				}
 			}
 			trainingError = calculateAverageError(trainingData, trainingSize);
@@ -84,95 +103,37 @@ public class RamlessTrainer {
 		return new TrainingResult(trainingError, testingError, epochs, trainingError < epsilon);
 	}
 
-	private void performBackpropogation(double[] data) {
-		Neuron[][] neuralData = network.getNeuralData();
-		double[][] neuralOutputs = new double[network.getNeuralData().length][];
-		double[][] neuralDeltas = new double[network.getNeuralData().length][];
-
-		double[][] trial = splitArray(data, network.getInputNeurons());
-
-		double[] input =  trial[0];
-		double[] target = trial[1];
-
-		{
-			double[] lastLayer = trial[0];
-			for (int i = 0; i<neuralOutputs.length; i++) {
-				neuralOutputs[i] = new double[network.getNeuralData()[i].length];
-				for (int j = 0; j<neuralOutputs[i].length; j++) {
-					neuralOutputs[i][j] = neuralData[i][j].getOutput(lastLayer);
-				}
-				lastLayer = neuralOutputs[i];
-			}
-		}
-
-		//double[][][] result = new double[network.getNeuralData().length][][];
-
-		for (int i = neuralOutputs.length-1; i>=0; i--) {
-			//result[i] = new double[network.getNeuralData()[i].length][];
-			neuralDeltas[i] = new double[network.getNeuralData()[i].length];
-			for (int j = 0; j<neuralOutputs[i].length; j++) {
-				//result[i][j] = new double[network.getNeuralData()[i][j].getParentNeurons() + 1];
-				Neuron neuron = neuralData[i][j];
-				double output = neuralOutputs[i][j];
-				double deltaWeight;
-				if (i == neuralOutputs.length-1) { //Last Hidden -> Output Layer Connection Delta Weight
-					deltaWeight = neuron.getDerivativeFunction().apply(output) * (target[j] - output); //Derivative of error squared (Chain rule). 2 ignored b/c of later multiplied constant
-				} else { //Layer -> Hidden Layer Connection Delta Weight
-					final int iVal = i;
-					final int jVal = j;
-					double sum = IntStream.range(0, neuralOutputs[i+1].length).mapToDouble((idx)->neuralData[iVal+1][idx].getWeights()[jVal] * neuralDeltas[iVal+1][idx]).sum();
-					deltaWeight = neuron.getDerivativeFunction().apply(output) * sum;
-				}
-				neuralDeltas[i][j] = deltaWeight;
-				//New weight = oldWeight + k * output(source) * deltaWeight(thisNode)
-				learningMomentum[i][j][0] += learningRate * deltaWeight;
-				for (int k = 0; k < neuron.getWeights().length; k++) {
-					learningMomentum[i][j][k+1] += learningRate * (i > 0 ? neuralOutputs[i-1][k] : input[k]) * deltaWeight;
-					//neuron.getWeights()[k] += learningRate * (i > 0 ? neuralOutputs[i-1][k] : input[k]) * deltaWeight;
-				}
-				//neuron.setBias(neuron.getBias() + learningRate * deltaWeight);
-			}
-		}
-		//System.out.println(Arrays.deepToString(neuralOutputs));
-		//return result;
-	} 
-	//Output neurons: constant * FromOutput * error
-	//Hidden neurons: constant * FromOutput * error
-
-	private double[][] splitArray(double[] arr, int lengthFirst) {
-		double[][] output = new double[][] {new double[lengthFirst], new double[arr.length-lengthFirst]};
-
-		System.arraycopy(arr, 0, output[0], 0, lengthFirst);
-		System.arraycopy(arr, lengthFirst, output[1], 0, arr.length - lengthFirst);
-
-		return output;
-	}
-
 	//Basically Standard Deviation
-	private double calculateError(double[] inputs, double[] desiredOutputs) {
-		double[] outputs = network.testAll(inputs);
-		double error = 0;
-
-		for (int i = 0; i<outputs.length; i++) {
-			double err = outputs[i] - desiredOutputs[i];
-			error += (err*err);
-		}
-
-		return error/outputs.length/outputs.length;
-	}
-
 	private double calculateAverageError(Function<Integer,double[]> dataSet, int length) {
 		if (dataSet == null || length == 0) return 0;
 
 		double totalError = 0;
-		for (int i = 0; i<length; i++) {
-			double[][] arr = splitArray(dataSet.apply(i), network.getInputNeurons());
-			totalError += calculateError(arr[0], arr[1]);
+		double[][] samples = new double[evaluator.getMaxBatchSize()][];
+		//Evaluate the data set in batches
+		for (int start = 0; start<length; start += evaluator.getMaxBatchSize()) {
+			int count = Math.min(evaluator.getMaxBatchSize(), length - start);
+			for (int b = 0; b<count; b++) {
+				samples[b] = dataSet.apply(start + b);
+				evaluator.setInput(b, samples[b], 0);
+			}
+			evaluator.evaluate(count);
+			for (int b = 0; b<count; b++) {
+				totalError += evaluator.calculateError(b, samples[b], network.getInputNeurons());
+			}
 		}
 
 		return Math.sqrt(totalError/length);
 	} 
 
+	/**
+	 * Shut down the threads that the gradients are calculated on
+	 * The trainer cannot train after it has been closed
+	 */
+	@Override
+	public void close() {
+		backpropogation.close();
+	}
+
 	public static int[] shuffle(int[] arr) {
 		for (int i = 0; i<arr.length; i++) {
 			int x = NeuralNetwork.rand.nextInt(arr.length);
@@ -0,0 +1,25 @@
+package sergeysav.neuralnetwork;
+
+/**
+ * Reads training samples by index into reusable arrays
+ *
+ * A sample is the values of the input neurons followed by the target values of the output neurons.
+ * Sources that have to decode their samples, such as a memory mapped corpus, decode them into the given buffer so reading allocates nothing,
+ * while sources that already hold every sample in memory can return their own arrays.
+ *
+ * @author sergeys
+ *
+ */
+@FunctionalInterface
+public interface SampleReader {
+
+	/**
+	 * Read a sample
+	 * Readers used for training must be safe to call from multiple threads with different buffers
+	 *
+	 * @param index the index of the sample
+	 * @param buffer an array owned by the caller that can hold a whole sample
+	 * @return the array holding the sample, which is either the buffer or an array that does not change while training
+	 */
+	double[] read(int index, double[] buffer);
+}
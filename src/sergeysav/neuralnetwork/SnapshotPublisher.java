@@ -0,0 +1,89 @@
+package sergeysav.neuralnetwork;
+
+/**
+ * Publishes snapshots of a network that is being trained to threads that only evaluate it
+ *
+ * Two snapshots are double buffered: readers evaluate the front one while the trainer copies its newest weights into the back one,
+ * and publishing swaps them. Readers never lock and never see a snapshot that is being written,
+ * and the trainer only waits for the copy, never for the readers.
+ * When a reader still holds the back snapshot from before the last swap, a new snapshot is allocated in its place instead of waiting.
+ *
+ * Readers acquire the current snapshot, evaluate it as many times as they like and release it.
+ * A snapshot must not be used after it has been released, since it may then be overwritten.
+ *
+ * @author sergeys
+ *
+ */
+public class SnapshotPublisher {
+
+	//The snapshot that readers acquire
+	private volatile NetworkSnapshot front;
+
+	//The snapshot that the next weights are copied into
+	private NetworkSnapshot back;
+
+	//The number of snapshots published
+	private volatile long version;
+
+	/**
+	 * Create a new publisher with a snapshot of the current weights of a network
+	 *
+	 * @param network the network to publish snapshots of
+	 */
+	public SnapshotPublisher(NeuralNetwork network) {
+		front = network.snapshot();
+		back = network.snapshot();
+	}
+
+	/**
+	 * Copy the current weights of a network into a snapshot and make it the one that readers acquire
+	 * The network must not be trained while its weights are copied, so this is called by the training thread between batches
+	 *
+	 * @param network the network, which may have a different shape than the last one published
+	 */
+	public synchronized void publish(NeuralNetwork network) {
+		NetworkSnapshot next = back;
+		if (next.readers.get() != 0 || !next.hasShapeOf(network)) {
+			next = network.snapshot();
+		} else {
+			next.copyFrom(network);
+		}
+		back = front;
+		front = next;
+		version++;
+	}
+
+	/**
+	 * Get the most recently published snapshot and mark it as being read
+	 * Every call must be followed by a call to {@link SnapshotPublisher#release(NetworkSnapshot)}
+	 *
+	 * @return the snapshot
+	 */
+	public NetworkSnapshot acquire() {
+		while (true) {
+			NetworkSnapshot snapshot = front;
+			snapshot.readers.incrementAndGet();
+			//The snapshot may have been swapped to the back and started being overwritten before it was marked
+			if (snapshot == front) return snapshot;
+			snapshot.readers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Mark a snapshot as no longer being read
+	 *
+	 * @param snapshot the snapshot returned by {@link SnapshotPublisher#acquire()}
+	 */
+	public void release(NetworkSnapshot snapshot) {
+		snapshot.readers.decrementAndGet();
+	}
+
+	/**
+	 * Get the number of snapshots published
+	 *
+	 * @return the number of calls to {@link SnapshotPublisher#publish(NeuralNetwork)}
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
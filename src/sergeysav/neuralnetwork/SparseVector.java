@@ -0,0 +1,148 @@
+package sergeysav.neuralnetwork;
+
+import java.util.Arrays;
+
+/**
+ * A vector that only stores its non-zero elements
+ *
+ * One-hot encodings such as the chess board inputs have only a few non-zero values out of hundreds,
+ * so a layer fed with a sparse vector only needs to touch the weights of the active inputs.
+ * The storage is preallocated and reused so that filling the vector allocates nothing.
+ *
+ * @author sergeys
+ *
+ */
+public class SparseVector {
+
+	//The fraction of non-zero values below which the sparse representation is worth using
+	private static final double MAX_DENSITY = 0.25;
+
+	//The number of elements of the equivalent dense vector
+	private int length;
+
+	//The index of each non-zero element in increasing order
+	private int[] indices;
+
+	//The value of each non-zero element
+	private double[] values;
+
+	//The number of non-zero elements
+	private int size;
+
+	/**
+	 * Create a new sparse vector of zeros
+	 *
+	 * @param length the number of elements of the equivalent dense vector
+	 */
+	public SparseVector(int length) {
+		this.length = length;
+		indices = new int[length];
+		values = new double[length];
+	}
+
+	/**
+	 * Set every element to zero
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Add a non-zero element
+	 * Elements must be added in increasing order of index
+	 *
+	 * @param index the index of the element
+	 * @param value the value of the element
+	 */
+	public void add(int index, double value) {
+		if (index < 0 || index >= length) throw new IndexOutOfBoundsException("Index " + index + " is outside of a vector of length " + length + ".");
+		if (size > 0 && indices[size-1] >= index) throw new IllegalArgumentException("Index " + index + " was added after index " + indices[size-1] + ".");
+		indices[size] = index;
+		values[size] = value;
+		size++;
+	}
+
+	/**
+	 * Replace the contents of this vector with the non-zero elements of a dense vector stored inside of a larger array
+	 *
+	 * @param data the array containing the dense vector
+	 * @param offset the index of the first element of the dense vector
+	 */
+	public void gather(double[] data, int offset) {
+		int n = 0;
+		for (int k = 0; k<length; k++) {
+			double v = data[offset + k];
+			if (v != 0) {
+				indices[n] = k;
+				values[n] = v;
+				n++;
+			}
+		}
+		size = n;
+	}
+
+	/**
+	 * Check whether few enough elements are non-zero for the sparse representation to be faster than the dense one
+	 *
+	 * @return true if the sparse representation should be used
+	 */
+	public boolean isSparse() {
+		return size <= length * MAX_DENSITY;
+	}
+
+	/**
+	 * Convert this vector to a dense array
+	 *
+	 * @return a new array of the given length containing every element
+	 */
+	public double[] toDense() {
+		double[] dense = new double[length];
+		for (int i = 0; i<size; i++) {
+			dense[indices[i]] = values[i];
+		}
+		return dense;
+	}
+
+	/**
+	 * Get the indices of the non-zero elements
+	 * Only the first {@link SparseVector#size()} entries are valid
+	 *
+	 * @return the index array
+	 */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	/**
+	 * Get the values of the non-zero elements
+	 * Only the first {@link SparseVector#size()} entries are valid
+	 *
+	 * @return the value array
+	 */
+	public double[] getValues() {
+		return values;
+	}
+
+	/**
+	 * Get the number of non-zero elements
+	 *
+	 * @return the number of non-zero elements
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of elements of the equivalent dense vector
+	 *
+	 * @return the length of the vector
+	 */
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public String toString() {
+		return "SparseVector[length= " + length + " indices= " + Arrays.toString(Arrays.copyOf(indices, size)) + " values= " + Arrays.toString(Arrays.copyOf(values, size)) + "]";
+	}
+}
@@ -1,6 +1,6 @@
 package sergeysav.neuralnetwork;
 
-import java.util.stream.IntStream;
+import sergeysav.linalg.Kernels;
 
 /**
  * An implementation of a backpropogation neural network trainer
@@ -8,14 +8,21 @@ import java.util.stream.IntStream;
  * @author sergeys
  *
  */
-public class Trainer {
+public class Trainer implements AutoCloseable {
+
+	//The number of samples evaluated at once when calculating the error
+	private static final int EVALUATION_BATCH_SIZE = 64;
 
 	private double learningRate;
 	private double[][] trainingData;
 	private double[][] testingData;
 	
 	private NeuralNetwork network;
-	private double[][][] learningMomentum;
+	private double[][] weightMomentum;
+	private float[][] floatWeightMomentum;
+	private double[][] biasMomentum;
+	private ParallelBackpropogation backpropogation;
+	private BatchEvaluator evaluator;
 
 	/**
 	 * @param k
@@ -23,17 +30,34 @@ public class Trainer {
 	 * @param testingData
 	 */
 	public Trainer(double k, double[][] trainingData, double[][] testingData, NeuralNetwork network) {
+		this(k, trainingData, testingData, network, 1);
+	}
+
+	/**
+	 * @param k
+	 * @param trainingData
+	 * @param testingData
+	 * @param workers the number of threads to split the training data across
+	 */
+	public Trainer(double k, double[][] trainingData, double[][] testingData, NeuralNetwork network, int workers) {
 		this.learningRate = k;
 		this.trainingData = trainingData;
 		this.testingData = testingData;
 		this.network = network;
-		learningMomentum = new double[network.getNeuralData().length][][];
-		for (int i = 0; i<learningMomentum.length; i++) {
-			learningMomentum[i] = new double[network.getNeuralData()[i].length][];
-			for (int j = 0; j<learningMomentum[i].length; j++) {
-				learningMomentum[i][j] = new double[network.getNeuralData()[i][j].getParentNeurons() + 1];
+		Layer[] layers = network.getLayers();
+		weightMomentum = new double[layers.length][];
+		floatWeightMomentum = new float[layers.length][];
+		biasMomentum = new double[layers.length][];
+		for (int i = 0; i<layers.length; i++) {
+			if (layers[i].getPrecision() == Precision.FLOAT) {
+				floatWeightMomentum[i] = new float[layers[i].getWeightCount()];
+			} else {
+				weightMomentum[i] = new double[layers[i].getWeightCount()];
 			}
+			biasMomentum[i] = new double[layers[i].getOutputs()];
 		}
+		backpropogation = new ParallelBackpropogation(network, workers);
+		evaluator = new BatchEvaluator(network, EVALUATION_BATCH_SIZE);
 	}
 
 	public TrainingResult train(double epsilon) {
@@ -51,20 +75,14 @@ public class Trainer {
 			epochs++;
 			//oldNeuralData = network.getNeuralData().clone();
 			double[][] randomTrainingData = shuffle(trainingData);
-			for (int i = 0; i<randomTrainingData.length; i++) {
-				final int iVal = i;
-				performBackpropogation(randomTrainingData[iVal]);
-			}
-			for (int i = 0; i<learningMomentum.length; i++) {
-				for (int j = 0; j<learningMomentum[i].length; j++) {
-					Neuron n = network.getNeuralData()[i][j];
-					n.setBias(n.getBias() + learningMomentum[i][j][0]);
-					learningMomentum[i][j][0] *= 0.9;
-					for (int k = 1; k<learningMomentum[i][j].length; k++) {
-						n.getWeights()[k-1] += learningMomentum[i][j][k];
-						learningMomentum[i][j][k] *= 0.9;
-					}
-					//learningMomentum[i][j] = new double[network.getNeuralData()[i][j].getParentNeurons() + 1];
+			TrainingWorkspace gradients = backpropogation.backpropogate((i, buffer)->randomTrainingData[i], randomTrainingData.length);
+			for (int i = 0; i<weightMomentum.length; i++) {
+				Layer layer = network.getLayers()[i];
+				Kernels.momentumStep(learningRate, gradients.getBiasGradients()[i], biasMomentum[i], 1, layer.getBiases(), 0.9);
+				if (layer.getPrecision() == Precision.FLOAT) {
+					Kernels.momentumStep(learningRate, gradients.getWeightGradients()[i], floatWeightMomentum[i], 1, layer.getFloatWeights(), 0.9);
+				} else {
+					Kernels.momentumStep(learningRate, gradients.getWeightGradients()[i], weightMomentum[i], 1, layer.getWeights(), 0.9);
 				}
 			}
 			trainingError = calculateAverageError(trainingData);
@@ -73,90 +91,35 @@ public class Trainer {
 		return new TrainingResult(trainingError, testingError, epochs, trainingError < epsilon);
 	}
 
-	private void performBackpropogation(double[] data) {
-		Neuron[][] neuralData = network.getNeuralData();
-		double[][] neuralOutputs = new double[network.getNeuralData().length][];
-		double[][] neuralDeltas = new double[network.getNeuralData().length][];
-
-		double[][] trial = splitArray(data, network.getInputNeurons());
-
-		double[] input =  trial[0];
-		double[] target = trial[1];
-
-		{
-			double[] lastLayer = trial[0];
-			for (int i = 0; i<neuralOutputs.length; i++) {
-				neuralOutputs[i] = new double[network.getNeuralData()[i].length];
-				for (int j = 0; j<neuralOutputs[i].length; j++) {
-					neuralOutputs[i][j] = neuralData[i][j].getOutput(lastLayer);
-				}
-				lastLayer = neuralOutputs[i];
-			}
-		}
-
-		for (int i = neuralOutputs.length-1; i>=0; i--) {
-			neuralDeltas[i] = new double[network.getNeuralData()[i].length];
-			for (int j = 0; j<neuralOutputs[i].length; j++) {
-				Neuron neuron = neuralData[i][j];
-				double output = neuralOutputs[i][j];
-				double deltaWeight;
-				if (i == neuralOutputs.length-1) { //Last Hidden -> Output Layer Connection Delta Weight
-					deltaWeight = neuron.getDerivativeFunction().apply(output) * (target[j] - output); //Derivative of error squared (Chain rule). 2 ignored b/c of later multiplied constant
-				} else { //Layer -> Hidden Layer Connection Delta Weight
-					final int iVal = i;
-					final int jVal = j;
-					double sum = IntStream.range(0, neuralOutputs[i+1].length).mapToDouble((idx)->neuralData[iVal+1][idx].getWeights()[jVal] * neuralDeltas[iVal+1][idx]).sum();
-					deltaWeight = neuron.getDerivativeFunction().apply(output) * sum;
-				}
-				neuralDeltas[i][j] = deltaWeight;
-				//New weight = oldWeight + k * output(source) * deltaWeight(thisNode)
-				learningMomentum[i][j][0] += learningRate * deltaWeight;
-				for (int k = 0; k < neuron.getWeights().length; k++) {
-					learningMomentum[i][j][k+1] += learningRate * (i > 0 ? neuralOutputs[i-1][k] : input[k]) * deltaWeight;
-					//neuron.getWeights()[k] += learningRate * (i > 0 ? neuralOutputs[i-1][k] : input[k]) * deltaWeight;
-				}
-				//neuron.setBias(neuron.getBias() + learningRate * deltaWeight);
-			}
-		}
-		//System.out.println(Arrays.deepToString(neuralOutputs));
-	} 
-	//Output neurons: constant * FromOutput * error
-	//Hidden neurons: constant * FromOutput * error
-
-	private double[][] splitArray(double[] arr, int lengthFirst) {
-		double[][] output = new double[][] {new double[lengthFirst], new double[arr.length-lengthFirst]};
-
-		System.arraycopy(arr, 0, output[0], 0, lengthFirst);
-		System.arraycopy(arr, lengthFirst, output[1], 0, arr.length - lengthFirst);
-
-		return output;
-	}
-
 	//Basically Standard Deviation
-	private double calculateError(double[] inputs, double[] desiredOutputs) {
-		double[] outputs = network.testAll(inputs);
-		double error = 0;
-
-		for (int i = 0; i<outputs.length; i++) {
-			double err = outputs[i] - desiredOutputs[i];
-			error += (err*err);
-		}
-
-		return error/outputs.length/outputs.length;
-	}
-
 	private double calculateAverageError(double[][] dataSet) {
 		if (dataSet == null || dataSet.length == 0) return 0;
 
 		double totalError = 0;
-		for (int i = 0; i<dataSet.length; i++) {
-			double[][] arr = splitArray(dataSet[i], network.getInputNeurons());
-			totalError += calculateError(arr[0], arr[1]);
+		//Evaluate the data set in batches
+		for (int start = 0; start<dataSet.length; start += evaluator.getMaxBatchSize()) {
+			int count = Math.min(evaluator.getMaxBatchSize(), dataSet.length - start);
+			for (int b = 0; b<count; b++) {
+				evaluator.setInput(b, dataSet[start + b], 0);
+			}
+			evaluator.evaluate(count);
+			for (int b = 0; b<count; b++) {
+				totalError += evaluator.calculateError(b, dataSet[start + b], network.getInputNeurons());
+			}
 		}
 
 		return Math.sqrt(totalError/dataSet.length);
 	} 
 	
+	/**
+	 * Shut down the threads that the gradients are calculated on
+	 * The trainer cannot train after it has been closed
+	 */
+	@Override
+	public void close() {
+		backpropogation.close();
+	}
+
 	public static <T> T[] shuffle(T[] arr) {
 		for (int i = 0; i<arr.length; i++) {
 			int x = NeuralNetwork.rand.nextInt(arr.length);
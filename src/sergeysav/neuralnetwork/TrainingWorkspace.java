@@ -0,0 +1,298 @@
+package sergeysav.neuralnetwork;
+
+import java.util.Arrays;
+
+import sergeysav.linalg.Kernels;
+
+/**
+ * Preallocated buffers for performing backpropogation on a neural network
+ *
+ * A workspace holds the outputs and deltas of every layer along with gradient accumulators for every weight and bias
+ * so that training on a sample allocates nothing. A workspace must only be used by one thread at a time.
+ *
+ * @author sergeys
+ *
+ */
+public class TrainingWorkspace {
+
+	//The network being trained
+	private NeuralNetwork network;
+
+	//The outputs of each layer for the last sample
+	private double[][] outputs;
+
+	//The deltas of each layer for the last sample
+	private double[][] deltas;
+
+	//The accumulated gradients of the weights of each layer
+	//The gradients are summed in double precision even for layers stored as floats, so small contributions are not lost as the sum grows
+	private double[][] weightGradients;
+
+	//The accumulated gradients of the biases of each layer
+	private double[][] biasGradients;
+
+	//The non-zero inputs of the last sample
+	private SparseVector sparseInput;
+
+	//The accumulated error of the samples since the last clear
+	private double error;
+
+	//The number of samples accumulated since the last clear
+	private int count;
+
+	/**
+	 * Create a new workspace for a given network
+	 *
+	 * @param network the network that this workspace will train
+	 */
+	public TrainingWorkspace(NeuralNetwork network) {
+		this.network = network;
+		Layer[] layers = network.getLayers();
+		outputs = new double[layers.length][];
+		deltas = new double[layers.length][];
+		weightGradients = new double[layers.length][];
+		biasGradients = new double[layers.length][];
+		sparseInput = new SparseVector(network.getInputNeurons());
+		for (int i = 0; i<layers.length; i++) {
+			outputs[i] = new double[layers[i].getOutputs()];
+			deltas[i] = new double[layers[i].getOutputs()];
+			weightGradients[i] = new double[layers[i].getWeightCount()];
+			biasGradients[i] = new double[layers[i].getOutputs()];
+		}
+	}
+
+	/**
+	 * Evaluate the network for an input stored inside of a larger array
+	 *
+	 * If few of the inputs are non-zero, as with one-hot encodings, the first layer only reads the weights of the active inputs
+	 *
+	 * @param data the array containing the input
+	 * @param inputOffset the index of the first input value
+	 * @return the output layer, which is overwritten by the next call
+	 */
+	public double[] forward(double[] data, int inputOffset) {
+		Layer[] layers = network.getLayers();
+		sparseInput.gather(data, inputOffset);
+		if (sparseInput.isSparse()) {
+			layers[0].forward(sparseInput, outputs[0]);
+		} else {
+			layers[0].forward(data, inputOffset, outputs[0]);
+		}
+		for (int i = 1; i<layers.length; i++) {
+			layers[i].forward(outputs[i-1], 0, outputs[i]);
+		}
+		return outputs[layers.length-1];
+	}
+
+	/**
+	 * Calculate the error of the network for a sample
+	 *
+	 * @param data the array containing the sample
+	 * @param inputOffset the index of the first input value
+	 * @param targetOffset the index of the first target output value
+	 * @return the mean squared error divided by the number of outputs
+	 */
+	public double calculateError(double[] data, int inputOffset, int targetOffset) {
+		double[] result = forward(data, inputOffset);
+		double err = 0;
+		for (int j = 0; j<result.length; j++) {
+			double e = result[j] - data[targetOffset + j];
+			err += e*e;
+		}
+		return err/result.length/result.length;
+	}
+
+	/**
+	 * Perform backpropogation for a single sample and add its gradients to the accumulators
+	 *
+	 * The gradients point in the direction that reduces the error, so they should be added to the weights
+	 *
+	 * @param data the array containing the sample
+	 * @param inputOffset the index of the first input value
+	 * @param targetOffset the index of the first target output value
+	 * @return the error of this sample
+	 * @see TrainingWorkspace#calculateError(double[], int, int)
+	 */
+	public double backpropogate(double[] data, int inputOffset, int targetOffset) {
+		Layer[] layers = network.getLayers();
+		double err = computeDeltas(data, inputOffset, targetOffset);
+
+		for (int i = 0; i<layers.length; i++) {
+			int inputs = layers[i].getInputs();
+			double[] weightGradient = weightGradients[i];
+			double[] biasGradient = biasGradients[i];
+			double[] delta = deltas[i];
+
+			//The inputs of this layer
+			double[] prev = i > 0 ? outputs[i-1] : data;
+			int prevOffset = i > 0 ? 0 : inputOffset;
+
+			//New weight = oldWeight + k * output(source) * deltaWeight(thisNode)
+			Kernels.axpy(1, delta, biasGradient);
+			if (i == 0 && sparseInput.isSparse()) {
+				//Only the weights of the active inputs have a gradient
+				Kernels.sparseOuterProduct(1, delta, 0, sparseInput.getIndices(), sparseInput.getValues(), sparseInput.size(), weightGradient, delta.length, inputs);
+			} else {
+				Kernels.outerProduct(1, delta, 0, prev, prevOffset, weightGradient, delta.length, inputs);
+			}
+		}
+
+		error += err;
+		count++;
+		return err;
+	}
+
+	/**
+	 * Evaluate the network for a sample and calculate the delta of every neuron without accumulating any gradients
+	 *
+	 * The gradient of the weights of layer i is the outer product of its deltas and its inputs,
+	 * which are the outputs of layer i-1 or the sample for the first layer
+	 *
+	 * @param data the array containing the sample
+	 * @param inputOffset the index of the first input value
+	 * @param targetOffset the index of the first target output value
+	 * @return the error of this sample
+	 * @see TrainingWorkspace#getDeltas()
+	 */
+	public double computeDeltas(double[] data, int inputOffset, int targetOffset) {
+		Layer[] layers = network.getLayers();
+		int last = layers.length-1;
+
+		forward(data, inputOffset);
+
+		//Last Hidden -> Output Layer Connection Delta Weight
+		double[] output = outputs[last];
+		double[] delta = deltas[last];
+		double err = 0;
+		for (int j = 0; j<output.length; j++) {
+			double e = data[targetOffset + j] - output[j];
+			err += e*e;
+			delta[j] = e; //Derivative of error squared (Chain rule). 2 ignored b/c of later multiplied constant
+		}
+		err = err/output.length/output.length;
+		layers[last].getActivation().multiplyDerivative(output, delta, 0, delta.length);
+
+		//Layer -> Hidden Layer Connection Delta Weight
+		for (int i = last; i>0; i--) {
+			Layer layer = layers[i];
+			int inputs = layer.getInputs();
+			delta = deltas[i];
+
+			//The deltas of the previous layer are the transposed weights times the deltas of this layer
+			double[] prevDelta = deltas[i-1];
+			Arrays.fill(prevDelta, 0);
+			if (layer.getPrecision() == Precision.FLOAT) {
+				float[] weights = layer.getFloatWeights();
+				for (int j = 0; j<delta.length; j++) {
+					Kernels.axpy(delta[j], weights, j * inputs, prevDelta, 0, inputs);
+				}
+			} else {
+				double[] weights = layer.getWeights();
+				for (int j = 0; j<delta.length; j++) {
+					Kernels.axpy(delta[j], weights, j * inputs, prevDelta, 0, inputs);
+				}
+			}
+			layers[i-1].getActivation().multiplyDerivative(outputs[i-1], prevDelta, 0, inputs);
+		}
+
+		return err;
+	}
+
+	/**
+	 * Add the accumulated gradients, error and sample count of another workspace to this one
+	 *
+	 * @param other a workspace for the same network
+	 */
+	public void add(TrainingWorkspace other) {
+		for (int i = 0; i<weightGradients.length; i++) {
+			Kernels.axpy(1, other.weightGradients[i], weightGradients[i]);
+			Kernels.axpy(1, other.biasGradients[i], biasGradients[i]);
+		}
+		error += other.error;
+		count += other.count;
+	}
+
+	/**
+	 * Reset the gradient accumulators to zero
+	 */
+	public void clear() {
+		for (int i = 0; i<weightGradients.length; i++) {
+			Arrays.fill(weightGradients[i], 0);
+			Arrays.fill(biasGradients[i], 0);
+		}
+		error = 0;
+		count = 0;
+	}
+
+	/**
+	 * Get the accumulated gradients of the weights
+	 *
+	 * @return the gradient of each layer's weight matrix in double precision whatever the precision of the layer
+	 */
+	public double[][] getWeightGradients() {
+		return weightGradients;
+	}
+
+	/**
+	 * Get the accumulated gradients of the biases
+	 *
+	 * @return the gradient of each layer's biases
+	 */
+	public double[][] getBiasGradients() {
+		return biasGradients;
+	}
+
+	/**
+	 * Get the accumulated error of the samples since the last clear
+	 *
+	 * @return the sum of the errors
+	 */
+	public double getError() {
+		return error;
+	}
+
+	/**
+	 * Get the number of samples since the last clear
+	 *
+	 * @return the number of samples
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the outputs of each layer for the last sample
+	 *
+	 * @return the outputs of each layer, which are overwritten by the next sample
+	 */
+	public double[][] getOutputs() {
+		return outputs;
+	}
+
+	/**
+	 * Get the deltas of each layer for the last sample
+	 *
+	 * @return the deltas of each layer, which are overwritten by the next sample
+	 */
+	public double[][] getDeltas() {
+		return deltas;
+	}
+
+	/**
+	 * Get the non-zero inputs of the last sample
+	 *
+	 * @return the inputs as a sparse vector, which is overwritten by the next sample
+	 */
+	public SparseVector getSparseInput() {
+		return sparseInput;
+	}
+
+	/**
+	 * Get the network that this workspace trains
+	 *
+	 * @return the network
+	 */
+	public NeuralNetwork getNetwork() {
+		return network;
+	}
+}
@@ -0,0 +1,271 @@
+package sergeysav.neuralnetwork.chess;
+
+/**
+ * A class containing precomputed attack tables for bitboards
+ *
+ * A bitboard is a long with one bit for each square of the board.
+ * Square row * 8 + col is bit row * 8 + col, so a1 is bit 0, h1 is bit 7 and h8 is bit 63.
+ *
+ * Knight, king and pawn attacks are looked up directly by square.
+ * Sliding attacks use kindergarten bitboards: the occupied squares of a line through the square
+ * (excluding the edges, which never block anything beyond them) are gathered into 6 bits with a single multiplication,
+ * and those 6 bits index a table of the attacks along that line.
+ *
+ * @author sergeys
+ *
+ */
+public class Bitboards {
+
+	/**
+	 * The squares of the first column
+	 */
+	public static final long COLUMN_A = 0x0101010101010101L;
+
+	/**
+	 * The squares of the last column
+	 */
+	public static final long COLUMN_H = COLUMN_A << 7;
+
+	/**
+	 * The squares of the first row
+	 */
+	public static final long ROW_1 = 0xFFL;
+
+	/**
+	 * The squares of the last row
+	 */
+	public static final long ROW_8 = ROW_1 << 56;
+
+	//Gathers one bit from each column of a row or diagonal into the top 6 bits
+	private static final long COLUMN_B = COLUMN_A << 1;
+
+	//Gathers the bits of the first column, ranks 2 to 7, into the top 6 bits
+	private static final long DIAGONAL_C2_H7 = 0x0080402010080400L;
+
+	private static final long[] KNIGHT_ATTACKS = new long[64];
+	private static final long[] KING_ATTACKS = new long[64];
+
+	//Indexed by [white ? 0 : 1][square]
+	private static final long[][] PAWN_ATTACKS = new long[2][64];
+
+	//The inner squares of each line through a square
+	private static final long[] ROW_MASKS = new long[64];
+	private static final long[] COLUMN_MASKS = new long[64];
+	private static final long[] DIAGONAL_MASKS = new long[64];
+	private static final long[] ANTI_DIAGONAL_MASKS = new long[64];
+
+	//The squares strictly between two squares on a shared row, column or diagonal, indexed by [square][square]
+	private static final long[][] BETWEEN = new long[64][64];
+
+	//Every square of the row, column or diagonal through two squares, indexed by [square][square]
+	private static final long[][] LINES = new long[64][64];
+
+	//The attacks along each line for every occupancy of its inner squares, indexed by [square][occupancy index]
+	private static final long[][] ROW_ATTACKS = new long[64][64];
+	private static final long[][] COLUMN_ATTACKS = new long[64][64];
+	private static final long[][] DIAGONAL_ATTACKS = new long[64][64];
+	private static final long[][] ANTI_DIAGONAL_ATTACKS = new long[64][64];
+
+	static {
+		int[][] knightSteps = {{2, 1}, {2, -1}, {1, 2}, {1, -2}, {-1, 2}, {-1, -2}, {-2, 1}, {-2, -1}};
+		int[][] kingSteps = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}, {1, 1}, {1, -1}, {-1, 1}, {-1, -1}};
+
+		for (int sq = 0; sq<64; sq++) {
+			int row = sq >> 3;
+			int col = sq & 7;
+
+			KNIGHT_ATTACKS[sq] = steps(row, col, knightSteps);
+			KING_ATTACKS[sq] = steps(row, col, kingSteps);
+			PAWN_ATTACKS[0][sq] = steps(row, col, new int[][] {{1, 1}, {1, -1}});
+			PAWN_ATTACKS[1][sq] = steps(row, col, new int[][] {{-1, 1}, {-1, -1}});
+
+			ROW_MASKS[sq] = ray(row, col, 0, 1, 0) & ~(COLUMN_A | COLUMN_H) & ~bit(sq);
+			COLUMN_MASKS[sq] = ray(row, col, 1, 0, 0) & ~(ROW_1 | ROW_8) & ~bit(sq);
+			DIAGONAL_MASKS[sq] = ray(row, col, 1, 1, 0) & ~(COLUMN_A | COLUMN_H | ROW_1 | ROW_8) & ~bit(sq);
+			ANTI_DIAGONAL_MASKS[sq] = ray(row, col, 1, -1, 0) & ~(COLUMN_A | COLUMN_H | ROW_1 | ROW_8) & ~bit(sq);
+
+			int[][] directions = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+			for (int[] d : directions) {
+				long line = ray(row, col, d[0], d[1], 0) | bit(sq);
+				for (int direction = 1; direction >= -1; direction -= 2) {
+					long between = 0;
+					int r = row + d[0] * direction;
+					int c = col + d[1] * direction;
+					while (r >= 0 && r < 8 && c >= 0 && c < 8) {
+						BETWEEN[sq][square(r, c)] = between;
+						LINES[sq][square(r, c)] = line;
+						between |= bit(square(r, c));
+						r += d[0] * direction;
+						c += d[1] * direction;
+					}
+				}
+			}
+
+			//Visit every occupancy of the inner squares of each line
+			long occupied = 0;
+			do {
+				ROW_ATTACKS[sq][lineIndex(occupied)] = ray(row, col, 0, 1, occupied);
+				occupied = (occupied - ROW_MASKS[sq]) & ROW_MASKS[sq];
+			} while (occupied != 0);
+			do {
+				COLUMN_ATTACKS[sq][columnIndex(occupied, col)] = ray(row, col, 1, 0, occupied);
+				occupied = (occupied - COLUMN_MASKS[sq]) & COLUMN_MASKS[sq];
+			} while (occupied != 0);
+			do {
+				DIAGONAL_ATTACKS[sq][lineIndex(occupied)] = ray(row, col, 1, 1, occupied);
+				occupied = (occupied - DIAGONAL_MASKS[sq]) & DIAGONAL_MASKS[sq];
+			} while (occupied != 0);
+			do {
+				ANTI_DIAGONAL_ATTACKS[sq][lineIndex(occupied)] = ray(row, col, 1, -1, occupied);
+				occupied = (occupied - ANTI_DIAGONAL_MASKS[sq]) & ANTI_DIAGONAL_MASKS[sq];
+			} while (occupied != 0);
+		}
+	}
+
+	/**
+	 * Get the bitboard of a single square
+	 *
+	 * @param square the square
+	 * @return a bitboard with only that square set
+	 */
+	public static long bit(int square) {
+		return 1L << square;
+	}
+
+	/**
+	 * Get the square of a row and column
+	 *
+	 * @param row the row from 0 to 7
+	 * @param col the column from 0 to 7
+	 * @return the square
+	 */
+	public static int square(int row, int col) {
+		return row * 8 + col;
+	}
+
+	/**
+	 * Get the squares attacked by a knight
+	 *
+	 * @param square the square of the knight
+	 * @return the attacked squares
+	 */
+	public static long knightAttacks(int square) {
+		return KNIGHT_ATTACKS[square];
+	}
+
+	/**
+	 * Get the squares attacked by a king
+	 *
+	 * @param square the square of the king
+	 * @return the attacked squares
+	 */
+	public static long kingAttacks(int square) {
+		return KING_ATTACKS[square];
+	}
+
+	/**
+	 * Get the squares attacked diagonally by a pawn
+	 *
+	 * @param white true if the pawn is white
+	 * @param square the square of the pawn
+	 * @return the attacked squares
+	 */
+	public static long pawnAttacks(boolean white, int square) {
+		return PAWN_ATTACKS[white ? 0 : 1][square];
+	}
+
+	/**
+	 * Get the squares attacked by a rook
+	 *
+	 * @param square the square of the rook
+	 * @param occupied every occupied square
+	 * @return the attacked squares, including the first blocker in each direction
+	 */
+	public static long rookAttacks(int square, long occupied) {
+		return ROW_ATTACKS[square][lineIndex(occupied & ROW_MASKS[square])] |
+				COLUMN_ATTACKS[square][columnIndex(occupied & COLUMN_MASKS[square], square & 7)];
+	}
+
+	/**
+	 * Get the squares attacked by a bishop
+	 *
+	 * @param square the square of the bishop
+	 * @param occupied every occupied square
+	 * @return the attacked squares, including the first blocker in each direction
+	 */
+	public static long bishopAttacks(int square, long occupied) {
+		return DIAGONAL_ATTACKS[square][lineIndex(occupied & DIAGONAL_MASKS[square])] |
+				ANTI_DIAGONAL_ATTACKS[square][lineIndex(occupied & ANTI_DIAGONAL_MASKS[square])];
+	}
+
+	/**
+	 * Get the squares attacked by a queen
+	 *
+	 * @param square the square of the queen
+	 * @param occupied every occupied square
+	 * @return the attacked squares, including the first blocker in each direction
+	 */
+	public static long queenAttacks(int square, long occupied) {
+		return rookAttacks(square, occupied) | bishopAttacks(square, occupied);
+	}
+
+	/**
+	 * Get the squares between two squares
+	 *
+	 * @param a the first square
+	 * @param b the second square
+	 * @return the squares strictly between them, or 0 if they do not share a row, column or diagonal
+	 */
+	public static long between(int a, int b) {
+		return BETWEEN[a][b];
+	}
+
+	/**
+	 * Get the line through two squares
+	 *
+	 * @param a the first square
+	 * @param b the second square
+	 * @return every square of the row, column or diagonal through both squares, or 0 if they do not share one
+	 */
+	public static long line(int a, int b) {
+		return LINES[a][b];
+	}
+
+	//A row or diagonal has at most one square in each column, so multiplying by the B column
+	//stacks columns B to G of the line into the top 6 bits without any carries
+	private static int lineIndex(long line) {
+		return (int) ((line * COLUMN_B) >>> 58);
+	}
+
+	//Shift the column onto the A column and turn it into a row with the C2-H7 diagonal
+	private static int columnIndex(long column, int col) {
+		return (int) (((column >>> col) * DIAGONAL_C2_H7) >>> 58);
+	}
+
+	private static long steps(int row, int col, int[][] steps) {
+		long result = 0;
+		for (int[] step : steps) {
+			int r = row + step[0];
+			int c = col + step[1];
+			if (r >= 0 && r < 8 && c >= 0 && c < 8) result |= bit(square(r, c));
+		}
+		return result;
+	}
+
+	//Walk a line through a square in both directions, stopping after the first occupied square
+	private static long ray(int row, int col, int dr, int dc, long occupied) {
+		long result = 0;
+		for (int direction = 1; direction >= -1; direction -= 2) {
+			int r = row + dr * direction;
+			int c = col + dc * direction;
+			while (r >= 0 && r < 8 && c >= 0 && c < 8) {
+				long b = bit(square(r, c));
+				result |= b;
+				if ((occupied & b) != 0) break;
+				r += dr * direction;
+				c += dc * direction;
+			}
+		}
+		return result;
+	}
+}
@@ -5,18 +5,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Scanner;
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
-import java.util.function.Supplier;
-import java.util.stream.Stream;
 
+import sergeysav.neuralnetwork.Activation;
 import sergeysav.neuralnetwork.NeuralNetwork;
+import sergeysav.neuralnetwork.Precision;
+import sergeysav.neuralnetwork.SampleReader;
 import sergeysav.neuralnetwork.chess.ChessTrainer.TrainingResult;
 
 /*
@@ -31,6 +29,10 @@ public class ChessAIMain {
 
 	private static double LEARNING_K = 0.0005;
 	private static double EPSILON = 1e-8;
+	private static int BATCH_SIZE = 100;
+	private static int WORKERS = Runtime.getRuntime().availableProcessors();
+	private static boolean ASYNCHRONOUS = false; //Use Hogwild style lock-free training instead of synchronous batches
+	private static Precision PRECISION = Precision.DOUBLE; //The precision of new networks, FLOAT halves the memory traffic of training. Loaded networks keep the precision they were saved with
 	
 	private static int backupDo;
 
@@ -52,20 +54,29 @@ public class ChessAIMain {
 		}
 
 		print("Initializing cases");
-		File casesDirectory = new File("cases");
-
-		List<File> trainingFiles = new ArrayList<File>();
-		List<File> testingFiles = new ArrayList<File>();
-
-		for (File pgnFile : casesDirectory.listFiles()) {
-			if (!pgnFile.isDirectory() && !pgnFile.isHidden() && pgnFile.getName().endsWith(".case")) {
-				if (Math.random() <= trainingRatio) {
-					trainingFiles.add(pgnFile);
-				} else {
-					testingFiles.add(pgnFile);
-				}
+		ChessCorpus corpus;
+		try {
+			corpus = new ChessCorpus(new File("cases"));
+		} catch (IOException e) {
+			print("Could not open the corpus. Run ChessPreprocessingMain first.");
+			throw new UncheckedIOException(e);
+		}
+		if (corpus.getShards() == 0) throw new FileNotFoundException("There are no corpus shards in the cases directory. Run ChessPreprocessingMain first.");
+
+		//Split the cases into training and testing cases by index
+		int[] caseIndices = new int[corpus.size()];
+		int trainingCases = 0;
+		int testingCases = corpus.size();
+		for (int i = 0; i<corpus.size(); i++) {
+			if (Math.random() <= trainingRatio) {
+				caseIndices[trainingCases++] = i;
+			} else {
+				caseIndices[--testingCases] = i;
 			}
 		}
+		int[] trainingIndices = Arrays.copyOfRange(caseIndices, 0, trainingCases);
+		int[] testingIndices = Arrays.copyOfRange(caseIndices, testingCases, caseIndices.length);
+		print(trainingIndices.length + " training cases and " + testingIndices.length + " testing cases");
 
 		ChessStore loaded = null;
 
@@ -78,29 +89,17 @@ public class ChessAIMain {
 		ChessTrainer trainer;
 		int startEpoch;
 		
-		class DataSupplier implements Supplier<Stream<double[]>> {
-			private List<File> files;
-			public DataSupplier(List<File> files) {
-				this.files = files;
-			}
-			@Override
-			public Stream<double[]> get() {
-				Collections.shuffle(files);
-				
-				return trainingFiles.stream().map(ChessAIMain::readArray);
-			}
-		}
-
-		Supplier<Stream<double[]>> trainingData = new DataSupplier(trainingFiles);
-		Supplier<Stream<double[]>> testingData = new DataSupplier(testingFiles);
+		//Decode each record straight out of the mapped corpus into the buffer of the thread reading it
+		SampleReader trainingData = (i, buffer)->corpus.read(trainingIndices[i], buffer);
+		SampleReader testingData = (i, buffer)->corpus.read(testingIndices[i], buffer);
 
 		if (loaded == null) {
 			print("Creating Neural Network");
 			//Create a new neural network
-			network = new NeuralNetwork(true, 384, 384, 361, 339, 316, 293, 270, 248, 225, 202, 179, 134); //384 inputs, 16 hidden layers of size 200, 134 outputs (128 tiles + 6 upgrade types)
+			network = new NeuralNetwork(Activation.FANCY_TANH, Activation.FANCY_TANH, PRECISION, 384, 384, 361, 339, 316, 293, 270, 248, 225, 202, 179, 134); //384 inputs, 16 hidden layers of size 200, 134 outputs (128 tiles + 6 upgrade types)
 			
 			print("Creating Network Trainer");
-			trainer = new ChessTrainer(LEARNING_K, trainingData, testingData, network, EPSILON);
+			trainer = new ChessTrainer(LEARNING_K, trainingData, trainingIndices.length, testingData, testingIndices.length, network, EPSILON, BATCH_SIZE, WORKERS);
 
 			startEpoch = 0;
 		} else {
@@ -110,7 +109,7 @@ public class ChessAIMain {
 
 			trainer = loaded.trainer;
 
-			trainer.init(LEARNING_K, trainingData, testingData, network, EPSILON);
+			trainer.init(LEARNING_K, trainingData, trainingIndices.length, testingData, testingIndices.length, network, EPSILON, BATCH_SIZE, WORKERS);
 			startEpoch = loaded.getEpoch();
 
 			loaded = null;
@@ -127,13 +126,18 @@ public class ChessAIMain {
 		while (trainer.isNextEpochNeeded()) {
 			print("Epoch " + (store.getEpoch()+1) + " starting");
 			backupDo = 0;
-			trainer.performEpoch(()->{
+			Runnable backup = ()->{
 				if (backupDo % 10 == 0) {
 					store.save();
 					backupDo %= 10;
 				}
 				backupDo++;
-			});
+			};
+			if (ASYNCHRONOUS) {
+				trainer.performAsynchronousEpoch(WORKERS, backup);
+			} else {
+				trainer.performEpoch(backup);
+			}
 			print("Epoch completed");
 			store.setEpoch(store.getEpoch()+1);;
 			store.save(); 
@@ -144,105 +148,7 @@ public class ChessAIMain {
 		print("Training Completed");
 		TrainingResult result = trainer.getResult();
 		print("Took " + result.epochs + " epochs");
-	}
-	
-	private static double[] readArray(File file) {
-		try (Scanner scan = new Scanner(file)) {
-			String line = scan.nextLine();
-			line = line.substring(1, line.length()-1);
-			String[] bits = line.split(", ");
-			double[] arr = new double[bits.length];
-			for (int i = 0; i<bits.length; i++) {
-				arr[i] = Double.parseDouble(bits[i]);
-			}
-			return arr;
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		return new double[]{};
-	}
-
-	private static void readTranscripts(File file, List<Transcript> transcripts) {
-		int transcript = 0;
-		try (Scanner scan = new Scanner(file)) {
-			Transcript t = null;
-			String moveList = null;
-			while(scan.hasNextLine()) {
-				String line = scan.nextLine();
-
-				if (line.startsWith("[Event \"")) {
-					if (t != null) {
-						transcript++;
-						try {
-							if (moveList != null) {
-								populateTranscript(t, moveList);
-								moveList = null;
-								transcripts.add(t);
-							}
-						} catch (Exception e) {
-							System.err.println("Error reading " + file.getName() + "#" + transcript);
-							e.printStackTrace();
-						}
-					}
-					t = new Transcript();
-				}
-				if (line.startsWith("1.")) {
-					moveList = "";
-				}
-				if (moveList != null) moveList += line + " ";
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-
-	private static void populateTranscript(Transcript t, String moveList) {
-		String old;
-		do {
-			old = moveList;
-			moveList  = moveList.replaceAll("(?:\\([^\\(\\)]*\\))", ""); //Remove areas enclosed in parenthesis
-			moveList  = moveList.replaceAll("(?:\\{[^\\{\\}]*\\})", ""); //Remove areas enclosed in braces
-		} while (!old.equals(moveList));
-
-		moveList = moveList.replaceAll("(?:\\d+\\.\\.\\.)", ""); //Remove all elipses
-
-		//if (moveList.contains("+")) checks++;
-		//if (moveList.contains("#")) checkmates++;
-
-		String[] moved = moveList.split("\\d*[\\\\.]\\s*");
-
-		ChessBoard board = new ChessBoard();
-		LinkedList<String> moves = t.getMoves();
-
-		for (int i = 1; i<moved.length; i++) {
-			if (i == moved.length - 1) {
-				String[] parts = moved[i].split("\\s+");
-				if (parts.length > 2) {
-					String movew = board.getMoveConverted(parts[0], true);
-					moves.add(movew);
-					board.applyConvertedMove(movew);
-					String moveb = board.getMoveConverted(parts[1], false);
-					moves.add(moveb);
-					board.applyConvertedMove(moveb);
-					t.setOutcome(parts[2]);
-				} else {
-					String movew = board.getMoveConverted(parts[0], true);
-					moves.add(movew);
-					board.applyConvertedMove(movew);
-					t.setOutcome(parts[1]);
-				}
-			} else {
-				String[] steps = moved[i].split("\\s+");
-				String movew = board.getMoveConverted(steps[0], true);
-				moves.add(movew);
-				board.applyConvertedMove(movew);
-				String moveb = board.getMoveConverted(steps[1], false);
-				moves.add(moveb);
-				board.applyConvertedMove(moveb);
-			}
-		}
-		//games++;
-		//ChessAIMain.moves += moves.size();
+		trainer.close();
 	}
 
 	public static void print(String arg) {
@@ -1,302 +1,469 @@
 package sergeysav.neuralnetwork.chess;
 
+import static sergeysav.neuralnetwork.chess.Bitboards.bit;
+import static sergeysav.neuralnetwork.chess.Bitboards.square;
+
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import sergeysav.neuralnetwork.SparseVector;
+
+/**
+ * A chess position stored as bitboards
+ *
+ * Each of the twelve kinds of piece has a bitboard of the squares it occupies (see {@link Bitboards}),
+ * and a mailbox of the piece on each square is kept alongside them so that the piece on a square can be found without a search.
+ * The position also knows the castling rights that have not been lost, the en passant square and the side to move.
+ *
+ * Pieces are numbered as in the rest of the chess code, positive for white and negative for black.
+ *
+ * @author sergeys
+ *
+ */
 public class ChessBoard {
-	private static final Pattern matchingPattern;
-	private static final Pattern positionPattern;
 
-	static {
-		String capturePieceType = "([KQRBN])";
-		String optionalCapturePieceType = capturePieceType + "?";
+	public static final int PAWN = 1;
+	public static final int ROOK = 2;
+	public static final int KNIGHT = 3;
+	public static final int BISHOP = 4;
+	public static final int QUEEN = 5;
+	public static final int KING = 6;
+
+	/**
+	 * The most moves that {@link ChessBoard#generateMoves(int[], int)} can write for one position
+	 * No legal position has more than 218 moves
+	 */
+	public static final int MAX_MOVES = 256;
 
-		String groupColumn = "(?:[a-h])";
-		String optionalGroupColumn = groupColumn + "?";
-		String groupRow = "(?:[1-8])";
-		String optionalGroupRow = groupRow + "?";
+	//The letter of each piece type in FEN, starting at PAWN
+	private static final String PIECE_LETTERS = "PRNBQK";
 
-		String captureLocation = "(" + groupColumn + groupRow + ")";
-		String optionalCaptureLocation = "(" + optionalGroupColumn + optionalGroupRow + ")?";
+	//The value returned by getPieceAt for the square skipped by a pawn's double move
+	private static final int ENPASSANT = 7;
 
-		String optionalEqualsGroup = "(?:[=])?";
+	//Castling rights flags
+	private static final int WHITE_KINGSIDE = 1;
+	private static final int WHITE_QUEENSIDE = 2;
+	private static final int BLACK_KINGSIDE = 4;
+	private static final int BLACK_QUEENSIDE = 8;
 
-		String optionalCaptureCapture = "([x])?";
+	//The number of moves that can be made before the undo stacks have to grow
+	private static final int INITIAL_STACK_SIZE = 256;
 
-		String optionalGroupState = "(?:[+#])?";
+	//The castling rights kept when a piece moves from or to each square
+	private static final int[] CASTLING_MASKS = new int[64];
 
-		//									Capture the type		 Capture the from location				        Capture the to location               Capture the type of piece that it became
-		matchingPattern = Pattern.compile(optionalCapturePieceType + optionalCaptureLocation + optionalCaptureCapture + captureLocation + optionalEqualsGroup + optionalCapturePieceType + optionalGroupState);
-		positionPattern = Pattern.compile("([a-h])?([1-8])?");
+	static {
+		Arrays.fill(CASTLING_MASKS, WHITE_KINGSIDE | WHITE_QUEENSIDE | BLACK_KINGSIDE | BLACK_QUEENSIDE);
+		CASTLING_MASKS[square(0, 4)] &= ~(WHITE_KINGSIDE | WHITE_QUEENSIDE);
+		CASTLING_MASKS[square(0, 7)] &= ~WHITE_KINGSIDE;
+		CASTLING_MASKS[square(0, 0)] &= ~WHITE_QUEENSIDE;
+		CASTLING_MASKS[square(7, 4)] &= ~(BLACK_KINGSIDE | BLACK_QUEENSIDE);
+		CASTLING_MASKS[square(7, 7)] &= ~BLACK_KINGSIDE;
+		CASTLING_MASKS[square(7, 0)] &= ~BLACK_QUEENSIDE;
 	}
 
-	//[Row][Col]
-	// ±1 = Pawn
-	// ±2 = Rook
-	// ±3 = Knight
-	// ±4 = Bishop
-	// ±5 = Queen
-	// ±6 = King
-	// ±7 = En passant rule
-	// + = White, - = Black
-	private int[][] board;
-	private int enpassantCol = -1;
-
-	public ChessBoard() {
-		board = new int[8][8];
+	//The squares of each kind of piece: white pieces at type - 1 and black pieces at type + 5
+	private long[] pieces;
 
-		//Set pawns
-		for (int i = 0; i<8; i++) {
-			board[1][i] = 1;
-			board[6][i] = -1;
-		}
+	//The squares of every white and every black piece
+	private long whitePieces;
+	private long blackPieces;
 
-		//Set rooks
-		board[0][0] = 2;
-		board[7][0] = -2;
-		board[0][7] = 2; 
-		board[7][7] = -2;
+	//The piece on each square, or 0 if it is empty
+	private byte[] squares;
 
-		//Set knights
-		board[0][1] = 3;
-		board[7][1] = -3;
-		board[0][6] = 3;
-		board[7][6] = -3;
+	//The castling rights flags that have not been lost
+	private int castling;
 
-		//Set bishops
-		board[0][2] = 4;
-		board[7][2] = -4;
-		board[0][5] = 4;
-		board[7][5] = -4;
+	//The square skipped over by the last double pawn move, or -1
+	private int enpassantSquare = -1;
 
-		//Set kings
-		board[0][4] = 6;
-		board[7][4] = -6;
+	//True if white moves next
+	private boolean whiteMoving = true;
 
-		//Set queens
-		board[0][3] = 5;
-		board[7][3] = -5;
-	}
-	
-	public ChessBoard(ChessBoard toCopy) {
-		board = toCopy.deepCopyBoard();
-		enpassantCol = toCopy.enpassantCol;
-	}
+	//The Zobrist key of the position, which is updated as pieces and state change
+	private long key;
 
-	//Input format: RowCol;RowCol;NewType;CASTLE
-	//CASTLE not required
-	//Assumes the move is legal
-	public void applyConvertedMove(String move) {
+	//The moves that have been made, the state needed to unmake each of them and the key before each of them
+	private int[] moveStack = new int[INITIAL_STACK_SIZE];
+	private int[] undoStack = new int[INITIAL_STACK_SIZE];
+	private long[] keyStack = new long[INITIAL_STACK_SIZE];
 
-		String[] moveParts = move.split(";");
+	//The number of moves on the stacks
+	private int ply;
 
-		int fromRow = Integer.parseInt(moveParts[0].charAt(0) + "");
-		int fromCol = Integer.parseInt(moveParts[0].charAt(1) + "");
+	//The pieces giving check to each king and the pieces pinned to each king, indexed by [white ? 0 : 1]
+	//They are found when first needed and kept until the position changes
+	private long[] checkers = new long[2];
+	private long[] pinned = new long[2];
+	private boolean[] attacksFound = new boolean[2];
 
-		int toRow = Integer.parseInt(moveParts[1].charAt(0) + "");
-		int toCol = Integer.parseInt(moveParts[1].charAt(1) + "");
+	public ChessBoard() {
+		pieces = new long[12];
+		squares = new byte[64];
 
-		int piece = board[fromRow][fromCol];//Integer.parseInt(moveParts[2]);
-		int pieceType = Math.abs(board[fromRow][fromCol]);
-		int team = Math.round(Math.signum(board[fromRow][fromCol]));
+		//Set pawns
+		for (int i = 0; i<8; i++) {
+			put(square(1, i), PAWN);
+			put(square(6, i), -PAWN);
+		}
 
-		boolean doResetEnpassant = true;
+		//Set the back rows
+		int[] backRow = {ROOK, KNIGHT, BISHOP, QUEEN, KING, BISHOP, KNIGHT, ROOK};
+		for (int i = 0; i<8; i++) {
+			put(square(0, i), backRow[i]);
+			put(square(7, i), -backRow[i]);
+		}
 
-		if (pieceType == 1) { //If this is a pawn
-			if (Math.abs(board[toRow][toCol]) == 7) { //If it is moving onto an enpassant stored tile
-				board[toRow + board[toRow][toCol]/7][toCol] = 0; //Kill the pawn that produced the enpassant tile
-			} else if (Math.abs(fromRow - toRow) == 2) { //If it just did the double move thing
-				//Reset the current enpassant tile
-				resetEnpassant(team);
-				doResetEnpassant = false;
+		castling = WHITE_KINGSIDE | WHITE_QUEENSIDE | BLACK_KINGSIDE | BLACK_QUEENSIDE;
+		key ^= getStateKey();
+	}
 
-				//Set an empassant tile
-				board[(toRow + fromRow)/2][toCol] = 7 * team;
-				enpassantCol = toCol;
+	/**
+	 * Create a board from a position in Forsyth-Edwards Notation
+	 * The move clocks are optional and ignored
+	 *
+	 * @throws IllegalArgumentException when the position cannot be read
+	 *
+	 * @param fen the position, such as "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e3 0 1"
+	 */
+	public ChessBoard(String fen) {
+		pieces = new long[12];
+		squares = new byte[64];
+
+		String[] fields = fen.trim().split("\\s+");
+		if (fields.length < 2) throw new IllegalArgumentException("The position " + fen + " needs at least the pieces and the side to move.");
+
+		String[] rows = fields[0].split("/");
+		if (rows.length != 8) throw new IllegalArgumentException("The position " + fen + " has " + rows.length + " rows when 8 were expected.");
+		for (int r = 0; r<8; r++) {
+			//The first row of the position is the last row of the board
+			int row = 7 - r;
+			int col = 0;
+			for (int i = 0; i<rows[r].length(); i++) {
+				char c = rows[r].charAt(i);
+				if (c >= '1' && c <= '8') {
+					col += c - '0';
+					continue;
+				}
+				int type = PIECE_LETTERS.indexOf(Character.toUpperCase(c)) + 1;
+				if (type == 0) throw new IllegalArgumentException("Unknown piece " + c + " in the position " + fen);
+				if (col > 7) throw new IllegalArgumentException("Row " + (row + 1) + " of the position " + fen + " has more than 8 squares.");
+				put(square(row, col++), Character.isUpperCase(c) ? type : -type);
 			}
-		} else if (pieceType == 6) { //If this is a king
-			if (fromCol == 4) {
-				if (doResetEnpassant) resetEnpassant(team);
-				if (toCol == 7) { //Kingside Castle
-					board[toRow][6] = piece;
-					board[toRow][5] = board[toRow][7];
-					board[toRow][7] = 0;
-					board[toRow][4] = 0;
-					return;
-				} else if (toCol == 0) { //Queenside Castle
-					board[toRow][2] = piece;
-					board[toRow][3] = board[toRow][0];
-					board[toRow][0] = 0;
-					board[toRow][4] = 0;
-					return;
+			if (col != 8) throw new IllegalArgumentException("Row " + (row + 1) + " of the position " + fen + " does not have 8 squares.");
+		}
+
+		if (fields[1].equals("w")) whiteMoving = true;
+		else if (fields[1].equals("b")) whiteMoving = false;
+		else throw new IllegalArgumentException("Unknown side to move " + fields[1] + " in the position " + fen);
+
+		if (fields.length > 2) {
+			for (int i = 0; i<fields[2].length(); i++) {
+				switch (fields[2].charAt(i)) {
+				case 'K':
+					castling |= WHITE_KINGSIDE;
+					break;
+				case 'Q':
+					castling |= WHITE_QUEENSIDE;
+					break;
+				case 'k':
+					castling |= BLACK_KINGSIDE;
+					break;
+				case 'q':
+					castling |= BLACK_QUEENSIDE;
+					break;
+				case '-':
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown castling right " + fields[2].charAt(i) + " in the position " + fen);
 				}
 			}
 		}
 
-		if (doResetEnpassant) resetEnpassant(team);
-		board[fromRow][fromCol] = 0;
-		if (moveParts.length > 2 && pieceType == 1 && (team == 1 ? toRow == 7 : team == -1 ? toRow == 0 : false)) {
-			piece = Integer.parseInt(moveParts[2]);
+		if (fields.length > 3 && !fields[3].equals("-")) {
+			String enpassant = fields[3];
+			int col = enpassant.charAt(0) - 'a';
+			int row = enpassant.length() == 2 ? enpassant.charAt(1) - '1' : -1;
+			if (col < 0 || col > 7 || (row != 2 && row != 5)) throw new IllegalArgumentException("Invalid en passant square " + enpassant + " in the position " + fen);
+			enpassantSquare = square(row, col);
 		}
-		board[toRow][toCol] = piece;
+
+		key ^= getStateKey();
+	}
+
+	public ChessBoard(ChessBoard toCopy) {
+		pieces = toCopy.pieces.clone();
+		squares = toCopy.squares.clone();
+		whitePieces = toCopy.whitePieces;
+		blackPieces = toCopy.blackPieces;
+		castling = toCopy.castling;
+		enpassantSquare = toCopy.enpassantSquare;
+		whiteMoving = toCopy.whiteMoving;
+		moveStack = toCopy.moveStack.clone();
+		undoStack = toCopy.undoStack.clone();
+		keyStack = toCopy.keyStack.clone();
+		ply = toCopy.ply;
+		key = toCopy.key;
 	}
 
-	private void resetEnpassant(int ofTeam) {
-		if (enpassantCol >= 0 && enpassantCol < 8) {
-			if (Math.abs(board[ofTeam == -1 ? 2 : 5][enpassantCol]) == 7) {
-				board[ofTeam == -1 ? 2 : 5][enpassantCol] = 0;
+	/**
+	 * Make a move and push it onto the undo stack
+	 * Assumes the move is legal
+	 *
+	 * @param move the move created by this board
+	 */
+	public void makeMove(int move) {
+		int from = Move.getFrom(move);
+		int to = Move.getTo(move);
+		boolean white = Move.isWhite(move);
+		int piece = white ? Move.getPiece(move) : -Move.getPiece(move);
+
+		if (ply == moveStack.length) {
+			moveStack = Arrays.copyOf(moveStack, ply * 2);
+			undoStack = Arrays.copyOf(undoStack, ply * 2);
+			keyStack = Arrays.copyOf(keyStack, ply * 2);
+		}
+		keyStack[ply] = key;
+
+		//Undo state: captured type in bits 0-3, en passant square + 1 in bits 4-10 and castling rights in bits 11-14
+		int undo = ((enpassantSquare + 1) << 4) | (castling << 11);
+		key ^= getStateKey();
+		enpassantSquare = -1;
+
+		if (Move.isCastle(move)) {
+			int home = white ? 0 : 56;
+			boolean kingside = (to & 7) == 7;
+			remove(from);
+			remove(to);
+			put(home + (kingside ? 6 : 2), piece);
+			put(home + (kingside ? 5 : 3), white ? ROOK : -ROOK);
+		} else {
+			//An en passant capture kills the pawn that skipped over the destination
+			int captureSquare = Move.isEnpassant(move) ? to + (white ? -8 : 8) : to;
+			undo |= Math.abs(squares[captureSquare]);
+			remove(captureSquare);
+			remove(from);
+
+			if (Move.getPiece(move) == PAWN && Math.abs(to - from) == 16) { //If it just did the double move thing
+				enpassantSquare = (from + to) / 2;
 			}
-			enpassantCol = -1;
-		}
-	}
-
-	public boolean isLegalMove(String from, String to) {
-		int fromRow = Integer.parseInt(from.charAt(0) + "");
-		int fromCol = Integer.parseInt(from.charAt(1) + "");
-
-		int toRow = Integer.parseInt(to.charAt(0) + "");
-		int toCol = Integer.parseInt(to.charAt(1) + "");
-
-		if ((board[fromRow][fromCol] == 6 && fromRow == 0 && toRow == 0) || (board[fromRow][fromCol] == -6 && fromRow == 7 && toRow == 7) && (board[fromRow][toCol]/2 == board[fromRow][fromCol]/6)) { //If king
-			if (fromCol == 4) {
-				if (toCol == 7) { //Kingside Castle
-					if (board[fromRow][5] != 0 || board[fromRow][6] != 0) {
-						return false;
-					}
-					if (board[fromRow][fromCol] == 6) { //White
-						return !(isWhiteCheck(fromRow, 4) || isWhiteCheck(fromRow, 5) || isWhiteCheck(fromRow, 6) || isWhiteCheck(fromRow, 7));
-					} else { //Black
-						return !(isBlackCheck(fromRow, 4) || isBlackCheck(fromRow, 5) || isBlackCheck(fromRow, 6) || isBlackCheck(fromRow, 7));
-					}
-				} else if (toCol == 0) { //Queenside Castle
-					if (board[fromRow][3] != 0 || board[fromRow][2] != 0 || board[fromRow][1] != 0) {
-						return false;
-					}
-					if (board[fromRow][fromCol] == 6) { //White
-						return !(isWhiteCheck(fromRow, 0) || isWhiteCheck(fromRow, 1) || isWhiteCheck(fromRow, 2) || isWhiteCheck(fromRow, 3) || isWhiteCheck(fromRow, 4));
-					} else { //Black
-						return !(isBlackCheck(fromRow, 0) || isBlackCheck(fromRow, 1) || isBlackCheck(fromRow, 2) || isBlackCheck(fromRow, 3) || isBlackCheck(fromRow, 4));
-					}
-				}
+			int promotion = Move.getPromotion(move);
+			put(to, promotion == 0 ? piece : white ? promotion : -promotion);
+		}
+
+		castling &= CASTLING_MASKS[from] & CASTLING_MASKS[to];
+		whiteMoving = !white;
+		key ^= getStateKey();
+		positionChanged();
+
+		moveStack[ply] = move;
+		undoStack[ply] = undo;
+		ply++;
+	}
+
+	/**
+	 * Take back the last move made
+	 *
+	 * @throws IllegalStateException when no moves have been made
+	 */
+	public void unmakeMove() {
+		if (ply == 0) throw new IllegalStateException("There are no moves to unmake.");
+		ply--;
+		int move = moveStack[ply];
+		int undo = undoStack[ply];
+
+		int from = Move.getFrom(move);
+		int to = Move.getTo(move);
+		boolean white = Move.isWhite(move);
+		int piece = white ? Move.getPiece(move) : -Move.getPiece(move);
+
+		if (Move.isCastle(move)) {
+			int home = white ? 0 : 56;
+			boolean kingside = (to & 7) == 7;
+			remove(home + (kingside ? 6 : 2));
+			remove(home + (kingside ? 5 : 3));
+			put(from, piece);
+			put(to, white ? ROOK : -ROOK);
+		} else {
+			remove(to);
+			put(from, piece);
+			int captured = undo & 15;
+			if (captured != 0) {
+				put(Move.isEnpassant(move) ? to + (white ? -8 : 8) : to, white ? -captured : captured);
 			}
 		}
 
-		return isLegalMove(fromRow + "" + fromCol + ";" + toRow + "" + toCol); 
+		enpassantSquare = ((undo >>> 4) & 127) - 1;
+		castling = (undo >>> 11) & 15;
+		whiteMoving = white;
+		key = keyStack[ply];
+		positionChanged();
+	}
+
+	//Create a move from one square to another with the flags it needs in this position
+	private int createMove(int from, int to, int promotion) {
+		int piece = squares[from];
+		int flags = 0;
+		if (isCastle(from, to)) flags |= Move.CASTLE;
+		if (Math.abs(piece) == PAWN) {
+			if (to == enpassantSquare && (to & 7) != (from & 7)) flags |= Move.EN_PASSANT;
+			if ((bit(to) & (Bitboards.ROW_1 | Bitboards.ROW_8)) == 0) promotion = 0;
+		} else {
+			promotion = 0;
+		}
+		return Move.create(from, to, piece, promotion, flags);
+	}
+
+	private void put(int square, int piece) {
+		long b = bit(square);
+		key ^= Zobrist.piece(piece, square);
+		squares[square] = (byte) piece;
+		pieces[index(piece)] |= b;
+		if (piece > 0) whitePieces |= b;
+		else blackPieces |= b;
+	}
+
+	private void remove(int square) {
+		int piece = squares[square];
+		if (piece == 0) return;
+		long b = ~bit(square);
+		key ^= Zobrist.piece(piece, square);
+		squares[square] = 0;
+		pieces[index(piece)] &= b;
+		whitePieces &= b;
+		blackPieces &= b;
+	}
+
+	private static int index(int piece) {
+		return piece > 0 ? piece - 1 : 5 - piece;
 	}
 
-	//Does not check for Castles
-	private boolean isLegalMove(String move) {
-		String[] moveParts = move.split(";");
+	//Castling is written as the king moving onto its own rook
+	private boolean isCastle(int from, int to) {
+		int piece = squares[from];
+		if (Math.abs(piece) != KING) return false;
+		int home = piece > 0 ? 0 : 56;
+		return from == home + 4 && (to == home || to == home + 7);
+	}
 
-		int fromRow = Integer.parseInt(moveParts[0].charAt(0) + "");
-		int fromCol = Integer.parseInt(moveParts[0].charAt(1) + "");
+	/**
+	 * Check if a move can be made in this position
+	 *
+	 * @param move the move
+	 * @return true if the move is legal for the piece that it moves, whichever side is to move
+	 */
+	public boolean isLegalMove(int move) {
+		int from = Move.getFrom(move);
+		int to = Move.getTo(move);
+		int piece = Move.isWhite(move) ? Move.getPiece(move) : -Move.getPiece(move);
+		int promotion = Move.getPromotion(move);
 
-		int toRow = Integer.parseInt(moveParts[1].charAt(0) + "");
-		int toCol = Integer.parseInt(moveParts[1].charAt(1) + "");
+		//A pawn reaching the last row must become a rook, knight, bishop or queen
+		boolean promoting = Move.getPiece(move) == PAWN && (bit(to) & (Bitboards.ROW_1 | Bitboards.ROW_8)) != 0;
+		if (promoting ? promotion < ROOK || promotion > QUEEN : promotion != 0) return false;
 
-		int minRow = Math.min(fromRow, toRow);
-		int minCol = Math.min(fromCol, toCol);
+		return squares[from] == piece && createMove(from, to, promotion) == move && isLegalMove(from, to);
+	}
 
-		int maxRow = Math.max(fromRow, toRow);
-		int maxCol = Math.max(fromCol, toCol);
+	private boolean isLegalMove(int from, int to) {
+		int piece = squares[from];
+		if (piece == 0) return false;
+		boolean white = piece > 0;
 
-		int piece = board[fromRow][fromCol];//Integer.parseInt(moveParts[2]);
-		int pieceType = Math.abs(piece);
-		int team = Math.round(Math.signum(piece));
+		if (isCastle(from, to)) {
+			return canCastle(white, (to & 7) == 7);
+		}
 
-		if (team == Math.round(Math.signum(board[toRow][toCol]))) {
+		if ((bit(to) & (white ? whitePieces : blackPieces)) != 0) {
 			return false;
 		}
-		
-		if (toRow < 0 || toRow > 7 && toCol < 0 && toCol > 7) {
+
+		if ((getTargets(from) & bit(to)) == 0) {
 			return false;
 		}
 
-		if (team > 0) { // WHITE
-			int enpassantBackup = enpassantCol;
-			int[][] boardBackup = deepCopyBoard();
-			applyConvertedMove(move);
-			boolean check = isWhiteCheck();
-			board = boardBackup;
-			enpassantCol = enpassantBackup;
-			if (check) {
-				return false;
-			}
-		} else { //BLACK
-			int enpassantBackup = enpassantCol;
-			int[][] boardBackup = deepCopyBoard();
-			applyConvertedMove(move);
-			boolean check = isBlackCheck();
-			board = boardBackup;
-			enpassantCol = enpassantBackup;
-			if (check) {
-				return false;
-			}
+		int c = white ? 0 : 1;
+		long kingBit = pieces[index(white ? KING : -KING)];
+		if (kingBit == 0) return true; //Boards without a king cannot be in check
+		int king = Long.numberOfTrailingZeros(kingBit);
+		long occupied = whitePieces | blackPieces;
+		long enemies = white ? blackPieces : whitePieces;
+
+		if (from == king) {
+			//The king cannot step onto an attacked square, including one further along the line of a slider it is moving away from
+			return (getAttackersTo(to, occupied ^ kingBit) & enemies) == 0;
 		}
 
-		if (pieceType == 1) { //Pawn
-			return ((board[toRow][toCol] != 0 && toRow == fromRow + team && (toCol == fromCol + 1 || toCol == fromCol - 1)) || (toCol == fromCol && board[toRow][toCol] == 0 && ((toRow == fromRow + team) || (((fromRow == 1 && team == 1) || (fromRow == 6 && team == -1)) ? toRow == fromRow + 2*team && board[fromRow + team][fromCol] == 0 : false))));
-		} else if (pieceType == 2) { //Rook
-			if (toRow == fromRow) {
-				for (int i = minCol + 1; i < maxCol; i++) {
-					if (board[toRow][i] != 0 && Math.abs(board[toRow][i]) != 7) return false;
-				}
-				return true;
-			} else if (toCol == fromCol) {
-				for (int i = minRow + 1; i < maxRow; i++) {
-					if (board[i][toCol] != 0 && Math.abs(board[i][toCol]) != 7) return false;
-				}
-				return true;
-			} else {
-				return false;
-			}
-		} else if (pieceType == 3) { //Knight
-			int dx = toRow - fromRow;
-			int dy = toCol - fromCol;
-			return dx*dx + dy*dy == 5;
-		} else if (pieceType == 4) { //Bishop
-			int dx = toRow - fromRow;
-			int dy = toCol - fromCol;
-			if (dy != dx && dy != -dx) return false;
-			int m = dy/dx;
-			int startCol = (m < 0 ? maxCol : minCol);
-			for (int i = minRow + 1; i < maxRow; i++) {
-				if (board[i][startCol + m*(i - minRow)] != 0 && board[i][startCol + m*(i - minRow)] != 7) return false;
-			}
-			return true;
-		} else if (pieceType == 5) { //Queen
-			if (toRow == fromRow) {
-				for (int i = minCol + 1; i < maxCol; i++) {
-					if (board[toRow][i] != 0 && Math.abs(board[toRow][i]) != 7) return false;
-				}
-				return true;
-			} else if (toCol == fromCol) {
-				for (int i = minRow + 1; i < maxRow; i++) {
-					if (board[i][toCol] != 0 && Math.abs(board[i][toCol]) != 7) return false;
-				}
-				return true;
-			} else {
-				int dx = toRow - fromRow;
-				int dy = toCol - fromCol;
-				if (dy != dx && dy != -dx) return false;
-				int m = dy/dx;
-				int startCol = (m < 0 ? maxCol : minCol);
-				for (int i = minRow + 1; i < maxRow; i++) {
-					if (board[i][startCol + m*(i - minRow)] != 0 && Math.abs(board[i][startCol + m*(i - minRow)]) != 7) return false;
-				}
-				return true;
+		if (Math.abs(piece) == PAWN && to == enpassantSquare && (to & 7) != (from & 7)) {
+			//Removing two pawns from a row can uncover an attack along it, so test en passant captures by making them
+			makeMove(createMove(from, to, QUEEN));
+			boolean check = isCheck(white);
+			unmakeMove();
+			return !check;
+		}
+
+		findAttacks(white);
+		long check = checkers[c];
+		if (check != 0) {
+			//With two pieces giving check only the king can move
+			if ((check & (check - 1)) != 0) return false;
+			//Otherwise the move has to capture the checking piece or block it
+			if ((bit(to) & (check | Bitboards.between(king, Long.numberOfTrailingZeros(check)))) == 0) return false;
+		}
+
+		//A pinned piece can only move along the line between its king and the pinning piece
+		return (pinned[c] & bit(from)) == 0 || (Bitboards.line(king, from) & bit(to)) != 0;
+	}
+
+	//Get every square that a piece could move to if its king was safe, excluding castles
+	private long getTargets(int from) {
+		int piece = squares[from];
+		boolean white = piece > 0;
+		long occupied = whitePieces | blackPieces;
+
+		switch (Math.abs(piece)) {
+		case PAWN:
+			long enemies = white ? blackPieces : whitePieces;
+			if (enpassantSquare != -1 && (enpassantSquare >> 3) == (white ? 5 : 2)) enemies |= bit(enpassantSquare);
+			long targets = Bitboards.pawnAttacks(white, from) & enemies;
+			long push = (white ? bit(from) << 8 : bit(from) >>> 8) & ~occupied;
+			targets |= push;
+			if (push != 0 && (from >> 3) == (white ? 1 : 6)) {
+				targets |= (white ? push << 8 : push >>> 8) & ~occupied;
 			}
-		} else if (pieceType == 6) { //King
-			int dx = toRow - fromRow;
-			int dy = toCol - fromCol;
-			return dx*dx + dy*dy <= 2;
+			return targets;
+		case ROOK:
+			return Bitboards.rookAttacks(from, occupied);
+		case KNIGHT:
+			return Bitboards.knightAttacks(from);
+		case BISHOP:
+			return Bitboards.bishopAttacks(from, occupied);
+		case QUEEN:
+			return Bitboards.queenAttacks(from, occupied);
+		case KING:
+			return Bitboards.kingAttacks(from);
 		}
+		return 0;
+	}
 
-		return false;
+	private boolean canCastle(boolean white, boolean kingside) {
+		int right = white ? (kingside ? WHITE_KINGSIDE : WHITE_QUEENSIDE) : (kingside ? BLACK_KINGSIDE : BLACK_QUEENSIDE);
+		if ((castling & right) == 0) return false;
+
+		int home = white ? 0 : 56;
+		if (squares[home + 4] != (white ? KING : -KING) || squares[home + (kingside ? 7 : 0)] != (white ? ROOK : -ROOK)) return false;
+
+		//The squares between the king and the rook must be empty
+		long between = (kingside ? 0x60L : 0x0EL) << home;
+		if (((whitePieces | blackPieces) & between) != 0) return false;
+
+		//The king cannot castle out of, through or into check
+		int step = kingside ? 1 : -1;
+		for (int i = 0; i<3; i++) {
+			if (isAttacked(home + 4 + i * step, !white)) return false;
+		}
+		return true;
 	}
 
 	//K = king
@@ -304,327 +471,315 @@ public class ChessBoard {
 	//R = rook
 	//B = bishop
 	//N = knight
-	//Regex String: ([KQRBN])?((?:[a-h])?(?:[1-8])?)?(?:[x])?((?:[a-h])(?:[1-8]))([KQRBN])?(?:[+#])?
-	//Output format: RowCol;RowCol;NewType;CASTLE
-	public String getMoveConverted(String move, boolean whiteTeamMoving) {
-		if (move.startsWith("O-O-O")) { //Queenside castle
-			int row = whiteTeamMoving ? 0 : 7;
-			return row + "" + 4 + ";" + row + "" + 0 + ";" + (6 * (whiteTeamMoving ? 1 : -1)) + ";CASTLE";
-		} else if (move.startsWith("O-O")) { //Kingside castle
-			int row = whiteTeamMoving ? 0 : 7;
-			return row + "" + 4 + ";" + row + "" + 7 + ";" + (6 * (whiteTeamMoving ? 1 : -1)) + ";CASTLE";
+	//Input format: standard algebraic notation such as e4, Nbd7, exd8=Q+ or O-O
+	//Output format: a move packed as described in Move
+	public int getMoveConverted(String move, boolean whiteTeamMoving) {
+		int team = whiteTeamMoving ? 1 : -1;
+
+		if (move.startsWith("O-O")) {
+			boolean kingside = !move.startsWith("O-O-O");
+			if (!canCastle(whiteTeamMoving, kingside)) throw new IllegalArgumentException("Cannot castle " + (kingside ? "kingside" : "queenside"));
+			int home = whiteTeamMoving ? 0 : 56;
+			return Move.create(home + 4, home + (kingside ? 7 : 0), KING * team, 0, Move.CASTLE);
 		}
 
-		Matcher matcher = matchingPattern.matcher(move);
-		matcher.find();
+		//Remove the check and checkmate markers
+		int end = move.length();
+		while (end > 0 && (move.charAt(end-1) == '+' || move.charAt(end-1) == '#')) end--;
 
-		//Get the matching groups from the regex
-		String pieceType = matcher.group(1);
-		String fromSpecifier = matcher.group(2);
-		String capture = matcher.group(3);
-		String toLocation = matcher.group(4);
-		String upgradeType = matcher.group(5);
+		//Figure out what type of piece this will be when it is done
+		int upgradeType = 0;
+		if (end > 0 && Character.isLetter(move.charAt(end-1))) {
+			upgradeType = getPieceNumFromChar(move.charAt(end-1));
+			end--;
+			if (end > 0 && move.charAt(end-1) == '=') end--;
+		}
 
-		boolean isCapture = capture != null && capture.equals("x");
+		//Get the to row and column values
+		if (end < 2) throw new IllegalArgumentException("Cannot read the move " + move);
+		int toCol = move.charAt(end-2) - 'a';
+		int toRow = move.charAt(end-1) - '1';
+		if (toCol < 0 || toCol > 7 || toRow < 0 || toRow > 7) throw new IllegalArgumentException("Cannot read the move " + move);
 
 		//Get the piece type
-		int piece = getPieceNumFromStr(pieceType);
-
-		if (piece != 1) {
-			resetEnpassant(whiteTeamMoving ? 1 : -1);
+		int start = 0;
+		int piece = PAWN;
+		if (end > 2 && Character.isUpperCase(move.charAt(0))) {
+			piece = getPieceNumFromChar(move.charAt(0));
+			start = 1;
 		}
 
 		//Get the already known row and column values
-		int fromRow = -1;
-		int fromCol = -1;
-		if (fromSpecifier != null) {
-			Matcher fromMatcher = positionPattern.matcher(fromSpecifier);
-			fromMatcher.find();
-
-			String col = fromMatcher.group(1);
-			String row = fromMatcher.group(2);
-
-			if (col != null) fromCol = (int)col.charAt(0) - (int)'a';
-			if (row != null) fromRow = (int)row.charAt(0) - (int)'1';
+		long fromMask = -1L;
+		for (int i = start; i<end-2; i++) {
+			char c = move.charAt(i);
+			if (c >= 'a' && c <= 'h') fromMask &= Bitboards.COLUMN_A << (c - 'a');
+			else if (c >= '1' && c <= '8') fromMask &= Bitboards.ROW_1 << (8 * (c - '1'));
+			else if (c != 'x' && c != ':' && c != '-') throw new IllegalArgumentException("Cannot read the move " + move);
 		}
 
-		//Get the to row and column values
-		int toCol = (int)toLocation.charAt(0) - (int)'a';
-		int toRow = (int)toLocation.charAt(1) - (int)'1';
+		int to = square(toRow, toCol);
+		long candidates = pieces[index(piece * team)] & fromMask;
+		if (piece != PAWN) {
+			//Every other piece moves the same way in both directions, so it must be able to reach its origin from its destination
+			candidates &= getAttacks(piece, to, whitePieces | blackPieces);
+		}
 
-		//Figure out what type of piece this will be when it is done
-		int newType = piece;
-		if (upgradeType != null) newType = getPieceNumFromStr(upgradeType);
-
-		if (fromRow == -1 || fromCol == -1) {
-			List<String> possibleFroms = new LinkedList<String>();
-			if (piece == 1) { //If it is a pawn
-				if (whiteTeamMoving) {
-					if (isCapture) {
-						possibleFroms.add((toRow-1) + "" + (toCol+1));
-						possibleFroms.add((toRow-1) + "" + (toCol-1));
-					} else {
-						possibleFroms.add((toRow-1) + "" + (toCol));
-						if (toRow == 3) {
-							possibleFroms.add((toRow-2) + "" + (toCol));
-						}
-					}
-				} else {
-					if (isCapture) {
-						possibleFroms.add((toRow+1) + "" + (toCol+1));
-						possibleFroms.add((toRow+1) + "" + (toCol-1));
-					} else {
-						possibleFroms.add((toRow+1) + "" + (toCol));
-						if (toRow == 4) {
-							possibleFroms.add((toRow+2) + "" + (toCol));
-						}
-					}
-				}
-			} else if (piece == 2) { //If it is a rook
-				for (int i = 0; i<8; i++) {
-					if (i != toCol) {
-						possibleFroms.add(toRow + "" + i);
-					}
-				}
-				for (int i = 0; i<8; i++) {
-					if (i != toRow) {
-						possibleFroms.add(i + "" + toCol);
-					}
-				}
-			} else if (piece == 3) { //If it is a knight
-				possibleFroms.add((toRow+2) + "" + (toCol+1));
-				possibleFroms.add((toRow+2) + "" + (toCol-1));
-				possibleFroms.add((toRow+1) + "" + (toCol+2));
-				possibleFroms.add((toRow+1) + "" + (toCol-2));
-				possibleFroms.add((toRow-1) + "" + (toCol+2));
-				possibleFroms.add((toRow-1) + "" + (toCol-2));
-				possibleFroms.add((toRow-2) + "" + (toCol+1));
-				possibleFroms.add((toRow-2) + "" + (toCol-1));
-			} else if (piece == 4) { //If it is a bishop
-				for (int i = 0; i<8; i++) {
-					if (i != toCol) {
-						possibleFroms.add((toRow - toCol + i) + "" + (i));
-					}
-				}
-				for (int i = 0; i<8; i++) {
-					if (i != toRow) {
-						possibleFroms.add((i) + "" + (toRow + toCol - i));
-					}
-				}
-			} else if (piece == 5) { //If it is a queen
-				for (int i = 0; i<8; i++) {
-					if (i != toCol) {
-						possibleFroms.add(toRow + "" + i);
-					}
-				}
-				for (int i = 0; i<8; i++) {
-					if (i != toRow) {
-						possibleFroms.add(i + "" + toCol);
-					}
-				}
-				for (int i = 0; i<8; i++) {
-					if (i != toCol) {
-						possibleFroms.add((toRow - toCol + i) + "" + (i));
-					}
-				}
-				for (int i = 0; i<8; i++) {
-					if (i != toRow) {
-						possibleFroms.add((i) + "" + (toRow + toCol - i));
-					}
-				}
-			} else if (piece == 6) { //If it is a king
-				possibleFroms.add((toRow+1) + "" + (toCol));
-				possibleFroms.add((toRow-1) + "" + (toCol));
-				possibleFroms.add((toRow) + "" + (toCol+1));
-				possibleFroms.add((toRow) + "" + (toCol-1));
-				possibleFroms.add((toRow+1) + "" + (toCol+1));
-				possibleFroms.add((toRow-1) + "" + (toCol-1));
-				possibleFroms.add((toRow-1) + "" + (toCol+1));
-				possibleFroms.add((toRow+1) + "" + (toCol-1));
+		while (candidates != 0) {
+			int from = Long.numberOfTrailingZeros(candidates);
+			candidates &= candidates - 1;
+			if (isLegalMove(from, to)) {
+				//A pawn reaching the last row without a promotion type becomes a queen
+				return createMove(from, to, upgradeType != 0 ? upgradeType : QUEEN);
 			}
+		}
 
-			final int fr = fromRow;
-			final int fc = fromCol;
-			Optional<String> originalLocationOP = possibleFroms.stream().filter((s)->{
-				if (s.contains("-")) return false;
-
-				int r = Integer.parseInt(s.charAt(0)+"");
-				int c = Integer.parseInt(s.charAt(1)+"");
-
-				if (r < 0 || r > 7 || c < 0 || c > 7) return false;
+		throw new IllegalArgumentException("There is no legal move " + move);
+	}
 
-				if (board[r][c] != piece * (whiteTeamMoving ? 1 : -1)) return false;
+	private static long getAttacks(int pieceType, int square, long occupied) {
+		switch (pieceType) {
+		case ROOK:
+			return Bitboards.rookAttacks(square, occupied);
+		case KNIGHT:
+			return Bitboards.knightAttacks(square);
+		case BISHOP:
+			return Bitboards.bishopAttacks(square, occupied);
+		case QUEEN:
+			return Bitboards.queenAttacks(square, occupied);
+		case KING:
+			return Bitboards.kingAttacks(square);
+		}
+		return 0;
+	}
 
-				if (fr != -1 && fr != r) return false;
-				if (fc != -1 && fc != c) return false;
+	private int getPieceNumFromChar(char pieceType) {
+		switch (pieceType) {
+		case 'R':
+			return ROOK;
+		case 'N':
+			return KNIGHT;
+		case 'B':
+			return BISHOP;
+		case 'Q':
+			return QUEEN;
+		case 'K':
+			return KING;
+		}
+		throw new IllegalArgumentException("Unknown piece " + pieceType);
+	}
 
-				if (!isLegalMove((r + "" + c) + ";" + (toRow + "" + toCol) + ";" + piece * (whiteTeamMoving ? 1 : -1))) return false;
+	/**
+	 * Get the piece on a square
+	 *
+	 * @param row the row of the square
+	 * @param col the column of the square
+	 * @return the piece, 0 for an empty square, or ±7 for the square skipped by the last double pawn move of white or black
+	 */
+	public int getPieceAt(int row, int col) {
+		int square = square(row, col);
+		if (square == enpassantSquare) return row == 2 ? ENPASSANT : -ENPASSANT;
+		return squares[square];
+	}
 
-				return true;
-			}).findAny(); 
+	/**
+	 * Get the squares of a piece
+	 *
+	 * @param piece the piece, positive for white and negative for black
+	 * @return the bitboard of the squares occupied by that piece
+	 */
+	public long getPieces(int piece) {
+		return pieces[index(piece)];
+	}
 
-			String originalLoc = originalLocationOP.get();
-			fromRow = Integer.parseInt(originalLoc.charAt(0)+"");
-			fromCol = Integer.parseInt(originalLoc.charAt(1)+"");
-		}
+	/**
+	 * Get the Zobrist key of the position
+	 * Positions with the same pieces, side to move, castling rights and en passant captures have the same key
+	 *
+	 * @see Zobrist
+	 *
+	 * @return the key
+	 */
+	public long getKey() {
+		return key;
+	}
 
-		return (fromRow + "" + fromCol) + ";" + (toRow + "" + toCol) + ";" + newType * (whiteTeamMoving ? 1 : -1);
+	/**
+	 * Get the number of moves that can be unmade
+	 *
+	 * @return the number of moves made on this board
+	 */
+	public int getPly() {
+		return ply;
 	}
 
-	private boolean hasLegalMoves(int row, int col) {
-		int piece = board[row][col];
-		int pieceType = Math.abs(piece);
-		int team = Math.round(Math.signum(piece));
+	/**
+	 * Get the last move made
+	 *
+	 * @return the move or {@link Move#NONE} if no moves have been made
+	 */
+	public int getLastMove() {
+		return ply == 0 ? Move.NONE : moveStack[ply-1];
+	}
 
-		if (pieceType == 1) { //Pawn
-			return isLegalMove(row + "" + col + ";" + (row+team) + "" + col) ||
-					isLegalMove(row + "" + col + ";" + (row+team+team) + "" + col) ||
-					isLegalMove(row + "" + col + ";" + (row+team) + "" + (col+1)) ||
-					isLegalMove(row + "" + col + ";" + (row+team) + "" + (col-1));
-		} else if (pieceType == 2) { //Rook
-			for (int i = 0; i<8; i++) {
-				if (i != row) {
-					if (isLegalMove(row + "" + col + ";" + i + "" + col)) {
-						return true;
-					}
-				}
-			}
-			for (int i = 0; i<8; i++) {
-				if (i != col) {
-					if (isLegalMove(row + "" + col + ";" + row + "" + i)) {
-						return true;
-					}
-				}
-			}
-		} else if (pieceType == 3) { //Knight
-			return isLegalMove(row + "" + col + ";" + (row+2) + "" + (col+1)) ||
-					isLegalMove(row + "" + col + ";" + (row+2) + "" + (col-1)) ||
-					isLegalMove(row + "" + col + ";" + (row+1) + "" + (col+2)) ||
-					isLegalMove(row + "" + col + ";" + (row+1) + "" + (col-2)) ||
-					isLegalMove(row + "" + col + ";" + (row-2) + "" + (col-1)) ||
-					isLegalMove(row + "" + col + ";" + (row-2) + "" + (col-1)) ||
-					isLegalMove(row + "" + col + ";" + (row-1) + "" + (col-2)) ||
-					isLegalMove(row + "" + col + ";" + (row-1) + "" + (col-2));
-		} else if (pieceType == 4) { //Bishop
-			for (int i = 0; i<8; i++) {
-				if (i != col) {
-					if (isLegalMove(row + "" + col + ";" + (row - col + i) + "" + (i))) {
-						return true;
-					}
-				}
-			}
-			for (int i = 0; i<8; i++) {
-				if (i != row) {
-					if (isLegalMove(row + "" + col + ";" + (i) + "" + (row + col - i))) {
-						return true;
-					}
-				}
-			}
-		} else if (pieceType == 5) { //Queen
-			for (int i = 0; i<8; i++) {
-				if (i != row) {
-					if (isLegalMove(row + "" + col + ";" + i + "" + col)) {
-						return true;
-					}
-				}
-			}
-			for (int i = 0; i<8; i++) {
-				if (i != col) {
-					if (isLegalMove(row + "" + col + ";" + row + "" + i)) {
-						return true;
-					}
-				}
-			}
-			for (int i = 0; i<8; i++) {
-				if (i != col) {
-					if (isLegalMove(row + "" + col + ";" + (row - col + i) + "" + (i))) {
-						return true;
-					}
-				}
-			}
-			for (int i = 0; i<8; i++) {
-				if (i != row) {
-					if (isLegalMove(row + "" + col + ";" + (i) + "" + (row + col - i))) {
-						return true;
-					}
-				}
-			}
-		} else if (pieceType == 6) { //King
-			return isLegalMove(row + "" + col + ";" + (row) + "" + (col+1)) ||
-					isLegalMove(row + "" + col + ";" + (row) + "" + (col-1)) ||
-					isLegalMove(row + "" + col + ";" + (row+1) + "" + (col)) ||
-					isLegalMove(row + "" + col + ";" + (row-1) + "" + (col)) ||
-					isLegalMove(row + "" + col + ";" + (row+1) + "" + (col+1)) ||
-					isLegalMove(row + "" + col + ";" + (row+1) + "" + (col-1)) ||
-					isLegalMove(row + "" + col + ";" + (row-1) + "" + (col+1)) ||
-					isLegalMove(row + "" + col + ";" + (row-1) + "" + (col-1));
+	/**
+	 * Check if the position has been reached before with the same side to move
+	 * Only the positions since the last capture or pawn move are compared, because no earlier position can come back
+	 *
+	 * @return true if the key of the position is the same as the key of an earlier position on the undo stack
+	 */
+	public boolean isRepetition() {
+		for (int i = ply-1; i>=0; i--) {
+			int move = moveStack[i];
+			if (Move.getPiece(move) == PAWN || (undoStack[i] & 15) != 0) return false;
+			if (((ply - i) & 1) == 0 && keyStack[i] == key) return true;
 		}
-
 		return false;
 	}
 
-	private int getPieceNumFromStr(String pieceType) {
-		if (pieceType == null) return 1;
-		else if (pieceType.equals("R")) return 2;
-		else if (pieceType.equals("N")) return 3;
-		else if (pieceType.equals("B")) return 4;
-		else if (pieceType.equals("Q")) return 5;
-		else if (pieceType.equals("K")) return 6;
-		return -1;
+	/**
+	 * Get the type of the piece that a move captures
+	 *
+	 * @param move the move created by this board, which has not been made yet
+	 * @return the piece type or 0 if the move does not capture
+	 */
+	public int getCaptured(int move) {
+		if (Move.isCastle(move)) return 0;
+		if (Move.isEnpassant(move)) return PAWN;
+		return Math.abs(squares[Move.getTo(move)]);
 	}
 
-	public int getPieceAt(int row, int col) {
-		return board[row][col];
+	/**
+	 * Check if white moves next
+	 *
+	 * @return true if the last move was made by black or no move has been made
+	 */
+	public boolean isWhiteMoving() {
+		return whiteMoving;
 	}
 
 	public boolean isWhiteCheck() {
-		for (int i = 0; i<8; i++) {
-			for (int j = 0; j<8; j++) {
-				if (board[i][j] == 6) {
-					return isWhiteCheck(i, j);
-				}
-			}
-		}
-		return false;
+		return isCheck(true);
 	}
 
-	private boolean isWhiteCheck(int kI, int kJ) {
-		for (int i = 0; i<8; i++) {
-			for (int j = 0; j<8; j++) {
-				if (board[i][j] < 0) {
-					if (isLegalMove(i + "" + j, kI + "" + kJ)) {
-						return true;
-					}
-				}
-			}
-		}
+	public boolean isBlackCheck() {
+		return isCheck(false);
+	}
 
-		return false;
+	/**
+	 * Check if the side to move is in check
+	 *
+	 * @return true if the king of the side to move is attacked
+	 */
+	public boolean isInCheck() {
+		return isCheck(whiteMoving);
 	}
 
-	public boolean isBlackCheck() {
-		for (int i = 0; i<8; i++) {
-			for (int j = 0; j<8; j++) {
-				if (board[i][j] == -6) {
-					return isBlackCheck(i, j);
-				}
-			}
+	private boolean isCheck(boolean white) {
+		findAttacks(white);
+		return checkers[white ? 0 : 1] != 0;
+	}
+
+	/**
+	 * Get the pieces giving check to a king
+	 *
+	 * @param white true for the white king
+	 * @return the squares of the enemy pieces attacking the king
+	 */
+	public long getCheckers(boolean white) {
+		findAttacks(white);
+		return checkers[white ? 0 : 1];
+	}
+
+	/**
+	 * Get the pieces pinned to a king
+	 *
+	 * @param white true for the white king
+	 * @return the squares of the pieces of the same color as the king that are the only piece between it and an enemy slider
+	 */
+	public long getPinned(boolean white) {
+		findAttacks(white);
+		return pinned[white ? 0 : 1];
+	}
+
+	//Find the checkers and pinned pieces of a king if they are not known for this position
+	private void findAttacks(boolean white) {
+		int c = white ? 0 : 1;
+		if (attacksFound[c]) return;
+		attacksFound[c] = true;
+
+		long kingBit = pieces[index(white ? KING : -KING)];
+		if (kingBit == 0) {
+			checkers[c] = 0;
+			pinned[c] = 0;
+			return;
 		}
-		return false;
+		int king = Long.numberOfTrailingZeros(kingBit);
+		int enemy = white ? -1 : 1;
+		long occupied = whitePieces | blackPieces;
+		long own = white ? whitePieces : blackPieces;
+
+		checkers[c] = getAttackersTo(king, occupied) & ~own;
+
+		//Enemy sliders that would attack the king if nothing was in the way
+		long queens = pieces[index(QUEEN * enemy)];
+		long snipers = (Bitboards.rookAttacks(king, 0) & (pieces[index(ROOK * enemy)] | queens)) |
+				(Bitboards.bishopAttacks(king, 0) & (pieces[index(BISHOP * enemy)] | queens));
+		long pins = 0;
+		while (snipers != 0) {
+			int sniper = Long.numberOfTrailingZeros(snipers);
+			snipers &= snipers - 1;
+			long blockers = Bitboards.between(king, sniper) & occupied;
+			if (blockers != 0 && (blockers & (blockers - 1)) == 0) pins |= blockers & own;
+		}
+		pinned[c] = pins;
 	}
 
-	private boolean isBlackCheck(int kI, int kJ) {
-		for (int i = 0; i<8; i++) {
-			for (int j = 0; j<8; j++) {
-				if (board[i][j] > 0) {
-					if (isLegalMove(i + "" + j, kI + "" + kJ)) {
-						return true;
-					}
-				}
-			}
+	//Get the part of the key that does not come from the pieces
+	private long getStateKey() {
+		long stateKey = Zobrist.castling(castling);
+		if (!whiteMoving) stateKey ^= Zobrist.side();
+		//The en passant square only changes the position when a pawn of the side to move can capture onto it
+		if (enpassantSquare != -1 && (Bitboards.pawnAttacks(!whiteMoving, enpassantSquare) & pieces[index(whiteMoving ? PAWN : -PAWN)]) != 0) {
+			stateKey ^= Zobrist.enpassant(enpassantSquare & 7);
 		}
+		return stateKey;
+	}
 
-		return false;
+	private void positionChanged() {
+		attacksFound[0] = false;
+		attacksFound[1] = false;
+	}
+
+	/**
+	 * Get every piece of either color that attacks a square
+	 *
+	 * @param square the square
+	 * @param occupied the occupied squares that block sliding pieces
+	 * @return the squares of the attacking pieces
+	 */
+	public long getAttackersTo(int square, long occupied) {
+		long rooks = pieces[index(ROOK)] | pieces[index(-ROOK)] | pieces[index(QUEEN)] | pieces[index(-QUEEN)];
+		long bishops = pieces[index(BISHOP)] | pieces[index(-BISHOP)] | pieces[index(QUEEN)] | pieces[index(-QUEEN)];
+
+		//Pawns attack the square if a pawn of the other color on the square would attack them
+		return (Bitboards.pawnAttacks(false, square) & pieces[index(PAWN)]) |
+				(Bitboards.pawnAttacks(true, square) & pieces[index(-PAWN)]) |
+				(Bitboards.knightAttacks(square) & (pieces[index(KNIGHT)] | pieces[index(-KNIGHT)])) |
+				(Bitboards.kingAttacks(square) & (pieces[index(KING)] | pieces[index(-KING)])) |
+				(Bitboards.rookAttacks(square, occupied) & rooks) |
+				(Bitboards.bishopAttacks(square, occupied) & bishops);
+	}
+
+	/**
+	 * Check if a square is attacked by either side
+	 *
+	 * @param square the square
+	 * @param byWhite true to look for white attackers and false for black attackers
+	 * @return true if a piece of that color attacks the square
+	 */
+	public boolean isAttacked(int square, boolean byWhite) {
+		return (getAttackersTo(square, whitePieces | blackPieces) & (byWhite ? whitePieces : blackPieces)) != 0;
 	}
 
 	/**
@@ -633,11 +788,11 @@ public class ChessBoard {
 	 * 2 = White in Check(mate; if 1)
 	 * 4 = Black in Check(mate; if 1)
 	 * 8 = Stalemate
-	 * 
+	 *
 	 * Check = all legal moves involve protecting king
 	 * Checkmate = no legal moves, in check
 	 * Stalemate = no legal moves, not in check
-	 * 
+	 *
 	 * @return an integer of flags representing the board state
 	 */
 	public int getBoardState(boolean whiteTeamMoving) {
@@ -647,92 +802,264 @@ public class ChessBoard {
 		result |= moves ? 0 : 1;
 		result |= isWhiteCheck() ? 1<<1 : 0;
 		result |= isBlackCheck() ? 1<<2 : 0;
-		result |= result == 1 ? 0 : 1<<3;
+		result |= !moves && !isCheck(whiteTeamMoving) ? 1<<3 : 0;
 
 		return result;
 	}
 
+	//Castles do not need to be checked because the king can also step towards the rook whenever castling is legal
 	private boolean doMovesExist(boolean whiteTeamMoving) {
-		if (whiteTeamMoving) {
-			for (int i = 0; i<8; i++) {
-				for (int j = 0; j<8; j++) {
-					if (board[i][j] > 0) {
-						if (hasLegalMoves(i, j)) {
-							return true;
-						}
-					}
+		long own = whiteTeamMoving ? whitePieces : blackPieces;
+		long remaining = own;
+		while (remaining != 0) {
+			int from = Long.numberOfTrailingZeros(remaining);
+			remaining &= remaining - 1;
+
+			long targets = getTargets(from) & ~own;
+			while (targets != 0) {
+				int to = Long.numberOfTrailingZeros(targets);
+				targets &= targets - 1;
+				if (isLegalMove(from, to)) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Generate every legal move of the side to move
+	 * Moves are written into the buffer so that generating them allocates nothing
+	 *
+	 * @param buffer the array to write the moves to, which must have room for {@link ChessBoard#MAX_MOVES} moves after the offset
+	 * @param offset the index in the buffer of the first move
+	 * @return the number of moves written
+	 */
+	public int generateMoves(int[] buffer, int offset) {
+		boolean white = whiteMoving;
+		int team = white ? 1 : -1;
+		int c = white ? 0 : 1;
+		long own = white ? whitePieces : blackPieces;
+		long enemies = white ? blackPieces : whitePieces;
+		long occupied = own | enemies;
+		int n = offset;
+
+		findAttacks(white);
+		long check = checkers[c];
+		long pins = pinned[c];
+
+		long kingBit = pieces[index(KING * team)];
+		int king = Long.numberOfTrailingZeros(kingBit);
+		if (kingBit != 0) {
+			long targets = Bitboards.kingAttacks(king) & ~own;
+			while (targets != 0) {
+				int to = Long.numberOfTrailingZeros(targets);
+				targets &= targets - 1;
+				//Lift the king off of the board so that it cannot step back along the line of a slider
+				if ((getAttackersTo(to, occupied ^ kingBit) & enemies) == 0) buffer[n++] = Move.create(king, to, KING * team, 0, 0);
+			}
+
+			//With two pieces giving check only the king can move
+			if ((check & (check - 1)) != 0) return n - offset;
+
+			if (check == 0) {
+				if (canCastle(white, true)) buffer[n++] = Move.create(king, king + 3, KING * team, 0, Move.CASTLE);
+				if (canCastle(white, false)) buffer[n++] = Move.create(king, king - 4, KING * team, 0, Move.CASTLE);
+			}
+		}
+
+		//Every other move has to capture or block a piece giving check
+		long allowed = ~own;
+		if (check != 0) allowed &= check | Bitboards.between(king, Long.numberOfTrailingZeros(check));
+
+		long pawns = pieces[index(PAWN * team)];
+		int startRow = white ? 1 : 6;
+		while (pawns != 0) {
+			int from = Long.numberOfTrailingZeros(pawns);
+			pawns &= pawns - 1;
+
+			long targets = Bitboards.pawnAttacks(white, from) & enemies;
+			long push = (white ? bit(from) << 8 : bit(from) >>> 8) & ~occupied;
+			targets |= push;
+			if (push != 0 && (from >> 3) == startRow) {
+				targets |= (white ? push << 8 : push >>> 8) & ~occupied;
+			}
+			targets &= allowed;
+			if ((pins & bit(from)) != 0) targets &= Bitboards.line(king, from);
+
+			while (targets != 0) {
+				int to = Long.numberOfTrailingZeros(targets);
+				targets &= targets - 1;
+				if ((bit(to) & (Bitboards.ROW_1 | Bitboards.ROW_8)) != 0) {
+					buffer[n++] = Move.create(from, to, PAWN * team, QUEEN, 0);
+					buffer[n++] = Move.create(from, to, PAWN * team, ROOK, 0);
+					buffer[n++] = Move.create(from, to, PAWN * team, BISHOP, 0);
+					buffer[n++] = Move.create(from, to, PAWN * team, KNIGHT, 0);
+				} else {
+					buffer[n++] = Move.create(from, to, PAWN * team, 0, 0);
 				}
 			}
-		} else {
-			for (int i = 0; i<8; i++) {
-				for (int j = 0; j<8; j++) {
-					if (board[i][j] < 0) {
-						if (hasLegalMoves(i, j)) {
-							return true;
-						}
-					}
+
+			if (enpassantSquare != -1 && (Bitboards.pawnAttacks(white, from) & bit(enpassantSquare)) != 0 && (enpassantSquare >> 3) == (white ? 5 : 2)) {
+				//Removing two pawns from a row can uncover an attack along it, so test en passant captures by making them
+				int move = Move.create(from, enpassantSquare, PAWN * team, 0, Move.EN_PASSANT);
+				makeMove(move);
+				boolean safe = !isCheck(white);
+				unmakeMove();
+				if (safe) buffer[n++] = move;
+			}
+		}
+
+		for (int type = ROOK; type<=QUEEN; type++) {
+			long remaining = pieces[index(type * team)];
+			while (remaining != 0) {
+				int from = Long.numberOfTrailingZeros(remaining);
+				remaining &= remaining - 1;
+
+				long targets = getAttacks(type, from, occupied) & allowed;
+				//A pinned piece can only move along the line between its king and the pinning piece
+				if ((pins & bit(from)) != 0) targets &= Bitboards.line(king, from);
+
+				while (targets != 0) {
+					int to = Long.numberOfTrailingZeros(targets);
+					targets &= targets - 1;
+					buffer[n++] = Move.create(from, to, type * team, 0, 0);
 				}
 			}
 		}
-		return false;
+
+		return n - offset;
 	}
 
-	private int[][] deepCopyBoard() {
-		int[][] newArr = new int[8][8];
-		for (int i = 0; i<8; i++) {
-			System.arraycopy(board[i], 0, newArr[i], 0, 8);
+	/**
+	 * Move every piece by some number of rows and columns
+	 * Pieces moved off of the board are removed, as are castling rights for kings and rooks that leave their starting squares
+	 * Moves made before the board was moved can no longer be unmade
+	 *
+	 * @param rows the number of rows to move up
+	 * @param cols the number of columns to move right
+	 */
+	public void transpose(int rows, int cols) {
+		byte[] oldSquares = squares;
+		squares = new byte[64];
+		Arrays.fill(pieces, 0);
+		whitePieces = 0;
+		blackPieces = 0;
+		key = 0;
+
+		for (int sq = 0; sq<64; sq++) {
+			if (oldSquares[sq] != 0) {
+				int square = shift(sq, rows, cols);
+				if (square != -1) put(square, oldSquares[sq]);
+			}
+		}
+		if (enpassantSquare != -1) enpassantSquare = shift(enpassantSquare, rows, cols);
+
+		//Only keep the rights of kings and rooks that are still where they started
+		int startingRights = 0;
+		if (squares[square(0, 4)] == KING) {
+			if (squares[square(0, 7)] == ROOK) startingRights |= WHITE_KINGSIDE;
+			if (squares[square(0, 0)] == ROOK) startingRights |= WHITE_QUEENSIDE;
 		}
-		return newArr;
+		if (squares[square(7, 4)] == -KING) {
+			if (squares[square(7, 7)] == -ROOK) startingRights |= BLACK_KINGSIDE;
+			if (squares[square(7, 0)] == -ROOK) startingRights |= BLACK_QUEENSIDE;
+		}
+		castling &= startingRights;
+		key ^= getStateKey();
+		ply = 0;
+		positionChanged();
 	}
-	
-	public void transpose(int rows, int cols) {
-		if (enpassantCol != -1) enpassantCol += cols;
-		//if (enpassantCol < 0 || enpassantCol > 8) enpassantCol = -1;
-		int[][] newBoard = new int[8][8];
-		for (int i = Math.max(0, -rows); i<8-Math.max(0, rows); i++) {
-			System.arraycopy(board[i], 
-					Math.max(0, -cols), 
-					newBoard[i+rows], 
-					0, 
-					8-Math.abs(cols));
-		}
-		board = newBoard;
-	}
-	
+
+	private static int shift(int square, int rows, int cols) {
+		int row = (square >> 3) + rows;
+		int col = (square & 7) + cols;
+		if (row < 0 || row > 7 || col < 0 || col > 7) return -1;
+		return square(row, col);
+	}
+
 	public double[] generateNeuralInputs(boolean whiteMoving) {
 		double[] output = new double[384];
-		
-		if (whiteMoving) { //Generate the data as if the white team is moving
-			//Add the inputs to the array
-			for (int i = 0; i<8; i++) {
-				for (int j = 0; j<8; j++) {
-					int pieceType = getPieceAt(i, j);
-					if (pieceType == 7 || pieceType == -7) pieceType = 0;
-					int absType = Math.abs(pieceType);
-					if (absType > 0) {
-						output[6*8*i + 6*j + absType - 1] = Math.signum(pieceType);
-					}
-				}
-			}
-		} else { //Generate the data as if the black team is moving
-			//Add the inputs to the array
-			for (int i = 0; i<8; i++) {
-				for (int j = 0; j<8; j++) {
-					int pieceType = getPieceAt(i, j);
-					if (pieceType == 7 || pieceType == -7) pieceType = 0;
-					int absType = Math.abs(pieceType);
-					if (absType > 0) {
-						output[6*8*(7-i) + 6*j + absType - 1] = -Math.signum(pieceType);
-					}
+
+		//Black sees the board flipped, which swaps the bytes of each bitboard
+		long occupied = whitePieces | blackPieces;
+		long view = whiteMoving ? occupied : Long.reverseBytes(occupied);
+		while (view != 0) {
+			int sq = Long.numberOfTrailingZeros(view);
+			view &= view - 1;
+			int piece = squares[whiteMoving ? sq : sq ^ 56];
+			output[6*sq + Math.abs(piece) - 1] = (piece > 0) == whiteMoving ? 1 : -1;
+		}
+
+		return output;
+	}
+
+	/**
+	 * Generate the neural network inputs for this board as a sparse vector
+	 *
+	 * The vector has the same contents as {@link ChessBoard#generateNeuralInputs(boolean)}
+	 * but only stores the (at most 32) occupied squares
+	 *
+	 * @param whiteMoving true if the inputs should be generated from the point of view of white
+	 * @param output the 384 element vector to store the inputs in
+	 */
+	public void generateNeuralInputs(boolean whiteMoving, SparseVector output) {
+		output.clear();
+		//Walking the set bits of the (flipped) bitboard visits the inputs in the order of their indices
+		long occupied = whitePieces | blackPieces;
+		long view = whiteMoving ? occupied : Long.reverseBytes(occupied);
+		while (view != 0) {
+			int sq = Long.numberOfTrailingZeros(view);
+			view &= view - 1;
+			int piece = squares[whiteMoving ? sq : sq ^ 56];
+			output.add(6*sq + Math.abs(piece) - 1, (piece > 0) == whiteMoving ? 1 : -1);
+		}
+	}
+
+	/**
+	 * Write the position in Forsyth-Edwards Notation
+	 * The move clocks are not tracked, so only the pieces, side to move, castling rights and en passant square are written
+	 *
+	 * @return the position
+	 */
+	public String toFen() {
+		StringBuilder fen = new StringBuilder();
+		for (int row = 7; row>=0; row--) {
+			int empty = 0;
+			for (int col = 0; col<8; col++) {
+				int piece = squares[square(row, col)];
+				if (piece == 0) {
+					empty++;
+					continue;
 				}
+				if (empty > 0) fen.append(empty);
+				empty = 0;
+				char letter = PIECE_LETTERS.charAt(Math.abs(piece) - 1);
+				fen.append(piece > 0 ? letter : Character.toLowerCase(letter));
 			}
+			if (empty > 0) fen.append(empty);
+			if (row > 0) fen.append('/');
 		}
-		
-		return output;
+
+		fen.append(whiteMoving ? " w " : " b ");
+		if (castling == 0) fen.append('-');
+		if ((castling & WHITE_KINGSIDE) != 0) fen.append('K');
+		if ((castling & WHITE_QUEENSIDE) != 0) fen.append('Q');
+		if ((castling & BLACK_KINGSIDE) != 0) fen.append('k');
+		if ((castling & BLACK_QUEENSIDE) != 0) fen.append('q');
+
+		fen.append(' ');
+		if (enpassantSquare == -1) fen.append('-');
+		else fen.append((char) ('a' + (enpassantSquare & 7))).append((char) ('1' + (enpassantSquare >> 3)));
+		return fen.toString();
 	}
-	
+
 	@Override
 	public String toString() {
+		int[][] board = new int[8][8];
+		for (int i = 0; i<8; i++) {
+			for (int j = 0; j<8; j++) {
+				board[i][j] = getPieceAt(i, j);
+			}
+		}
 		return Arrays.deepToString(board);
 	}
 }
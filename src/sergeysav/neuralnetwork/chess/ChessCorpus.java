@@ -0,0 +1,403 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A packed binary store of training samples split into shard files
+ *
+ * Every value of a chess sample is -1, 0 or 1, so each value is stored as a single byte.
+ * Each shard is a header followed by fixed width records, which lets any record be found by its index.
+ * The shards are memory mapped, so a record is decoded straight out of the page cache into the buffer of the reader.
+ *
+ * Shard header (big endian):
+ * 	int magic, int version, int record length, long record count, padded to {@link ChessCorpus#HEADER_SIZE} bytes
+ *
+ * A corpus may be read by many threads at once.
+ *
+ * @see ChessCorpus.Writer
+ *
+ * @author sergeys
+ *
+ */
+public class ChessCorpus implements Closeable {
+
+	/**
+	 * The extension of every shard file
+	 */
+	public static final String EXTENSION = ".corpus";
+
+	//The first four bytes of every shard
+	private static final int MAGIC = 0x43485343; //"CHSC"
+
+	//The version of the file format
+	private static final int VERSION = 1;
+
+	//The number of bytes before the first record of a shard
+	private static final int HEADER_SIZE = 32;
+
+	//The maximum size of a shard, which keeps every shard within a single mapping
+	private static final long SHARD_BYTES = 1L << 30;
+
+	//The file channel of each shard
+	private FileChannel[] channels;
+
+	//The records of each shard
+	private MappedByteBuffer[] shards;
+
+	//The index of the first record of each shard
+	private int[] shardStarts;
+
+	//The number of values in each record
+	private int recordLength;
+
+	//The total number of records in all shards
+	private int size;
+
+	/**
+	 * Open every shard in a directory for reading
+	 * The shards are ordered by their number
+	 *
+	 * @throws IOException when a shard cannot be read or is not a corpus shard
+	 *
+	 * @param directory the directory that the shards were written to
+	 */
+	public ChessCorpus(File directory) throws IOException {
+		this(listShards(directory));
+	}
+
+	/**
+	 * Open a set of shards for reading
+	 * The records of the shards are indexed in the given order
+	 *
+	 * @throws IOException when a shard cannot be read or is not a corpus shard
+	 *
+	 * @param files the shard files
+	 */
+	public ChessCorpus(File... files) throws IOException {
+		channels = new FileChannel[files.length];
+		shards = new MappedByteBuffer[files.length];
+		shardStarts = new int[files.length];
+		recordLength = -1;
+		try {
+			long total = 0;
+			for (int s = 0; s<files.length; s++) {
+				File file = files[s];
+				FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				channels[s] = channel;
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				while (header.hasRemaining() && channel.read(header) >= 0);
+				header.flip();
+				if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) throw new IOException(file.getName() + " is not a corpus shard.");
+				int version = header.getInt();
+				if (version != VERSION) throw new IOException(file.getName() + " has version " + version + " when " + VERSION + " was expected.");
+				int length = header.getInt();
+				if (recordLength != -1 && length != recordLength) throw new IOException(file.getName() + " has records of length " + length + " when " + recordLength + " was expected.");
+				recordLength = length;
+				long count = header.getLong();
+				if (HEADER_SIZE + count * recordLength > channel.size()) throw new IOException(file.getName() + " is truncated.");
+				if (count * recordLength > Integer.MAX_VALUE) throw new IOException(file.getName() + " is too large to map.");
+				if (total + count > Integer.MAX_VALUE) throw new IOException("The shards have more records than can be indexed.");
+
+				shardStarts[s] = (int) total;
+				shards[s] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, count * recordLength);
+				total += count;
+			}
+			size = (int) total;
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Decode a record into an existing array
+	 * The values are read straight out of the mapping, so nothing is allocated
+	 *
+	 * @param index the index of the record
+	 * @param output the array to store the record in, which must hold at least the record length
+	 * @return the output array
+	 */
+	public double[] read(int index, double[] output) {
+		int s = shardOf(index);
+		ByteBuffer shard = shards[s];
+		int start = (index - shardStarts[s]) * recordLength;
+		for (int k = 0; k<recordLength; k++) {
+			output[k] = shard.get(start + k);
+		}
+		return output;
+	}
+
+	/**
+	 * Decode a record into a new array
+	 *
+	 * @param index the index of the record
+	 * @return the values of the record
+	 */
+	public double[] get(int index) {
+		return read(index, new double[recordLength]);
+	}
+
+	/**
+	 * Get the number of records
+	 *
+	 * @return the number of records
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of values in each record
+	 *
+	 * @return the record length
+	 */
+	public int getRecordLength() {
+		return recordLength;
+	}
+
+	/**
+	 * Get the number of shards
+	 *
+	 * @return the number of shards
+	 */
+	public int getShards() {
+		return shards.length;
+	}
+
+	@Override
+	public final void close() throws IOException {
+		//The mappings stay valid until they are garbage collected
+		IOException failure = null;
+		for (FileChannel channel : channels) {
+			if (channel == null) continue;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) throw failure;
+	}
+
+	private int shardOf(int index) {
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Record " + index + " is outside of a corpus of " + size + " records.");
+		int s = Arrays.binarySearch(shardStarts, index);
+		if (s < 0) return -s - 2;
+		//Empty shards share a start with the next shard, so use the last shard starting at the index
+		while (s + 1<shardStarts.length && shardStarts[s + 1] == index) s++;
+		return s;
+	}
+
+	/**
+	 * Get the file of a shard
+	 *
+	 * @param directory the directory containing the shards
+	 * @param shard the number of the shard
+	 * @return the shard file
+	 */
+	public static File getShardFile(File directory, int shard) {
+		return new File(directory, "cases-" + shard + EXTENSION);
+	}
+
+	/**
+	 * List the shards in a directory ordered by their number
+	 *
+	 * @param directory the directory containing the shards
+	 * @return the shard files
+	 */
+	public static File[] listShards(File directory) {
+		int count = 0;
+		while (getShardFile(directory, count).exists()) count++;
+		File[] files = new File[count];
+		for (int s = 0; s<count; s++) {
+			files[s] = getShardFile(directory, s);
+		}
+		return files;
+	}
+
+	/**
+	 * Encode a record into bytes
+	 *
+	 * @throws IllegalArgumentException when the record has a value that is not -1, 0 or 1
+	 *
+	 * @param record the values of the record
+	 * @param output the array to store the encoded record in
+	 * @param offset the index in the output of the first byte of the record
+	 */
+	public static void encode(double[] record, byte[] output, int offset) {
+		for (int k = 0; k<record.length; k++) {
+			double v = record[k];
+			if (v != -1 && v != 0 && v != 1) throw new IllegalArgumentException("Value " + k + " is " + v + " but only -1, 0 and 1 can be stored.");
+			output[offset + k] = (byte) v;
+		}
+	}
+
+	/**
+	 * Writes records to a new set of shards in a directory
+	 *
+	 * A new shard is started whenever the current one reaches its size limit.
+	 * A writer must only be used by one thread at a time.
+	 *
+	 * @author sergeys
+	 *
+	 */
+	public static class Writer implements Closeable {
+
+		//The number of bytes buffered before they are written to the file
+		private static final int BUFFER_SIZE = 1 << 20;
+
+		//The directory that the shards are written to
+		private File directory;
+
+		//The file channel of the shard being written
+		private FileChannel channel;
+
+		//The bytes that have not been written yet
+		private ByteBuffer buffer;
+
+		//A record being encoded
+		private byte[] encoded;
+
+		//The number of values in each record
+		private int recordLength;
+
+		//The maximum number of records in a shard
+		private int recordsPerShard;
+
+		//The number of the shard being written
+		private int shard;
+
+		//The number of records written to the current shard
+		private long shardCount;
+
+		//The number of records written to every shard
+		private long count;
+
+		/**
+		 * Create a new set of shards, deleting any existing shards in the directory
+		 *
+		 * @throws IOException when the shards cannot be created
+		 *
+		 * @param directory the directory to write the shards to
+		 * @param recordLength the number of values in each record
+		 */
+		public Writer(File directory, int recordLength) throws IOException {
+			this.directory = directory;
+			this.recordLength = recordLength;
+			recordsPerShard = (int) Math.max(1, SHARD_BYTES / recordLength);
+			buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, recordLength));
+			encoded = new byte[recordLength];
+			for (File old : listShards(directory)) {
+				if (!old.delete()) throw new IOException("Could not delete " + old.getName() + ".");
+			}
+			openShard();
+		}
+
+		/**
+		 * Append a record to the corpus
+		 *
+		 * @throws IllegalArgumentException when the record has the wrong length or a value that is not -1, 0 or 1
+		 * @throws IOException when a shard cannot be written
+		 *
+		 * @param record the values of the record
+		 */
+		public void write(double[] record) throws IOException {
+			if (record.length != recordLength) throw new IllegalArgumentException("There are " + record.length + " values when " + recordLength + " were expected.");
+			encode(record, encoded, 0);
+			write(encoded, 0, 1);
+		}
+
+		/**
+		 * Append records that were already encoded to the corpus
+		 *
+		 * @see ChessCorpus#encode(double[], byte[], int)
+		 *
+		 * @throws IOException when a shard cannot be written
+		 *
+		 * @param records the encoded records packed one after another
+		 * @param offset the index of the first byte of the first record
+		 * @param n the number of records to write
+		 */
+		public void write(byte[] records, int offset, int n) throws IOException {
+			for (int r = 0; r<n; r++) {
+				if (shardCount == recordsPerShard) {
+					closeShard();
+					shard++;
+					openShard();
+				}
+				if (buffer.remaining() < recordLength) flush();
+				buffer.put(records, offset + r * recordLength, recordLength);
+				shardCount++;
+				count++;
+			}
+		}
+
+		/**
+		 * Get the number of records written
+		 *
+		 * @return the number of records
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Get the number of shards written
+		 *
+		 * @return the number of shards
+		 */
+		public int getShards() {
+			return shard + 1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closeShard();
+		}
+
+		private void openShard() throws IOException {
+			channel = FileChannel.open(getShardFile(directory, shard).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			shardCount = 0;
+			//The count in the header is filled in when the shard is closed
+			writeHeader();
+			channel.position(HEADER_SIZE);
+		}
+
+		private void closeShard() throws IOException {
+			try {
+				flush();
+				writeHeader();
+			} finally {
+				channel.close();
+			}
+		}
+
+		private void writeHeader() throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(recordLength);
+			header.putLong(shardCount);
+			header.clear();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
@@ -1,132 +1,135 @@
 package sergeysav.neuralnetwork.chess;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.StreamSupport;
+import java.util.function.Consumer;
 
 public class ChessPreprocessingMain {
-	
-	public static AtomicInteger val = new AtomicInteger();
-	
-	public static void main(String[] args) {
+
+	//The number of samples that are handed from a parser to the writer at once
+	private static final int CHUNK_SAMPLES = 256;
+
+	//The number of chunks per parser, which bounds the memory used however many games there are
+	private static final int CHUNKS_PER_PARSER = 4;
+
+	//The chunk that a parser hands to the writer once it has run out of files
+	private static final Chunk END = new Chunk(0);
+
+	public static void main(String[] args) throws InterruptedException {
 		File gamesDirectory = new File("games");
 		File casesDirectory = new File("cases");
-		casesDirectory.delete();
 		casesDirectory.mkdirs();
 
 		File[] files = gamesDirectory.listFiles((f)->!f.isDirectory() && !f.isHidden() && f.getName().endsWith(".pgn"));
 
-		Arrays.stream(files).flatMap((f)->{
-			//Convert each file to a stream of transcripts
-			List<Transcript> trans = new LinkedList<Transcript>();
-			readTranscripts(f, trans);
-			return trans.stream();
-		}).flatMap((t)->StreamSupport.stream(t.spliterator(), false)).forEach((d)->{
-			writeToFile(casesDirectory.getAbsolutePath() + "/" + val.getAndIncrement() + ".case", Arrays.toString(d));
-		});
+		int parsers = Runtime.getRuntime().availableProcessors();
+		long startTime = System.nanoTime();
 
-	}
-
-	private static void writeToFile(String name, String data) {
-		File f = new File(name);
-		while(f.exists()) {
-			f = new File(f.getParentFile().getAbsolutePath() + "/a" + f.getName());
-		}
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(f))) {
-			writer.write(data);
-			writer.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		//Parsers take empty chunks from the free queue and block when the writer falls behind
+		BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(parsers * CHUNKS_PER_PARSER);
+		BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(parsers * CHUNKS_PER_PARSER + parsers);
+		for (int i = 0; i<parsers * CHUNKS_PER_PARSER; i++) {
+			free.add(new Chunk(CHUNK_SAMPLES));
 		}
-	}
 
-	private static void readTranscripts(File file, List<Transcript> transcripts) {
-		int transcript = 0;
-		try (Scanner scan = new Scanner(file)) {
-			Transcript t = null;
-			String moveList = null;
-			while(scan.hasNextLine()) {
-				String line = scan.nextLine();
-
-				if (line.startsWith("[Event \"")) {
-					if (t != null) {
-						transcript++;
-						try {
-							if (moveList != null) {
-								populateTranscript(t, moveList);
-								moveList = null;
-								transcripts.add(t);
-							}
-						} catch (Exception e) {
-							System.err.println("Error reading " + file.getName() + "#" + transcript);
-							e.printStackTrace();
-						}
+		//Each parser claims whole files and turns their games into encoded samples
+		AtomicInteger nextFile = new AtomicInteger();
+		Thread[] threads = new Thread[parsers];
+		for (int t = 0; t<parsers; t++) {
+			threads[t] = new Thread(()->{
+				ChunkSink sink = new ChunkSink(free, full);
+				try {
+					int f;
+					while ((f = nextFile.getAndIncrement()) < files.length) {
+						PgnParser.readTranscripts(files[f], (transcript)->transcript.spliterator().forEachRemaining(sink));
+					}
+					sink.flush();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					try {
+						full.put(END);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
 					}
-					t = new Transcript();
 				}
-				if (line.startsWith("1.")) {
-					moveList = "";
+			}, "Parser-" + t);
+			threads[t].start();
+		}
+
+		//A single writer appends every chunk to the corpus
+		try (ChessCorpus.Writer writer = new ChessCorpus.Writer(casesDirectory, Transcript.SAMPLE_LENGTH)) {
+			int finished = 0;
+			while (finished < parsers) {
+				Chunk chunk = full.take();
+				if (chunk == END) {
+					finished++;
+					continue;
 				}
-				if (moveList != null) moveList += line + " ";
+				writer.write(chunk.records, 0, chunk.count);
+				chunk.count = 0;
+				free.put(chunk);
 			}
+			double seconds = (System.nanoTime() - startTime) / 1e9;
+			System.out.println(String.format("Wrote %d cases to %d shards from %d files in %.1fs (%.1f cases/sec)", writer.getCount(), writer.getShards(), files.length, seconds, writer.getCount() / seconds));
 		} catch (IOException e) {
 			e.printStackTrace();
+			for (Thread thread : threads) {
+				thread.interrupt();
+			}
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
 		}
 	}
 
-	private static void populateTranscript(Transcript t, String moveList) {
-		String old;
-		do {
-			old = moveList;
-			moveList  = moveList.replaceAll("(?:\\([^\\(\\)]*\\))", ""); //Remove areas enclosed in parenthesis
-			moveList  = moveList.replaceAll("(?:\\{[^\\{\\}]*\\})", ""); //Remove areas enclosed in braces
-		} while (!old.equals(moveList));
-
-		moveList = moveList.replaceAll("(?:\\d+\\.\\.\\.)", ""); //Remove all elipses
-
-		//if (moveList.contains("+")) checks++;
-		//if (moveList.contains("#")) checkmates++;
-
-		String[] moved = moveList.split("\\d*[\\\\.]\\s*");
-
-		ChessBoard board = new ChessBoard();
-		LinkedList<String> moves = t.getMoves();
-
-		for (int i = 1; i<moved.length; i++) {
-			if (i == moved.length - 1) {
-				String[] parts = moved[i].split("\\s+");
-				if (parts.length > 2) {
-					String movew = board.getMoveConverted(parts[0], true);
-					moves.add(movew);
-					board.applyConvertedMove(movew);
-					String moveb = board.getMoveConverted(parts[1], false);
-					moves.add(moveb);
-					board.applyConvertedMove(moveb);
-					t.setOutcome(parts[2]);
-				} else {
-					String movew = board.getMoveConverted(parts[0], true);
-					moves.add(movew);
-					board.applyConvertedMove(movew);
-					t.setOutcome(parts[1]);
-				}
-			} else {
-				String[] steps = moved[i].split("\\s+");
-				String movew = board.getMoveConverted(steps[0], true);
-				moves.add(movew);
-				board.applyConvertedMove(movew);
-				String moveb = board.getMoveConverted(steps[1], false);
-				moves.add(moveb);
-				board.applyConvertedMove(moveb);
+	/**
+	 * A block of encoded samples passed from a parser to the writer
+	 */
+	private static class Chunk {
+		private final byte[] records;
+		private int count;
+
+		public Chunk(int samples) {
+			records = new byte[samples * Transcript.SAMPLE_LENGTH];
+		}
+	}
+
+	/**
+	 * Encodes the samples of one parser into chunks and hands full chunks to the writer
+	 */
+	private static class ChunkSink implements Consumer<double[]> {
+		private BlockingQueue<Chunk> free;
+		private BlockingQueue<Chunk> full;
+		private Chunk chunk;
+
+		public ChunkSink(BlockingQueue<Chunk> free, BlockingQueue<Chunk> full) {
+			this.free = free;
+			this.full = full;
+		}
+
+		@Override
+		public void accept(double[] sample) {
+			try {
+				if (chunk == null) chunk = free.take();
+				ChessCorpus.encode(sample, chunk.records, chunk.count * Transcript.SAMPLE_LENGTH);
+				chunk.count++;
+				if (chunk.count == CHUNK_SAMPLES) flush();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the writer", e);
+			}
+		}
+
+		public void flush() throws InterruptedException {
+			if (chunk != null && chunk.count > 0) {
+				full.put(chunk);
+				chunk = null;
 			}
 		}
-		//games++;
-		//ChessAIMain.moves += moves.size();
 	}
 }
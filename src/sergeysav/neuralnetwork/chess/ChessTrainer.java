@@ -1,13 +1,21 @@
 package sergeysav.neuralnetwork.chess;
 
 import java.io.Serializable;
-import java.util.function.Supplier;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
-
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import sergeysav.linalg.Kernels;
+import sergeysav.neuralnetwork.BatchEvaluator;
+import sergeysav.neuralnetwork.Layer;
 import sergeysav.neuralnetwork.NeuralNetwork;
-import sergeysav.neuralnetwork.Neuron;
-import sergeysav.stream.StreamUtil;
+import sergeysav.neuralnetwork.ParallelBackpropogation;
+import sergeysav.neuralnetwork.Precision;
+import sergeysav.neuralnetwork.SampleReader;
+import sergeysav.neuralnetwork.SparseVector;
+import sergeysav.neuralnetwork.TrainingWorkspace;
 
 /**
  * An implementation of a backpropogation neural network trainer for the chess games
@@ -15,58 +23,137 @@ import sergeysav.stream.StreamUtil;
  * @author sergeys
  *
  */
-public class ChessTrainer implements Serializable {
+public class ChessTrainer implements Serializable, AutoCloseable {
+
+	private static final long serialVersionUID = -240753105557807611L;
+
+	//The number of samples between each training error estimate
+	private static final int REPORT_INTERVAL = 100;
 
-	private static final long serialVersionUID = 3561024763642610745L;
+	//The number of samples evaluated at once when calculating the error
+	private static final int EVALUATION_BATCH_SIZE = 64;
+
+	//The fraction of the learning momentum that is kept after each batch when training with mini-batches
+	private static final double FRICTION = 0.9;
 
 	private transient double learningRate;
-	private transient Supplier<Stream<double[]>> trainingData;
-	//private transient int trainingSize;
-	private transient Supplier<Stream<double[]>> testingData;
+	private transient SampleReader trainingData;
+	private transient int trainingSize;
+	private transient SampleReader testingData;
+	private transient int testingSize;
 	private transient double epsilon;
-	//private transient int testingSize;
+	private transient int batchSize;
+	//The fraction of the learning momentum that is kept after each batch, which is 0 when training one sample at a time
+	private transient double friction;
+	private transient ParallelBackpropogation backpropogation;
+
+	//The order that the training samples are read in, which is shuffled every epoch
+	private transient int[] order;
+
+	//The buffers that the samples of an evaluation batch are read into
+	private transient double[][] evaluationBuffers;
 
 	private double lastTestingError = Double.MAX_VALUE;
 
 	private transient NeuralNetwork network;
-	private double[][][] learningMomentum;
+	private transient BatchEvaluator evaluator;
+	private double[][] weightMomentum;
+	private float[][] floatWeightMomentum;
+	private double[][] biasMomentum;
+	//The lock held while the asynchronous epoch decays the momentum
+	private final ReentrantLock momentumLock = new ReentrantLock();
 	private int epochs = 0;
 
-	public ChessTrainer(double k, Supplier<Stream<double[]>> trainingData, Supplier<Stream<double[]>> testingData, NeuralNetwork network, double epsilon) {
-		init(k, trainingData, testingData, network, epsilon);
-		learningMomentum = generateMomentumArr();
+	public ChessTrainer(double k, SampleReader trainingData, int trainingSize, SampleReader testingData, int testingSize, NeuralNetwork network, double epsilon) {
+		this(k, trainingData, trainingSize, testingData, testingSize, network, epsilon, 1, 1);
 	}
 
-	private double[][][] generateMomentumArr() {
-		double[][][] m = new double[network.getNeuralData().length][][];
+	/**
+	 * Create a new chess trainer
+	 * 
+	 * @param k the learning rate
+	 * @param trainingData a reader of the training samples, which must be safe to call from multiple threads
+	 * @param trainingSize the number of training samples
+	 * @param testingData a reader of the testing samples or null
+	 * @param testingSize the number of testing samples
+	 * @param network the network to train
+	 * @param epsilon the training error to stop at
+	 * @param batchSize the number of samples to accumulate the gradients of before learning.
+	 * Batches of more than one sample learn with momentum, while a batch size of 1 is plain gradient descent without momentum.
+	 * @param workers the number of threads to split each batch across
+	 */
+	public ChessTrainer(double k, SampleReader trainingData, int trainingSize, SampleReader testingData, int testingSize, NeuralNetwork network, double epsilon, int batchSize, int workers) {
+		init(k, trainingData, trainingSize, testingData, testingSize, network, epsilon, batchSize, workers);
+		weightMomentum = generateWeightArr();
+		floatWeightMomentum = generateFloatWeightArr();
+		biasMomentum = generateBiasArr();
+	}
+
+	private double[][] generateWeightArr() {
+		Layer[] layers = network.getLayers();
+		double[][] m = new double[layers.length][];
 		for (int i = 0; i<m.length; i++) {
-			m[i] = new double[network.getNeuralData()[i].length][];
-			for (int j = 0; j<m[i].length; j++) {
-				m[i][j] = new double[network.getNeuralData()[i][j].getParentNeurons() + 1];
-			}
+			if (layers[i].getPrecision() == Precision.DOUBLE) m[i] = new double[layers[i].getWeightCount()];
+		}
+		return m;
+	}
+
+	private float[][] generateFloatWeightArr() {
+		Layer[] layers = network.getLayers();
+		float[][] m = new float[layers.length][];
+		for (int i = 0; i<m.length; i++) {
+			if (layers[i].getPrecision() == Precision.FLOAT) m[i] = new float[layers[i].getWeightCount()];
+		}
+		return m;
+	}
+
+	private double[][] generateBiasArr() {
+		Layer[] layers = network.getLayers();
+		double[][] m = new double[layers.length][];
+		for (int i = 0; i<m.length; i++) {
+			m[i] = new double[layers[i].getOutputs()];
 		}
 		return m;
 	}
 
-	public void init(double k, Supplier<Stream<double[]>> trainingData, Supplier<Stream<double[]>> testingData, NeuralNetwork network, double epsilon) {
+	public final void init(double k, SampleReader trainingData, int trainingSize, SampleReader testingData, int testingSize, NeuralNetwork network, double epsilon) {
+		init(k, trainingData, trainingSize, testingData, testingSize, network, epsilon, 1, 1);
+	}
+
+	public final void init(double k, SampleReader trainingData, int trainingSize, SampleReader testingData, int testingSize, NeuralNetwork network, double epsilon, int batchSize, int workers) {
+		if (batchSize < 1) throw new IllegalArgumentException("The batch size must be positive. " + batchSize + " given.");
 		this.learningRate = k;
 		this.trainingData = trainingData;
+		this.trainingSize = trainingSize;
 		this.testingData = testingData;
+		this.testingSize = testingSize;
 		this.network = network;
 		this.epsilon = epsilon;
+		this.batchSize = batchSize;
+		this.friction = batchSize > 1 ? FRICTION : 0;
+		//Shut down the workers of the previous initialization
+		if (this.backpropogation != null) this.backpropogation.close();
+		this.backpropogation = new ParallelBackpropogation(network, workers);
+		this.evaluator = new BatchEvaluator(network, EVALUATION_BATCH_SIZE);
+		Layer[] layers = network.getLayers();
+		this.evaluationBuffers = new double[EVALUATION_BATCH_SIZE][network.getInputNeurons() + layers[layers.length-1].getOutputs()];
+		this.order = new int[trainingSize];
+		for (int i = 0; i<trainingSize; i++) {
+			order[i] = i;
+		}
 	}
 
 	public boolean isNextEpochNeeded() {
 		return true;
 		/*
-		double err = calculateAverageError(trainingData);
+		double err = calculateAverageError(trainingData, trainingSize);
 		ChessAIMain.print("Training Error: " + err);
 		testingCheck(); //Just used to calculate and print
 		return err > epsilon;*/
 	}
 
 	private boolean testingCheck() {
-		double e = calculateAverageError(testingData);
+		double e = calculateAverageError(testingData, testingSize);
 		ChessAIMain.print("Testing Error: " + e);
 		boolean b = lastTestingError > e;
 		lastTestingError = e;
@@ -78,206 +165,253 @@ public class ChessTrainer implements Serializable {
 	 */
 	public void performEpoch(Runnable backup) {
 		epochs++;
-		
-		int batchSize = 1;
-		double actualLearningRate = learningRate/batchSize;
-		
-		trainingData.get().sequential().forEach((data)->{
-			BackpropData bp = performBackpropogation(data);
-			ChessAIMain.print("Training Error Estimate: "+Math.sqrt(bp.err/batchSize), true, true);
-			
-			//Do learning
-			for (int i = 0; i<bp.val.length; i++) {
-				for (int j = 0; j<bp.val[i].length; j++) {
-					Neuron n = network.getNeuralData()[i][j];
-					n.setBias(n.getBias() + actualLearningRate*bp.val[i][j][0]);
-					for (int k = 1; k<bp.val[i][j].length; k++) {
-						n.getWeights()[k-1] += actualLearningRate*bp.val[i][j][k];
-					}
-				}
+		shuffle(order);
+
+		long startTime = System.nanoTime();
+
+		double reportError = 0;
+		int reportCount = 0;
+
+		//Split each batch across the workers, which read its samples into their own buffers, before learning from it once
+		for (int start = 0; start<trainingSize; start += batchSize) {
+			int first = start;
+			int count = Math.min(batchSize, trainingSize - start);
+			boolean last = start + count == trainingSize;
+			TrainingWorkspace gradients = backpropogation.backpropogate((i, buffer)->trainingData.read(order[first + i], buffer), count);
+
+			reportError += gradients.getError();
+			reportCount += gradients.getCount();
+			if (reportCount >= REPORT_INTERVAL || last) {
+				ChessAIMain.print("Training Error Estimate: "+Math.sqrt(reportError/reportCount), true, true);
+				reportError = 0;
+				reportCount = 0;
 			}
 
-			//Run the backup code
-			backup.run();
-		});
-		
-		
-		/*
-		
-		int batchSize = 100;
-		double actualLearningRate = learningRate/batchSize;
-		double friction = 0.9;
-
-		//Batch the input data into batches
-		StreamUtil.batchStream(trainingData.get(), batchSize, true).forEach((s)->{
-			//Calculate the momentum given by these batches
-			BackpropData bpval = s.map(this::performBackpropogation).reduce(generateMomentumBP(), this::sumBPData, this::sumBPData);
-
-			ChessAIMain.print("Training Error Estimate: "+Math.sqrt(bpval.err/batchSize), true, true);
-			
-			learningMomentum = sumArray3(bpval.val, learningMomentum);
-
-			//Apply the learning momentum
-			for (int i = 0; i<learningMomentum.length; i++) {
-				for (int j = 0; j<learningMomentum[i].length; j++) {
-					Neuron n = network.getNeuralData()[i][j];
-					n.setBias(n.getBias() + actualLearningRate*learningMomentum[i][j][0]);
-					learningMomentum[i][j][0] *= friction;
-					for (int k = 1; k<learningMomentum[i][j].length; k++) {
-						n.getWeights()[k-1] += actualLearningRate*learningMomentum[i][j][k];
-						learningMomentum[i][j][k] *= friction;
-					}
-				}
-			}
+			//Do learning
+			applyGradients(gradients);
 
 			//Run the backup code
 			backup.run();
-		});*/
-	}
-
-	private double[][][] sumArray3(double[][][] a1, double[][][] a2) {
-		double[][][] result = new double[a1.length][][];
-		for (int i = 0; i<result.length; i++) {
-			result[i] = new double[a1[i].length][];
-			for (int j = 0; j<result[i].length; j++) {
-				result[i][j] = new double[a1[i][j].length];
-				for (int k = 0; k<result[i][j].length; k++) {
-					result[i][j][k] = a1[i][j][k] + a2[i][j][k];
-				}
-			}
 		}
-		return result;
-	}
 
-	private BackpropData generateMomentumBP() {
-		BackpropData result = new BackpropData();
-		result.val = generateMomentumArr();
-		result.count = 0;
-		result.err = 0;
-		return result;
+		printThroughput("Synchronous", trainingSize, startTime);
 	}
 
-	private BackpropData sumBPData(BackpropData a1, BackpropData a2) {
-		BackpropData result = new BackpropData();
-		result.val = sumArray3(a1.val, a2.val);
-		result.count = a1.count + a2.count;
-		result.err = a1.err + a2.err;
-		return result;
-	}
-
-	public TrainingResult getResult() {
-		return new TrainingResult(calculateAverageError(trainingData), calculateAverageError(testingData), epochs, calculateAverageError(trainingData) <= epsilon);
-	}
+	/**
+	 * Perform an epoch using asynchronous lock-free gradient descent (Hogwild)
+	 * 
+	 * Each thread reads samples from the training data into its own buffer and learns from every sample on its own, writing straight into the
+	 * shared weights and learning momentum without any locking. Updates from different threads may overwrite each other, which
+	 * costs a little accuracy in exchange for never waiting on the other threads.
+	 * 
+	 * A sample only writes the weights that its gradient touches: in the first layer only the columns of its non-zero inputs,
+	 * and in every layer only the rows whose delta is non-zero. The momentum is decayed and added to the weights once per batch size samples
+	 * with the same friction and learning rate as {@link ChessTrainer#performEpoch(Runnable)}. The differences are that each sample sees the
+	 * updates of the samples before it, that the momentum is added at the start of a batch so its gradients are taken after it (as in Nesterov momentum),
+	 * and that a final partial batch is scaled by the batch size instead of by its own size.
+	 * 
+	 * Is next epoch needed MUST ALWAYS be called before this
+	 * 
+	 * @param threads the number of threads to train with
+	 * @param backup the backup code which is run by one thread at a time every batch size samples
+	 */
+	public void performAsynchronousEpoch(int threads, Runnable backup) {
+		epochs++;
 
-	private BackpropData performBackpropogation(double[] data) {
-		Neuron[][] neuralData = network.getNeuralData();
-		double[][] neuralOutputs = new double[network.getNeuralData().length][];
-		double[][] neuralDeltas = new double[network.getNeuralData().length][];
+		shuffle(order);
+		AtomicInteger next = new AtomicInteger();
+		AtomicLong samples = new AtomicLong();
+		DoubleAdder reportError = new DoubleAdder();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		long startTime = System.nanoTime();
+		double sampleRate = learningRate/batchSize;
+		//Without momentum the gradients are only added to the weights
+		double momentum = friction != 0 ? 1 : 0;
+
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t<threads; t++) {
+			workers[t] = new Thread(()->{
+				TrainingWorkspace workspace = new TrainingWorkspace(network);
+				double[] buffer = new double[evaluationBuffers[0].length];
+				try {
+					while (failure.get() == null) {
+						int position = next.getAndIncrement();
+						if (position >= trainingSize) break;
+						if (friction != 0 && position % batchSize == 0) {
+							//The first sample of each batch adds the momentum, after decaying it for the end of the previous batch
+							momentumLock.lock();
+							try {
+								stepMomentum(position == 0 ? 1 : friction, sampleRate);
+							} finally {
+								momentumLock.unlock();
+							}
+						}
+						double[] data = trainingData.read(order[position], buffer);
+
+						reportError.add(workspace.computeDeltas(data, 0, network.getInputNeurons()));
+
+						//Do learning
+						applySample(workspace, data, momentum, sampleRate);
+
+						long sample = samples.incrementAndGet();
+						if (sample % REPORT_INTERVAL == 0) {
+							ChessAIMain.print("Training Error Estimate: "+Math.sqrt(reportError.sumThenReset()/REPORT_INTERVAL), true, true);
+						}
+						if (sample % batchSize == 0) {
+							//Run the backup code
+							synchronized (backup) {
+								backup.run();
+							}
+						}
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}, "Hogwild-" + t);
+			workers[t].start();
+		}
 
-		double[][] trial = splitArray(data, network.getInputNeurons());
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		if (failure.get() != null) throw new RuntimeException("Asynchronous training failed", failure.get());
 
-		double[] input =  trial[0];
-		double[] target = trial[1];
+		//Decay the momentum for the end of the last batch, leaving it as the synchronous epoch does
+		if (friction != 0 && trainingSize > 0) stepMomentum(friction, 0);
 
-		//double[][][] result = generateMomentumArr();
-		BackpropData result = new BackpropData();
-		result.val = generateMomentumArr();
-		result.count = 1;
+		printThroughput("Asynchronous", samples.get(), startTime);
+	}
 
-		{
-			double[] lastLayer = trial[0];
-			for (int i = 0; i<neuralOutputs.length; i++) {
-				neuralOutputs[i] = new double[network.getNeuralData()[i].length];
-				for (int j = 0; j<neuralOutputs[i].length; j++) {
-					neuralOutputs[i][j] = neuralData[i][j].getOutput(lastLayer);
-				}
-				lastLayer = neuralOutputs[i];
+	/**
+	 * Decay the learning momentum and add it to the weights
+	 * 
+	 * @param decay the fraction of the momentum to keep
+	 * @param rate the scale of the momentum when it is added to the weights
+	 */
+	private void stepMomentum(double decay, double rate) {
+		Layer[] layers = network.getLayers();
+		for (int i = 0; i<layers.length; i++) {
+			Layer layer = layers[i];
+			Kernels.momentumDecay(biasMomentum[i], rate, layer.getBiases(), decay);
+			if (layer.getPrecision() == Precision.FLOAT) {
+				Kernels.momentumDecay(floatWeightMomentum[i], rate, layer.getFloatWeights(), decay);
+			} else {
+				Kernels.momentumDecay(weightMomentum[i], rate, layer.getWeights(), decay);
 			}
 		}
-		
-		for (int i = 0; i<target.length; i++) {
-			double e = neuralOutputs[neuralOutputs.length-1][i] - target[i];
-			result.err += e*e;
-		}
-		result.err /= target.length;
-		result.err /= target.length;
-
-		//double[][][] result = new double[network.getNeuralData().length][][];
-
-		for (int i = neuralOutputs.length-1; i>=0; i--) {
-			//result[i] = new double[network.getNeuralData()[i].length][];
-			neuralDeltas[i] = new double[network.getNeuralData()[i].length];
-			for (int j = 0; j<neuralOutputs[i].length; j++) {
-				//result[i][j] = new double[network.getNeuralData()[i][j].getParentNeurons() + 1];
-				Neuron neuron = neuralData[i][j];
-				double output = neuralOutputs[i][j];
-				double deltaWeight;
-				if (i == neuralOutputs.length-1) { //Last Hidden -> Output Layer Connection Delta Weight
-					deltaWeight = neuron.getDerivativeFunction().apply(output) * (target[j] - output); //Derivative of error squared (Chain rule). 2 ignored b/c of later multiplied constant
-				} else { //Layer -> Hidden Layer Connection Delta Weight
-					final int iVal = i;
-					final int jVal = j;
-					double sum = IntStream.range(0, neuralOutputs[i+1].length).mapToDouble((idx)->neuralData[iVal+1][idx].getWeights()[jVal] * neuralDeltas[iVal+1][idx]).sum();
-					deltaWeight = neuron.getDerivativeFunction().apply(output) * sum;
+	}
+
+	/**
+	 * Learn from the deltas of a single sample by adding its gradients to the learning momentum and to the weights
+	 * 
+	 * @param workspace the workspace that the deltas of the sample were computed in
+	 * @param data the sample
+	 * @param momentum the scale of the gradients when they are added to the learning momentum
+	 * @param rate the scale of the gradients when they are added to the weights
+	 */
+	private void applySample(TrainingWorkspace workspace, double[] data, double momentum, double rate) {
+		Layer[] layers = network.getLayers();
+		double[][] outputs = workspace.getOutputs();
+		double[][] deltas = workspace.getDeltas();
+		SparseVector input = workspace.getSparseInput();
+
+		for (int i = 0; i<layers.length; i++) {
+			Layer layer = layers[i];
+			double[] delta = deltas[i];
+			int inputs = layer.getInputs();
+			boolean useFloat = layer.getPrecision() == Precision.FLOAT;
+
+			Kernels.momentumAxpy(momentum, delta, biasMomentum[i], rate, layer.getBiases());
+			if (i == 0 && input.isSparse()) {
+				//Only the columns of the active inputs have a gradient
+				if (useFloat) {
+					Kernels.sparseMomentumOuterProduct(momentum, delta, input.getIndices(), input.getValues(), input.size(), floatWeightMomentum[i], rate, layer.getFloatWeights(), delta.length, inputs);
+				} else {
+					Kernels.sparseMomentumOuterProduct(momentum, delta, input.getIndices(), input.getValues(), input.size(), weightMomentum[i], rate, layer.getWeights(), delta.length, inputs);
 				}
-				neuralDeltas[i][j] = deltaWeight;
-				//New weight = oldWeight + k * output(source) * deltaWeight(thisNode)
-				result.val[i][j][0] += deltaWeight;
-				for (int k = 0; k < neuron.getWeights().length; k++) {
-					result.val[i][j][k+1] += (i > 0 ? neuralOutputs[i-1][k] : input[k]) * deltaWeight;
-					//neuron.getWeights()[k] += learningRate * (i > 0 ? neuralOutputs[i-1][k] : input[k]) * deltaWeight;
+			} else {
+				double[] prev = i > 0 ? outputs[i-1] : data;
+				if (useFloat) {
+					Kernels.momentumOuterProduct(momentum, delta, prev, 0, floatWeightMomentum[i], rate, layer.getFloatWeights(), delta.length, inputs);
+				} else {
+					Kernels.momentumOuterProduct(momentum, delta, prev, 0, weightMomentum[i], rate, layer.getWeights(), delta.length, inputs);
 				}
-				//neuron.setBias(neuron.getBias() + learningRate * deltaWeight);
 			}
 		}
-		//System.out.println(Arrays.deepToString(neuralOutputs));
-		return result;
-	} 
-	//Output neurons: constant * FromOutput * error
-	//Hidden neurons: constant * FromOutput * error
-
-	private double[][] splitArray(double[] arr, int lengthFirst) {
-		double[][] output = new double[][] {new double[lengthFirst], new double[arr.length-lengthFirst]};
-
-		System.arraycopy(arr, 0, output[0], 0, lengthFirst);
-		System.arraycopy(arr, lengthFirst, output[1], 0, arr.length - lengthFirst);
-
-		return output;
 	}
 
-	//Basically Standard Deviation
-	private double calculateError(double[] inputs, double[] desiredOutputs) {
-		double[] outputs = network.testAll(inputs);
-		double error = 0;
+	/**
+	 * Print the number of samples trained on per second
+	 * 
+	 * @param mode the name of the training mode
+	 * @param samples the number of samples trained on
+	 * @param startTime the time that training started at in nanoseconds
+	 */
+	private void printThroughput(String mode, long samples, long startTime) {
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		ChessAIMain.print(mode + " epoch trained on " + samples + " samples in " + String.format("%.2f", seconds) + "s (" + String.format("%.1f", samples / seconds) + " samples/sec)");
+	}
 
-		for (int i = 0; i<outputs.length; i++) {
-			double err = outputs[i] - desiredOutputs[i];
-			error += (err*err);
+	/**
+	 * Learn from the gradients accumulated in a workspace using the learning momentum
+	 * Without momentum the velocity is only the gradient and is reset to zero after the step
+	 * 
+	 * @param workspace the workspace containing the gradients of a batch
+	 */
+	private void applyGradients(TrainingWorkspace workspace) {
+		double actualLearningRate = learningRate/workspace.getCount();
+		double[][] weightGradients = workspace.getWeightGradients();
+		double[][] biasGradients = workspace.getBiasGradients();
+
+		for (int i = 0; i<weightGradients.length; i++) {
+			Layer layer = network.getLayers()[i];
+			Kernels.momentumStep(1, biasGradients[i], biasMomentum[i], actualLearningRate, layer.getBiases(), friction);
+			if (layer.getPrecision() == Precision.FLOAT) {
+				Kernels.momentumStep(1, weightGradients[i], floatWeightMomentum[i], actualLearningRate, layer.getFloatWeights(), friction);
+			} else {
+				Kernels.momentumStep(1, weightGradients[i], weightMomentum[i], actualLearningRate, layer.getWeights(), friction);
+			}
 		}
-		
-		return error/outputs.length/outputs.length;
 	}
 
-	private double calculateAverageError(Supplier<Stream<double[]>> dataSet) {
-		if (dataSet == null) return 0;
+	/**
+	 * Shut down the threads that the gradients are calculated on
+	 * The trainer cannot train after it has been closed until it is initialized again
+	 */
+	@Override
+	public void close() {
+		backpropogation.close();
+	}
 
-		TempData finalDataVal = dataSet.get().reduce(new TempData(), (td, d)->{
-			TempData newData = new TempData();
-			newData.count = td.count + 1;
-			double[][] arr = splitArray(d, network.getInputNeurons());
-			newData.err = calculateError(arr[0], arr[1]) + td.err;
-			return newData;
-		}, (a, b)->{
-			TempData newData = new TempData();
-			newData.count = a.count + b.count;
-			newData.err = a.err + b.err;
-			return newData;
-		});
+	public TrainingResult getResult() {
+		double trainingError = calculateAverageError(trainingData, trainingSize);
+		return new TrainingResult(trainingError, calculateAverageError(testingData, testingSize), epochs, trainingError <= epsilon);
+	}
 
-		if (finalDataVal.count == 0) return 0;
+	private double calculateAverageError(SampleReader dataSet, int size) {
+		if (dataSet == null || size == 0) return 0;
+
+		double totalError = 0;
+		double[][] samples = new double[evaluationBuffers.length][];
+		//Evaluate the data set in batches
+		for (int start = 0; start<size; start += samples.length) {
+			int n = Math.min(samples.length, size - start);
+			for (int b = 0; b<n; b++) {
+				samples[b] = dataSet.read(start + b, evaluationBuffers[b]);
+				evaluator.setInput(b, samples[b], 0);
+			}
+			evaluator.evaluate(n);
+			for (int b = 0; b<n; b++) {
+				totalError += evaluator.calculateError(b, samples[b], network.getInputNeurons());
+			}
+		}
 
-		return Math.sqrt(finalDataVal.err/finalDataVal.count);
-	} 
+		return Math.sqrt(totalError/size);
+	}
 
 	public static int[] shuffle(int[] arr) {
 		for (int i = 0; i<arr.length; i++) {
@@ -314,16 +448,4 @@ public class ChessTrainer implements Serializable {
 		public String toString() {
 			return "Training Result[err= " + trainingDataError + " test= " + testingDataError + " e= " + epochs + " success= " + success + "]";
 		}
-	}
-
-	private static class TempData {
-		public double err;
-		public int count;
-	}
-
-	private static class BackpropData {
-		public double[][][] val;
-		public double err;
-		public int count;
-	}
-}
+	}}
@@ -0,0 +1,299 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sergeysav.neuralnetwork.NetworkSnapshot;
+import sergeysav.neuralnetwork.NeuralNetwork;
+import sergeysav.neuralnetwork.SnapshotPublisher;
+
+/**
+ * Collects move prediction requests from many threads into batches for the network
+ *
+ * A forward pass of a whole batch reads each weight once for every input in the batch instead of once per request,
+ * which turns many matrix-vector products into one matrix-matrix product.
+ * A batch is evaluated as soon as it is full or the first request in it has waited for the latency budget,
+ * so a lone request is never delayed by more than the budget.
+ *
+ * The network is only evaluated on a fixed number of platform worker threads, each forming and evaluating its own batches.
+ * Threads that submit requests, which may be virtual threads blocked on sockets, never run a forward pass themselves,
+ * so however many requests are waiting the evaluation never has more threads than cores to share.
+ * Each batch is evaluated with the latest snapshot of the network, so the network can keep training
+ * and publish its new weights through {@link InferenceBatcher#getSnapshots()} while the batcher is running.
+ *
+ * @author sergeys
+ *
+ */
+public class InferenceBatcher implements AutoCloseable {
+
+	/**
+	 * The most likely moves of a position
+	 */
+	public static class Prediction {
+		/**
+		 * The moves from most to least likely
+		 */
+		public final int[] moves;
+
+		/**
+		 * The probability of each move
+		 */
+		public final double[] probabilities;
+
+		/**
+		 * Create a new prediction
+		 *
+		 * @param moves the moves from most to least likely
+		 * @param probabilities the probability of each move
+		 */
+		public Prediction(int[] moves, double[] probabilities) {
+			this.moves = moves;
+			this.probabilities = probabilities;
+		}
+	}
+
+	//A position waiting to be evaluated
+	private static class Request {
+		private final ChessBoard board;
+		private final double[] inputs;
+		private final int k;
+		private final long submitTime;
+		private final CompletableFuture<Prediction> result = new CompletableFuture<>();
+
+		private Request(ChessBoard board, int k) {
+			this.board = board;
+			this.k = k;
+			inputs = board.generateNeuralInputs(board.isWhiteMoving());
+			submitTime = System.nanoTime();
+		}
+	}
+
+	//The number of recent latencies that the percentiles are taken from
+	private static final int LATENCY_WINDOW = 10000;
+
+	private final SnapshotPublisher snapshots;
+	private final int inputNeurons;
+	private final int maxBatch;
+	private final long latencyBudget;
+
+	//The requests that have not been put into a batch
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+	private final LatencyRecorder latencies = new LatencyRecorder(LATENCY_WINDOW);
+
+	//The number of batches evaluated and the number of requests in them
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong batchedRequests = new AtomicLong();
+
+	private final Thread[] workers;
+	private volatile boolean running = true;
+
+	/**
+	 * Create a new batcher with a single worker thread and start it
+	 *
+	 * @see InferenceBatcher#InferenceBatcher(SnapshotPublisher, int, long, int)
+	 *
+	 * @param network the network to predict moves with
+	 * @param maxBatch the most requests to evaluate at once
+	 * @param latencyBudgetMicros the longest time in microseconds that a request waits for more requests to join its batch
+	 */
+	public InferenceBatcher(NeuralNetwork network, int maxBatch, long latencyBudgetMicros) {
+		this(network, maxBatch, latencyBudgetMicros, 1);
+	}
+
+	/**
+	 * Create a new batcher that predicts with a snapshot of the current weights of a network and start its worker threads
+	 *
+	 * @see InferenceBatcher#InferenceBatcher(SnapshotPublisher, int, long, int)
+	 *
+	 * @param network the network to predict moves with
+	 * @param maxBatch the most requests to evaluate at once
+	 * @param latencyBudgetMicros the longest time in microseconds that a request waits for more requests to join its batch
+	 * @param computeThreads the number of worker threads evaluating batches, usually the number of cores
+	 */
+	public InferenceBatcher(NeuralNetwork network, int maxBatch, long latencyBudgetMicros, int computeThreads) {
+		this(new SnapshotPublisher(network), maxBatch, latencyBudgetMicros, computeThreads);
+	}
+
+	/**
+	 * Create a new batcher and start its worker threads
+	 *
+	 * @throws IllegalArgumentException when the network does not have 384 inputs and 134 outputs, or the batch size or number of threads is less than 1
+	 *
+	 * @param snapshots the publisher of the snapshots of the network to predict moves with
+	 * @param maxBatch the most requests to evaluate at once
+	 * @param latencyBudgetMicros the longest time in microseconds that a request waits for more requests to join its batch
+	 * @param computeThreads the number of worker threads evaluating batches, usually the number of cores
+	 */
+	public InferenceBatcher(SnapshotPublisher snapshots, int maxBatch, long latencyBudgetMicros, int computeThreads) {
+		NetworkSnapshot snapshot = snapshots.acquire();
+		try {
+			MoveDecoder.checkNetwork(snapshot.getInputNeurons(), snapshot.getOutputNeurons());
+			inputNeurons = snapshot.getInputNeurons();
+		} finally {
+			snapshots.release(snapshot);
+		}
+		if (maxBatch < 1) throw new IllegalArgumentException("The batch size must be at least 1. " + maxBatch + " given.");
+		if (computeThreads < 1) throw new IllegalArgumentException("There must be at least one compute thread. " + computeThreads + " given.");
+
+		this.snapshots = snapshots;
+		this.maxBatch = maxBatch;
+		latencyBudget = latencyBudgetMicros * 1000;
+
+		workers = new Thread[computeThreads];
+		for (int t = 0; t<computeThreads; t++) {
+			workers[t] = new Thread(new Worker(), "Inference-Batcher-" + t);
+			workers[t].setDaemon(true);
+			workers[t].start();
+		}
+	}
+
+	/**
+	 * Ask for the most likely moves of a position
+	 * The inputs of the position are generated on the calling thread
+	 *
+	 * @throws IllegalStateException when the batcher has been closed
+	 *
+	 * @param board the position, which must not be changed until the prediction is complete
+	 * @param k the most moves to return
+	 * @return the prediction, which is completed by a worker thread
+	 */
+	public CompletableFuture<Prediction> submit(ChessBoard board, int k) {
+		if (!running) throw new IllegalStateException("The batcher has been closed.");
+		Request request = new Request(board, k);
+		queue.add(request);
+		//The batcher may have been closed after the check, in which case nothing would take the request
+		if (!running && queue.remove(request)) request.result.completeExceptionally(new IllegalStateException("The batcher has been closed."));
+		return request.result;
+	}
+
+	/**
+	 * Get the publisher of the snapshots that batches are evaluated with
+	 * Publishing a snapshot changes the weights used by every batch evaluated afterwards
+	 *
+	 * @return the publisher
+	 */
+	public SnapshotPublisher getSnapshots() {
+		return snapshots;
+	}
+
+	/**
+	 * Get the latencies of completed requests, measured from submitting to completing
+	 *
+	 * @return the recorder
+	 */
+	public LatencyRecorder getLatencies() {
+		return latencies;
+	}
+
+	/**
+	 * Get the average number of requests evaluated together
+	 *
+	 * @return the mean batch size
+	 */
+	public double getMeanBatchSize() {
+		long b = batches.get();
+		return b == 0 ? 0 : (double) batchedRequests.get() / b;
+	}
+
+	/**
+	 * Stop the worker threads and fail every request that has not been evaluated
+	 */
+	@Override
+	public void close() {
+		running = false;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		List<Request> left = new ArrayList<>();
+		queue.drainTo(left);
+		for (Request request : left) {
+			request.result.completeExceptionally(new IllegalStateException("The batcher has been closed."));
+		}
+	}
+
+	//A worker thread with its own buffers, so that workers share nothing but the queue
+	private class Worker implements Runnable {
+		private final MoveDecoder decoder = new MoveDecoder(null);
+		private final Request[] batch = new Request[maxBatch];
+		private final double[] batchInputs = new double[maxBatch * inputNeurons];
+		private final int[] topMoves = new int[ChessBoard.MAX_MOVES];
+		private final double[] topProbabilities = new double[ChessBoard.MAX_MOVES];
+
+		@Override
+		public void run() {
+			while (running) {
+				int size = 0;
+				try {
+					Request first = queue.take();
+					batch[size++] = first;
+					//Wait for more requests until the first one has used up its budget
+					long deadline = first.submitTime + latencyBudget;
+					while (size < maxBatch) {
+						long wait = deadline - System.nanoTime();
+						Request request = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+						if (request == null) break;
+						batch[size++] = request;
+					}
+				} catch (InterruptedException e) {
+					//Put the requests that were taken back so that closing fails them
+					for (int i = 0; i<size; i++) {
+						queue.add(batch[i]);
+					}
+					break;
+				}
+
+				evaluate(size);
+				for (int i = 0; i<size; i++) {
+					batch[i] = null;
+				}
+			}
+		}
+
+		private void evaluate(int size) {
+			try {
+				for (int i = 0; i<size; i++) {
+					System.arraycopy(batch[i].inputs, 0, batchInputs, i * inputNeurons, inputNeurons);
+				}
+				double[] outputs;
+				NetworkSnapshot snapshot = snapshots.acquire();
+				try {
+					outputs = snapshot.testBatch(batchInputs, size);
+				} finally {
+					snapshots.release(snapshot);
+				}
+
+				for (int i = 0; i<size; i++) {
+					Request request = batch[i];
+					int count = decoder.decode(request.board, outputs, i * MoveDecoder.OUTPUTS, request.k, topMoves, topProbabilities);
+					int[] moves = new int[count];
+					double[] probabilities = new double[count];
+					System.arraycopy(topMoves, 0, moves, 0, count);
+					System.arraycopy(topProbabilities, 0, probabilities, 0, count);
+					request.result.complete(new Prediction(moves, probabilities));
+					latencies.record(System.nanoTime() - request.submitTime);
+				}
+				batchedRequests.addAndGet(size);
+				batches.incrementAndGet();
+			} catch (RuntimeException | Error e) {
+				//Fail the batch but keep the worker, otherwise every later request would wait forever
+				for (int i = 0; i<size; i++) {
+					batch[i].result.completeExceptionally(e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput and latency of an {@link InferenceServer} under many concurrent game sessions
+ *
+ * Each session plays a game against the server: it asks for the best move of its position, plays it and asks again,
+ * starting a new game whenever one ends. Every session runs on its own virtual thread when the runtime has them,
+ * otherwise the sessions share a pool of platform threads and far fewer of them are really concurrent.
+ *
+ * Usage: InferenceLoadTester [store file or port] [sessions] [requests per session] [max batch]
+ * With a store file a server is started in this process on a free port, with a port the server already running on it is used.
+ * On virtual threads every session holds a connection open at once, and an in process server holds the other end of it,
+ * so the process needs two file descriptors per session. Run the server in its own process when the open file limit is lower.
+ *
+ * @author sergeys
+ *
+ */
+public class InferenceLoadTester {
+
+	//The number of platform threads running sessions when there are no virtual threads
+	private static final int FALLBACK_THREADS = 512;
+
+	//The latency budget of an in process server in microseconds
+	private static final long LATENCY_BUDGET = 2000;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.out.println("Usage: InferenceLoadTester [store file or port] [sessions] [requests per session] [max batch]");
+			return;
+		}
+		int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int requests = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int maxBatch = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+		InferenceBatcher batcher = null;
+		InferenceServer server = null;
+		int port;
+		if (args[0].matches("\\d+")) {
+			port = Integer.parseInt(args[0]);
+		} else {
+			ChessStore store = ChessStore.load(new File(args[0]));
+			if (store == null) throw new IllegalArgumentException("Could not load a network from " + args[0] + ".");
+			store.network.init();
+			batcher = new InferenceBatcher(store.network, maxBatch, LATENCY_BUDGET, Runtime.getRuntime().availableProcessors());
+			server = new InferenceServer(batcher, 0);
+			port = server.getPort();
+		}
+		String base = "http://localhost:" + port;
+
+		System.out.println(sessions + " sessions of " + requests + " requests on " + (VirtualThreads.isAvailable() ? "virtual threads" : FALLBACK_THREADS + " platform threads"));
+		LatencyRecorder latencies = new LatencyRecorder(sessions * requests);
+		AtomicLong errors = new AtomicLong();
+		ExecutorService executor = VirtualThreads.newExecutor(FALLBACK_THREADS, "Session");
+		long startTime = System.nanoTime();
+		for (int s = 0; s<sessions; s++) {
+			executor.execute(() -> playSession(base, requests, latencies, errors));
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+
+		System.out.println(String.format("%d requests in %.2fs: %.1f requests/sec, p50 %.2fms, p99 %.2fms, %d errors",
+				latencies.getCount(), seconds, latencies.getCount() / seconds, latencies.getPercentile(50), latencies.getPercentile(99), errors.get()));
+		System.out.println("Server: " + new String(get(base + "/stats"), StandardCharsets.UTF_8));
+
+		if (server != null) server.close();
+		if (batcher != null) batcher.close();
+	}
+
+	private static void playSession(String base, int requests, LatencyRecorder latencies, AtomicLong errors) {
+		ChessBoard board = new ChessBoard();
+		int[] legal = new int[ChessBoard.MAX_MOVES];
+		for (int r = 0; r<requests; r++) {
+			int count = board.generateMoves(legal, 0);
+			if (count == 0) {
+				board = new ChessBoard();
+				count = board.generateMoves(legal, 0);
+			}
+
+			long start = System.nanoTime();
+			String response;
+			try {
+				response = new String(get(base + "/predict?k=1&fen=" + encode(board.toFen())), StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				errors.incrementAndGet();
+				continue;
+			}
+			latencies.record(System.nanoTime() - start);
+
+			//Play the predicted move
+			int at = response.indexOf("\"move\": \"");
+			String uci = at < 0 ? "" : response.substring(at + 9, response.indexOf('"', at + 9));
+			int move = Move.NONE;
+			for (int i = 0; i<count; i++) {
+				if (Move.toUci(legal[i]).equals(uci)) move = legal[i];
+			}
+			if (move == Move.NONE) {
+				errors.incrementAndGet();
+				board = new ChessBoard();
+			} else {
+				board.makeMove(move);
+			}
+		}
+	}
+
+	private static byte[] get(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+		if (connection.getResponseCode() != 200) {
+			connection.disconnect();
+			throw new IOException("The server answered " + connection.getResponseCode() + " to " + url);
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (InputStream in = connection.getInputStream()) {
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				body.write(buffer, 0, read);
+			}
+		}
+		return body.toByteArray();
+	}
+
+	private static String encode(String text) throws UnsupportedEncodingException {
+		return URLEncoder.encode(text, "UTF-8");
+	}
+}
@@ -0,0 +1,228 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import sergeysav.neuralnetwork.NeuralNetwork;
+
+/**
+ * A local HTTP server that predicts the moves of chess positions with a trained network
+ *
+ * The server only listens on the loopback address.
+ * Each request is handled on its own virtual thread when the runtime has them (see {@link VirtualThreads}),
+ * while the forward passes run on the bounded worker threads of the {@link InferenceBatcher}.
+ *
+ * GET or POST /predict with the form parameters:
+ * fen = the position in Forsyth-Edwards Notation, the starting position if missing
+ * moves = moves to make from the position separated by spaces, in standard algebraic notation (Nf3) or coordinates (g1f3)
+ * k = the number of moves to return, 5 if missing
+ * returns {"fen": ..., "moves": [{"move": "e2e4", "probability": 0.25}, ...]}
+ *
+ * GET /stats returns the number of requests, the throughput, the p50 and p99 latencies and the mean batch size.
+ *
+ * Usage: InferenceServer [store file] [port] [max batch] [latency budget in microseconds] [compute threads]
+ *
+ * @author sergeys
+ *
+ */
+public class InferenceServer implements AutoCloseable {
+
+	//The number of platform threads parsing requests and waiting for their predictions when there are no virtual threads
+	private static final int HANDLER_THREADS = 64;
+
+	//The number of connections that can wait to be accepted, which has to cover bursts from thousands of sessions
+	private static final int BACKLOG = 4096;
+
+	//The number of moves returned when k is not given
+	private static final int DEFAULT_K = 5;
+
+	private final InferenceBatcher batcher;
+	private final HttpServer server;
+	private final ExecutorService handlers;
+
+	/**
+	 * Create a new server and start listening
+	 *
+	 * @throws IOException when the port cannot be bound
+	 *
+	 * @param batcher the batcher that evaluates the positions
+	 * @param port the port to listen on, or 0 for any free port
+	 */
+	public InferenceServer(InferenceBatcher batcher, int port) throws IOException {
+		this.batcher = batcher;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+		server.createContext("/predict", this::predict);
+		server.createContext("/stats", this::stats);
+		handlers = VirtualThreads.newExecutor(HANDLER_THREADS, "Inference-Handler");
+		server.setExecutor(handlers);
+		server.start();
+	}
+
+	/**
+	 * Get the port that the server is listening on
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop the server
+	 * The batcher is not closed
+	 */
+	@Override
+	public void close() {
+		server.stop(0);
+		handlers.shutdown();
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.out.println("Usage: InferenceServer [store file] [port] [max batch] [latency budget in microseconds] [compute threads]");
+			return;
+		}
+		ChessStore store = ChessStore.load(new File(args[0]));
+		if (store == null) throw new IllegalArgumentException("Could not load a network from " + args[0] + ".");
+		NeuralNetwork network = store.network;
+		network.init();
+
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+		int maxBatch = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+		long budget = args.length > 3 ? Long.parseLong(args[3]) : 2000;
+		int computeThreads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+		InferenceBatcher batcher = new InferenceBatcher(network, maxBatch, budget, computeThreads);
+		InferenceServer server = new InferenceServer(batcher, port);
+		System.out.println("Listening on http://localhost:" + server.getPort() + "/predict with " + computeThreads + " compute threads and " + (VirtualThreads.isAvailable() ? "virtual" : HANDLER_THREADS + " platform") + " request threads");
+
+		//Report the latencies and throughput every 10 seconds
+		LatencyRecorder latencies = batcher.getLatencies();
+		while (true) {
+			Thread.sleep(10000);
+			if (latencies.getCount() > 0) {
+				System.out.println(String.format("%d requests, %.1f requests/sec, p50 %.2fms, p99 %.2fms, mean batch %.1f", latencies.getCount(), latencies.getThroughput(), latencies.getPercentile(50), latencies.getPercentile(99), batcher.getMeanBatchSize()));
+			}
+		}
+	}
+
+	/**
+	 * Read a position from the parameters of a request
+	 *
+	 * @throws IllegalArgumentException when the position or one of the moves cannot be read
+	 *
+	 * @param fen the position in Forsyth-Edwards Notation or null for the starting position
+	 * @param moves moves separated by spaces to make from the position, or null
+	 * @return the position after the moves
+	 */
+	public static ChessBoard readPosition(String fen, String moves) {
+		ChessBoard board = fen == null || fen.trim().isEmpty() ? new ChessBoard() : new ChessBoard(fen.trim());
+		if (moves == null) return board;
+
+		int[] legal = new int[ChessBoard.MAX_MOVES];
+		for (String text : moves.trim().split("[\\s,]+")) {
+			if (text.isEmpty()) continue;
+			board.makeMove(readMove(board, text, legal));
+		}
+		return board;
+	}
+
+	//Match coordinate notation against the legal moves, otherwise read standard algebraic notation
+	private static int readMove(ChessBoard board, String text, int[] legal) {
+		int count = board.generateMoves(legal, 0);
+		for (int i = 0; i<count; i++) {
+			if (Move.toUci(legal[i]).equals(text)) return legal[i];
+		}
+		return board.getMoveConverted(text, board.isWhiteMoving());
+	}
+
+	private void predict(HttpExchange exchange) throws IOException {
+		try {
+			Map<String, String> params = readParameters(exchange);
+			ChessBoard board = readPosition(params.get("fen"), params.get("moves"));
+			int k = params.containsKey("k") ? Integer.parseInt(params.get("k")) : DEFAULT_K;
+			if (k < 1) throw new IllegalArgumentException("k must be at least 1. " + k + " given.");
+
+			InferenceBatcher.Prediction prediction = batcher.submit(board, k).get();
+
+			StringBuilder json = new StringBuilder();
+			json.append("{\"fen\": \"").append(board.toFen()).append("\", \"moves\": [");
+			for (int i = 0; i<prediction.moves.length; i++) {
+				if (i > 0) json.append(", ");
+				json.append("{\"move\": \"").append(Move.toUci(prediction.moves[i])).append("\", \"probability\": ").append(prediction.probabilities[i]).append('}');
+			}
+			json.append("]}");
+			respond(exchange, 200, json.toString());
+		} catch (IllegalArgumentException e) {
+			respond(exchange, 400, error(e.getMessage()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			respond(exchange, 503, error("The request was interrupted."));
+		} catch (ExecutionException | RuntimeException e) {
+			respond(exchange, 500, error(String.valueOf(e.getCause() != null ? e.getCause() : e)));
+		}
+	}
+
+	private void stats(HttpExchange exchange) throws IOException {
+		LatencyRecorder latencies = batcher.getLatencies();
+		respond(exchange, 200, String.format("{\"requests\": %d, \"throughput\": %.2f, \"p50Millis\": %.3f, \"p99Millis\": %.3f, \"meanBatchSize\": %.2f}",
+				latencies.getCount(), latencies.getThroughput(), latencies.getPercentile(50), latencies.getPercentile(99), batcher.getMeanBatchSize()));
+	}
+
+	//Read the form parameters of the query string and, for a POST, of the body
+	private static Map<String, String> readParameters(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<>();
+		readForm(exchange.getRequestURI().getRawQuery(), params);
+		if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (InputStream in = exchange.getRequestBody()) {
+				byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					body.write(buffer, 0, read);
+				}
+			}
+			readForm(new String(body.toByteArray(), StandardCharsets.UTF_8), params);
+		}
+		return params;
+	}
+
+	private static void readForm(String form, Map<String, String> params) throws UnsupportedEncodingException {
+		if (form == null) return;
+		for (String pair : form.split("&")) {
+			if (pair.isEmpty()) continue;
+			int equals = pair.indexOf('=');
+			String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+			String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+			params.put(name, value);
+		}
+	}
+
+	private static String error(String message) {
+		return "{\"error\": \"" + String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
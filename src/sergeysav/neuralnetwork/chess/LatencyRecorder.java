@@ -0,0 +1,91 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.util.Arrays;
+
+/**
+ * Records how long requests take and how many are completed
+ *
+ * Only the most recent latencies are kept, so the percentiles follow the current load instead of the whole history.
+ * Every method is synchronized, so requests can be recorded from any thread.
+ *
+ * @author sergeys
+ *
+ */
+public class LatencyRecorder {
+
+	//The most recent latencies in nanoseconds as a ring buffer
+	private final long[] samples;
+
+	//The index of the next sample to overwrite
+	private int next;
+
+	//The number of requests recorded since the recorder was created or reset
+	private long count;
+
+	//The time that the recorder was created or reset
+	private long startTime = System.nanoTime();
+
+	/**
+	 * Create a new recorder
+	 *
+	 * @param window the number of recent latencies that percentiles are taken from
+	 */
+	public LatencyRecorder(int window) {
+		if (window < 1) throw new IllegalArgumentException("The window must hold at least one latency. " + window + " given.");
+		samples = new long[window];
+	}
+
+	/**
+	 * Record a completed request
+	 *
+	 * @param nanos the time the request took in nanoseconds
+	 */
+	public synchronized void record(long nanos) {
+		samples[next] = nanos;
+		next = (next + 1) % samples.length;
+		count++;
+	}
+
+	/**
+	 * Get a percentile of the recent latencies
+	 *
+	 * @param percentile the percentile from 0 to 100
+	 * @return the latency in milliseconds, or 0 if nothing has been recorded
+	 */
+	public synchronized double getPercentile(double percentile) {
+		int size = (int) Math.min(count, samples.length);
+		if (size == 0) return 0;
+		long[] sorted = Arrays.copyOf(samples, size);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * size) - 1;
+		return sorted[Math.max(0, Math.min(size - 1, index))] / 1e6;
+	}
+
+	/**
+	 * Get the number of requests recorded
+	 *
+	 * @return the number of requests since the recorder was created or reset
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the average rate that requests were completed at
+	 *
+	 * @return the number of requests per second since the recorder was created or reset
+	 */
+	public synchronized double getThroughput() {
+		long nanos = System.nanoTime() - startTime;
+		return nanos == 0 ? 0 : count * 1e9 / nanos;
+	}
+
+	/**
+	 * Forget every recorded request
+	 */
+	public synchronized void reset() {
+		next = 0;
+		count = 0;
+		startTime = System.nanoTime();
+	}
+}
@@ -0,0 +1,167 @@
+package sergeysav.neuralnetwork.chess;
+
+/**
+ * A class for chess moves packed into an int
+ *
+ * Bits:
+ * 0-5 = The square the piece moves from
+ * 6-11 = The square the piece moves to (the rook's square for castles)
+ * 12-14 = The type of the piece that moves
+ * 15-17 = The type a pawn is promoted to, or 0
+ * 18 = Castle
+ * 19 = En passant capture
+ * 20 = Black moving
+ *
+ * Squares and piece types are numbered as in {@link ChessBoard}.
+ * Moves are created by the board that they are made on, which fills in the flags.
+ *
+ * @author sergeys
+ *
+ */
+public class Move {
+
+	/**
+	 * A value that is never a move
+	 */
+	public static final int NONE = 0;
+
+	/**
+	 * The flag of a castle, where the king moves onto its own rook
+	 */
+	public static final int CASTLE = 1 << 18;
+
+	/**
+	 * The flag of a pawn capturing en passant
+	 */
+	public static final int EN_PASSANT = 1 << 19;
+
+	//The flag of a move made by black
+	private static final int BLACK = 1 << 20;
+
+	/**
+	 * Pack a move into an int
+	 *
+	 * @param from the square the piece moves from
+	 * @param to the square the piece moves to
+	 * @param piece the piece that moves, positive for white and negative for black
+	 * @param promotion the type a pawn is promoted to, or 0
+	 * @param flags {@link Move#CASTLE}, {@link Move#EN_PASSANT} or 0
+	 * @return the move
+	 */
+	public static int create(int from, int to, int piece, int promotion, int flags) {
+		return from | (to << 6) | (Math.abs(piece) << 12) | (promotion << 15) | flags | (piece < 0 ? BLACK : 0);
+	}
+
+	/**
+	 * Get the square that a move starts from
+	 *
+	 * @param move the move
+	 * @return the square
+	 */
+	public static int getFrom(int move) {
+		return move & 63;
+	}
+
+	/**
+	 * Get the square that a move ends on
+	 *
+	 * @param move the move
+	 * @return the square
+	 */
+	public static int getTo(int move) {
+		return (move >>> 6) & 63;
+	}
+
+	/**
+	 * Get the type of the piece that moves
+	 *
+	 * @param move the move
+	 * @return the piece type from 1 to 6
+	 */
+	public static int getPiece(int move) {
+		return (move >>> 12) & 7;
+	}
+
+	/**
+	 * Get the type that a pawn is promoted to
+	 *
+	 * @param move the move
+	 * @return the piece type or 0 if the move is not a promotion
+	 */
+	public static int getPromotion(int move) {
+		return (move >>> 15) & 7;
+	}
+
+	/**
+	 * Get the type of the piece after the move, which is the promoted type for promotions
+	 *
+	 * @param move the move
+	 * @return the piece type from 1 to 6
+	 */
+	public static int getNewType(int move) {
+		int promotion = getPromotion(move);
+		return promotion != 0 ? promotion : getPiece(move);
+	}
+
+	/**
+	 * Check if a move is a castle
+	 *
+	 * @param move the move
+	 * @return true if the king moves onto its own rook
+	 */
+	public static boolean isCastle(int move) {
+		return (move & CASTLE) != 0;
+	}
+
+	/**
+	 * Check if a move is an en passant capture
+	 *
+	 * @param move the move
+	 * @return true if a pawn captures the pawn that skipped over its destination
+	 */
+	public static boolean isEnpassant(int move) {
+		return (move & EN_PASSANT) != 0;
+	}
+
+	/**
+	 * Check if a move is made by white
+	 *
+	 * @param move the move
+	 * @return true if white is moving
+	 */
+	public static boolean isWhite(int move) {
+		return (move & BLACK) == 0;
+	}
+
+	/**
+	 * Write a move in the coordinate notation of the Universal Chess Interface, such as e2e4 or e7e8q
+	 * Castles are written as the king moving two squares
+	 *
+	 * @param move the move
+	 * @return the move as a string
+	 */
+	public static String toUci(int move) {
+		int from = getFrom(move);
+		int to = getTo(move);
+		if (isCastle(move)) to = (to & 56) | ((to & 7) > (from & 7) ? 6 : 2);
+		StringBuilder builder = new StringBuilder(5);
+		builder.append((char) ('a' + (from & 7))).append((char) ('1' + (from >> 3)));
+		builder.append((char) ('a' + (to & 7))).append((char) ('1' + (to >> 3)));
+		if (getPromotion(move) != 0) builder.append("prnbqk".charAt(getPromotion(move) - 1));
+		return builder.toString();
+	}
+
+	/**
+	 * Write a move in the old converted format for debugging and logging
+	 * Format: RowCol;RowCol;NewType;CASTLE where CASTLE is only written for castles and NewType is negative for black
+	 *
+	 * @param move the move
+	 * @return the move as a string
+	 */
+	public static String toString(int move) {
+		int from = getFrom(move);
+		int to = getTo(move);
+		int newType = isWhite(move) ? getNewType(move) : -getNewType(move);
+		return (from >> 3) + "" + (from & 7) + ";" + (to >> 3) + "" + (to & 7) + ";" + newType + (isCastle(move) ? ";CASTLE" : "");
+	}
+}
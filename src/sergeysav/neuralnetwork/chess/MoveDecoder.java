@@ -0,0 +1,180 @@
+package sergeysav.neuralnetwork.chess;
+
+import sergeysav.neuralnetwork.NeuralNetwork;
+import sergeysav.neuralnetwork.SparseVector;
+
+/**
+ * Turns the outputs of a network into a ranking of the legal moves of a position
+ *
+ * The network has one output for each from square, each to square and each new piece type, laid out as the transcripts write them.
+ * Taking the largest output on its own gives a square or a piece type rather than a move, and often one that cannot move at all.
+ * Instead every legal move is scored by the sum of its from, to and piece outputs, which masks out every illegal move,
+ * and a softmax over those scores turns them into probabilities.
+ *
+ * A decoder reuses its buffers for every position, so decoding allocates nothing. It is not thread safe, so each thread needs its own.
+ *
+ * @author sergeys
+ *
+ */
+public class MoveDecoder {
+
+	/**
+	 * The number of network inputs: 6 piece types on each of the 64 squares
+	 */
+	public static final int INPUTS = 384;
+
+	/**
+	 * The number of network outputs: 64 from squares, 64 to squares and 6 piece types
+	 */
+	public static final int OUTPUTS = 134;
+
+	//The network, or null if the outputs are always given
+	private final NeuralNetwork network;
+
+	//The inputs and the outputs of each layer of the network
+	private final SparseVector inputs = new SparseVector(INPUTS);
+	private final double[][] layerOutputs;
+
+	//The legal moves of the position and the score of each of them
+	private final int[] moves = new int[ChessBoard.MAX_MOVES];
+	private final double[] scores = new double[ChessBoard.MAX_MOVES];
+
+	//The scores are divided by this before the softmax, higher values spread the probabilities more evenly
+	private double temperature = 1;
+
+	/**
+	 * Create a new decoder
+	 *
+	 * @throws IllegalArgumentException when the network does not have 384 inputs and 134 outputs
+	 *
+	 * @param network the network to evaluate positions with, or null if only precomputed outputs will be decoded
+	 */
+	public MoveDecoder(NeuralNetwork network) {
+		this.network = network;
+		if (network != null) {
+			layerOutputs = network.createLayerOutputs();
+			checkNetwork(network.getInputNeurons(), layerOutputs[layerOutputs.length-1].length);
+		} else {
+			layerOutputs = null;
+		}
+	}
+
+	/**
+	 * Check that a network has the shape of a chess network
+	 *
+	 * @throws IllegalArgumentException when the network does not have {@link MoveDecoder#INPUTS} inputs and {@link MoveDecoder#OUTPUTS} outputs
+	 *
+	 * @param inputs the number of inputs of the network
+	 * @param outputs the number of outputs of the network
+	 */
+	public static void checkNetwork(int inputs, int outputs) {
+		if (inputs != INPUTS || outputs != OUTPUTS) {
+			throw new IllegalArgumentException("The network has " + inputs + " inputs and " + outputs + " outputs when " + INPUTS + " and " + OUTPUTS + " were expected.");
+		}
+	}
+
+	/**
+	 * Evaluate a position with the network and find its most likely moves
+	 *
+	 * @throws IllegalStateException when the decoder was created without a network
+	 *
+	 * @param board the position
+	 * @param k the most moves to return
+	 * @param topMoves the array to store the moves in, from most to least likely
+	 * @param topProbabilities the array to store the probability of each move in
+	 * @return the number of moves stored, which is less than k when there are fewer legal moves
+	 */
+	public int decode(ChessBoard board, int k, int[] topMoves, double[] topProbabilities) {
+		if (network == null) throw new IllegalStateException("The decoder has no network to evaluate positions with.");
+		board.generateNeuralInputs(board.isWhiteMoving(), inputs);
+		double[] outputs = network.testAll(inputs, layerOutputs);
+		return decode(board, outputs, 0, k, topMoves, topProbabilities);
+	}
+
+	/**
+	 * Find the most likely moves of a position from outputs that have already been calculated
+	 *
+	 * @param board the position
+	 * @param outputs the array containing the network outputs for the position
+	 * @param offset the index in the array of the first output
+	 * @param k the most moves to return
+	 * @param topMoves the array to store the moves in, from most to least likely
+	 * @param topProbabilities the array to store the probability of each move in
+	 * @return the number of moves stored, which is less than k when there are fewer legal moves
+	 */
+	public int decode(ChessBoard board, double[] outputs, int offset, int k, int[] topMoves, double[] topProbabilities) {
+		int count = board.generateMoves(moves, 0);
+		if (count == 0) return 0;
+
+		boolean white = board.isWhiteMoving();
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i<count; i++) {
+			scores[i] = getLogit(outputs, offset, moves[i], white) / temperature;
+			if (scores[i] > max) max = scores[i];
+		}
+
+		//Subtract the largest score so that the exponents can not overflow
+		double sum = 0;
+		for (int i = 0; i<count; i++) {
+			scores[i] = Math.exp(scores[i] - max);
+			sum += scores[i];
+		}
+
+		//Select the best remaining move k times, which is cheaper than sorting when k is small
+		int n = Math.min(k, count);
+		for (int i = 0; i<n; i++) {
+			int best = i;
+			for (int j = i + 1; j<count; j++) {
+				if (scores[j] > scores[best]) best = j;
+			}
+			int move = moves[best];
+			double score = scores[best];
+			moves[best] = moves[i];
+			scores[best] = scores[i];
+			moves[i] = move;
+			scores[i] = score;
+
+			topMoves[i] = move;
+			topProbabilities[i] = score / sum;
+		}
+		return n;
+	}
+
+	/**
+	 * Set the temperature of the softmax
+	 *
+	 * @throws IllegalArgumentException when the temperature is not positive
+	 *
+	 * @param temperature the value the scores are divided by, where 1 uses the scores as they are
+	 */
+	public void setTemperature(double temperature) {
+		if (!(temperature > 0)) throw new IllegalArgumentException("The temperature must be positive. " + temperature + " given.");
+		this.temperature = temperature;
+	}
+
+	/**
+	 * Get the temperature of the softmax
+	 *
+	 * @return the value the scores are divided by
+	 */
+	public double getTemperature() {
+		return temperature;
+	}
+
+	/**
+	 * Score a move by the sum of the outputs of its from square, to square and new piece type
+	 * The network sees the board from the point of view of the side to move, so the rows are flipped for black
+	 *
+	 * @param outputs the array containing the network outputs for the position
+	 * @param offset the index in the array of the first output
+	 * @param move the move
+	 * @param white true if white is moving
+	 * @return the score of the move
+	 */
+	public static double getLogit(double[] outputs, int offset, int move, boolean white) {
+		int flip = white ? 0 : 56;
+		return outputs[offset + (Move.getFrom(move) ^ flip)] +
+				outputs[offset + 64 + (Move.getTo(move) ^ flip)] +
+				outputs[offset + 128 + Move.getNewType(move) - 1];
+	}
+}
@@ -0,0 +1,196 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import sergeysav.neuralnetwork.NeuralNetwork;
+
+/**
+ * A search of a chess position across many threads that share one transposition table (Lazy SMP)
+ *
+ * Every thread runs its own {@link Search} of the same position with its own copy of the board and its own move stacks.
+ * The threads never wait for each other: they only share what they find through the table, so a thread that reaches
+ * a position another thread has already searched gets its score and best move for free.
+ * Half of the helper threads start one ply deeper than the main thread so that the threads do not all search the same tree in step.
+ *
+ * The main thread decides the time and depth of the search and its result is the result of the whole search.
+ * The helpers are stopped as soon as it finishes.
+ *
+ * @author sergeys
+ *
+ */
+public class ParallelSearch {
+
+	//The search run on the calling thread followed by the searches of the helper threads
+	private final Search[] searches;
+
+	//The table shared by every thread
+	private final TranspositionTable table;
+
+	//The times that the last search started and finished, which include starting and stopping the helpers
+	private long startTime;
+	private long endTime;
+
+	/**
+	 * Create a new parallel search
+	 *
+	 * @throws IllegalArgumentException when there are less than 1 threads or the network does not have 384 inputs and 134 outputs
+	 *
+	 * @param board the position to search, which is copied for every thread
+	 * @param table the table shared by the threads
+	 * @param network the network to order moves with or null to order them by history alone, which must not be trained during the search
+	 * @param threads the number of threads to search with, including the calling thread
+	 */
+	public ParallelSearch(ChessBoard board, TranspositionTable table, NeuralNetwork network, int threads) {
+		if (threads < 1) throw new IllegalArgumentException("There must be at least one thread. " + threads + " given.");
+		this.table = table;
+		searches = new Search[threads];
+		for (int t = 0; t<threads; t++) {
+			searches[t] = new Search(board, table, network);
+		}
+	}
+
+	/**
+	 * Search the position until the time runs out or the depth is reached
+	 *
+	 * @see Search#search(long, int)
+	 *
+	 * @param millis the most time to search for in milliseconds or 0 for no limit
+	 * @param maxDepth the deepest iteration to search, from 1 to {@link Search#MAX_PLY} - 1
+	 * @return the best move or {@link Move#NONE} if the side to move has no legal moves
+	 */
+	public int search(long millis, int maxDepth) {
+		if (maxDepth < 1 || maxDepth >= Search.MAX_PLY) throw new IllegalArgumentException("The depth " + maxDepth + " is not between 1 and " + (Search.MAX_PLY - 1) + ".");
+
+		startTime = System.nanoTime();
+		endTime = 0;
+		table.newSearch();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+
+		//The helpers are prepared here so that stopping them can never happen before they are reset
+		Thread[] helpers = new Thread[searches.length - 1];
+		for (int t = 1; t<searches.length; t++) {
+			Search helper = searches[t];
+			helper.prepare(0);
+			int firstDepth = 1 + (t & 1);
+			helpers[t-1] = new Thread(()->{
+				try {
+					helper.iterate(0, firstDepth, Search.MAX_PLY - 1);
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}, "Search-" + t);
+			helpers[t-1].setDaemon(true);
+			helpers[t-1].start();
+		}
+
+		int move;
+		try {
+			move = searches[0].search(millis, maxDepth);
+		} finally {
+			for (int t = 1; t<searches.length; t++) {
+				searches[t].stop();
+			}
+			for (Thread helper : helpers) {
+				try {
+					helper.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			endTime = System.nanoTime();
+		}
+		if (failure.get() != null) throw new RuntimeException("A search thread failed", failure.get());
+
+		return move;
+	}
+
+	/**
+	 * Stop the search as soon as possible
+	 * Can be called from any thread
+	 */
+	public void stop() {
+		//The helpers are stopped by the main search returning
+		searches[0].stop();
+	}
+
+	/**
+	 * Set a function to call after every iteration completed by the main thread
+	 *
+	 * @param listener the function, or null to remove it
+	 */
+	public void setListener(Consumer<ParallelSearch> listener) {
+		searches[0].setListener(listener == null ? null : search -> listener.accept(this));
+	}
+
+	/**
+	 * Get the number of threads
+	 *
+	 * @return the number of threads including the calling thread
+	 */
+	public int getThreads() {
+		return searches.length;
+	}
+
+	/**
+	 * Get the score of the last iteration completed by the main thread
+	 *
+	 * @see Search#getScore()
+	 *
+	 * @return the score in centipawns for the side to move
+	 */
+	public int getScore() {
+		return searches[0].getScore();
+	}
+
+	/**
+	 * Get the depth of the last iteration completed by the main thread
+	 *
+	 * @return the depth
+	 */
+	public int getDepth() {
+		return searches[0].getDepth();
+	}
+
+	/**
+	 * Get the number of positions searched by every thread
+	 * While the search is running, the counts of the helpers may be slightly behind
+	 *
+	 * @return the number of nodes
+	 */
+	public long getNodes() {
+		long nodes = 0;
+		for (Search search : searches) {
+			nodes += search.getNodes();
+		}
+		return nodes;
+	}
+
+	/**
+	 * Get the time taken by the last search or the time since the current search started
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getElapsed() {
+		return ((endTime != 0 ? endTime : System.nanoTime()) - startTime) / 1000000;
+	}
+
+	/**
+	 * Get the speed of every thread together
+	 *
+	 * @return the number of nodes searched per second
+	 */
+	public long getNodesPerSecond() {
+		long millis = getElapsed();
+		return millis == 0 ? 0 : getNodes() * 1000 / millis;
+	}
+
+	/**
+	 * Get the best line found by the last iteration completed by the main thread
+	 *
+	 * @return the moves of the line starting with the best move
+	 */
+	public int[] getPrincipalVariation() {
+		return searches[0].getPrincipalVariation();
+	}
+}
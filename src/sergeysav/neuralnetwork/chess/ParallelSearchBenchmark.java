@@ -0,0 +1,92 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import sergeysav.neuralnetwork.NeuralNetwork;
+
+/**
+ * Measures how much faster a {@link ParallelSearch} reaches a fixed depth with more threads
+ *
+ * The positions are taken from the middle of games in the games directory, one game from each of a spread of files,
+ * so that the suite is the same in every run. Each position is searched with an empty table at 1, 2, 4, 8 and 16 threads.
+ * The speedup is the time to reach the depth with one thread divided by the time with more threads.
+ * Usage: ParallelSearchBenchmark [depth] [positions] [store file or -]
+ *
+ * @author sergeys
+ *
+ */
+public class ParallelSearchBenchmark {
+
+	//The numbers of threads to compare
+	private static final int[] THREADS = {1, 2, 4, 8, 16};
+
+	//The number of moves into a game that its position is taken from
+	private static final int POSITION_PLY = 30;
+
+	//The memory of the transposition table in megabytes
+	private static final int TABLE_SIZE = 64;
+
+	public static void main(String[] args) {
+		int depth = args.length > 0 ? Integer.parseInt(args[0]) : 7;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+
+		NeuralNetwork network = null;
+		if (args.length > 2 && !args[2].equals("-")) {
+			ChessStore store = ChessStore.load(new File(args[2]));
+			if (store == null) throw new IllegalArgumentException("Could not load a network from " + args[2] + ".");
+			network = store.network;
+			network.init();
+		}
+
+		List<ChessBoard> positions = loadPositions(new File("games"), count);
+		System.out.println(positions.size() + " positions searched to depth " + depth + " on " + Runtime.getRuntime().availableProcessors() + " processors");
+
+		TranspositionTable table = new TranspositionTable(TABLE_SIZE, network == null ? 0 : network.getLayers()[network.getLayers().length-1].getOutputs());
+		//Search every position once first so that the one thread times are not taken before the code is compiled
+		for (ChessBoard position : positions) {
+			table.clear();
+			new ParallelSearch(position, table, network, 1).search(0, depth);
+		}
+
+		long baseTime = 0;
+		for (int threads : THREADS) {
+			long totalNodes = 0;
+			long totalTime = 0;
+			for (ChessBoard position : positions) {
+				table.clear();
+				ParallelSearch search = new ParallelSearch(position, table, network, threads);
+				search.search(0, depth);
+				totalNodes += search.getNodes();
+				totalTime += search.getElapsed();
+			}
+			totalTime = Math.max(1, totalTime);
+			if (threads == 1) baseTime = totalTime;
+			System.out.println(String.format("%2d threads: %.2fs, speedup %.2f, %d nodes, %.0fk nodes/sec", threads, totalTime / 1e3, (double) baseTime / totalTime, totalNodes, (double) totalNodes / totalTime));
+		}
+	}
+
+	//Take a position from the middle of the first long enough game of evenly spaced files
+	private static List<ChessBoard> loadPositions(File directory, int count) {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(".pgn"));
+		if (files == null || files.length == 0) throw new IllegalArgumentException("There are no games in " + directory + ".");
+		Arrays.sort(files);
+
+		List<ChessBoard> positions = new ArrayList<>();
+		for (int i = 0; i<files.length && positions.size()<count; i += Math.max(1, files.length / count)) {
+			ChessBoard[] found = new ChessBoard[1];
+			PgnParser.readTranscripts(files[i], transcript -> {
+				if (found[0] != null || transcript.getMoveCount() <= POSITION_PLY) return;
+				ChessBoard board = new ChessBoard();
+				for (int m = 0; m<POSITION_PLY; m++) {
+					board.makeMove(transcript.getMove(m));
+				}
+				found[0] = board;
+			});
+			if (found[0] != null) positions.add(found[0]);
+		}
+		return positions;
+	}
+}
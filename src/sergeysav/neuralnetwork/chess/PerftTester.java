@@ -0,0 +1,107 @@
+package sergeysav.neuralnetwork.chess;
+
+/**
+ * Counts the leaf nodes of the move tree of standard test positions
+ *
+ * The counts are compared with the published values, which checks the move generator, and the speed is reported as a benchmark.
+ * Usage: PerftTester [depth] [position]
+ * With a position, the count under each of its moves is printed instead so that a wrong count can be tracked down.
+ *
+ * @author sergeys
+ *
+ */
+public class PerftTester {
+
+	//The standard test positions
+	private static final String[] POSITIONS = {
+			"rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+			"r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+			"8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+			"r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+			"rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+			"r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10"
+	};
+
+	//The published number of leaf nodes of each position from depth 1
+	private static final long[][] COUNTS = {
+			{20, 400, 8902, 197281, 4865609, 119060324},
+			{48, 2039, 97862, 4085603, 193690690},
+			{14, 191, 2812, 43238, 674624, 11030083},
+			{6, 264, 9467, 422333, 15833292},
+			{44, 1486, 62379, 2103487, 89941194},
+			{46, 2079, 89890, 3894594, 164075551}
+	};
+
+	public static void main(String[] args) {
+		int maxDepth = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+
+		if (args.length > 1) {
+			StringBuilder fen = new StringBuilder(args[1]);
+			for (int i = 2; i<args.length; i++) {
+				fen.append(' ').append(args[i]);
+			}
+			divide(new ChessBoard(fen.toString()), maxDepth);
+			return;
+		}
+
+		long totalNodes = 0;
+		long totalTime = 0;
+		boolean passed = true;
+		for (int p = 0; p<POSITIONS.length; p++) {
+			ChessBoard board = new ChessBoard(POSITIONS[p]);
+			int[] buffer = new int[ChessBoard.MAX_MOVES * maxDepth];
+			for (int depth = 1; depth<=Math.min(maxDepth, COUNTS[p].length); depth++) {
+				long startTime = System.nanoTime();
+				long nodes = perft(board, depth, buffer, 0);
+				long time = System.nanoTime() - startTime;
+				totalNodes += nodes;
+				totalTime += time;
+
+				boolean correct = nodes == COUNTS[p][depth-1];
+				passed &= correct;
+				System.out.println(String.format("Position %d depth %d: %d nodes in %.3fs (%.1fM nodes/sec) %s", p + 1, depth, nodes, time / 1e9, nodes / (time / 1e3), correct ? "OK" : "expected " + COUNTS[p][depth-1]));
+			}
+		}
+		System.out.println(String.format("%s: %d nodes in %.2fs (%.1fM nodes/sec)", passed ? "Passed" : "FAILED", totalNodes, totalTime / 1e9, totalNodes / (totalTime / 1e3)));
+	}
+
+	/**
+	 * Count the leaf nodes of the move tree below a position
+	 * The moves of each ply are generated into the buffer after the moves of the ply before it
+	 *
+	 * @param board the position, which is restored before returning
+	 * @param depth the number of plies to search
+	 * @param buffer the buffer to generate the moves into, which must hold {@link ChessBoard#MAX_MOVES} moves for every ply
+	 * @param offset the index of the first free element of the buffer
+	 * @return the number of positions exactly depth plies after the board
+	 */
+	public static long perft(ChessBoard board, int depth, int[] buffer, int offset) {
+		if (depth == 0) return 1;
+
+		int count = board.generateMoves(buffer, offset);
+		//The moves of the last ply are counted without making them
+		if (depth == 1) return count;
+
+		long nodes = 0;
+		for (int i = 0; i<count; i++) {
+			board.makeMove(buffer[offset + i]);
+			nodes += perft(board, depth - 1, buffer, offset + count);
+			board.unmakeMove();
+		}
+		return nodes;
+	}
+
+	private static void divide(ChessBoard board, int depth) {
+		int[] buffer = new int[ChessBoard.MAX_MOVES * (depth + 1)];
+		int count = board.generateMoves(buffer, 0);
+		long total = 0;
+		for (int i = 0; i<count; i++) {
+			board.makeMove(buffer[i]);
+			long nodes = perft(board, depth - 1, buffer, count);
+			board.unmakeMove();
+			total += nodes;
+			System.out.println(Move.toString(buffer[i]) + ": " + nodes);
+		}
+		System.out.println(count + " moves, " + total + " nodes");
+	}
+}
@@ -0,0 +1,343 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits PGN text into tokens in a single pass
+ *
+ * Comments, variations (which may be nested), numeric annotation glyphs and move annotations such as "!?"
+ * are skipped while reading, so only tags, move numbers, moves and results are returned.
+ * The text is read through a fixed buffer so lexing a file allocates nothing but the returned strings.
+ *
+ * @author sergeys
+ *
+ */
+public class PgnLexer {
+
+	/**
+	 * The kinds of token in PGN text
+	 */
+	public enum Token {
+		/**
+		 * A tag pair such as [Event "Casual Game"]
+		 */
+		TAG,
+		/**
+		 * A move number such as 12. or 12...
+		 */
+		MOVE_NUMBER,
+		/**
+		 * A move in standard algebraic notation
+		 */
+		MOVE,
+		/**
+		 * A game termination marker: 1-0, 0-1, 1/2-1/2 or *
+		 */
+		RESULT,
+		/**
+		 * The end of the text
+		 */
+		END
+	}
+
+	//The number of characters read from the reader at once
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	//The reader being lexed
+	private Reader reader;
+
+	//The characters read but not lexed yet
+	private char[] buffer = new char[BUFFER_SIZE];
+	private int position;
+	private int limit;
+
+	//The line of the character at the current position
+	private int line = 1;
+
+	//True if the last character read ended a line
+	private boolean lineStart = true;
+
+	//The text of the last token
+	private StringBuilder text = new StringBuilder();
+
+	//The name of the last tag
+	private String tagName;
+
+	//The value of the last move number
+	private int moveNumber;
+
+	//The token that was pushed back to be returned again
+	private Token pushedBack;
+
+	//The last token returned
+	private Token current;
+
+	/**
+	 * Create a new lexer for some PGN text
+	 *
+	 * @param reader the reader of the text
+	 */
+	public PgnLexer(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Read the next token
+	 *
+	 * @throws IOException when the reader fails
+	 *
+	 * @return the kind of token that was read
+	 */
+	public Token next() throws IOException {
+		if (pushedBack != null) {
+			current = pushedBack;
+			pushedBack = null;
+			return current;
+		}
+		current = lex();
+		return current;
+	}
+
+	/**
+	 * Return the last token again from the next call to {@link PgnLexer#next()}
+	 */
+	public void pushBack() {
+		pushedBack = current;
+	}
+
+	/**
+	 * Get the text of the last token
+	 * This is the value of a tag, the move or the result
+	 *
+	 * @return the text of the token
+	 */
+	public String getText() {
+		return text.toString();
+	}
+
+	/**
+	 * Get the name of the last tag
+	 *
+	 * @return the tag name
+	 */
+	public String getTagName() {
+		return tagName;
+	}
+
+	/**
+	 * Get the value of the last move number
+	 *
+	 * @return the move number
+	 */
+	public int getMoveNumber() {
+		return moveNumber;
+	}
+
+	/**
+	 * Get the line that the lexer has reached
+	 *
+	 * @return the line number starting at 1
+	 */
+	public int getLine() {
+		return line;
+	}
+
+	private Token lex() throws IOException {
+		while (true) {
+			boolean atLineStart = lineStart;
+			int c = read();
+			switch (c) {
+			case -1:
+				return Token.END;
+			case ' ':
+			case '\t':
+			case '\r':
+			case '\n':
+			case '.': //Stray periods
+			case '!': //Annotations separated from their move
+			case '?':
+				break;
+			case '%': //Escaped lines are only escapes at the start of a line
+				if (atLineStart) {
+					skipLine();
+					break;
+				}
+				return symbol(c);
+			case ';':
+				skipLine();
+				break;
+			case '{':
+				skipComment();
+				break;
+			case '(':
+				skipVariation();
+				break;
+			case '$':
+				//Numeric annotation glyph
+				while (Character.isDigit(peek())) read();
+				break;
+			case '[':
+				return tag();
+			case '*':
+				text.setLength(0);
+				text.append('*');
+				return Token.RESULT;
+			default:
+				return symbol(c);
+			}
+		}
+	}
+
+	private Token symbol(int first) throws IOException {
+		text.setLength(0);
+		if (Character.isDigit(first)) {
+			//A move number, a result, or castling written with zeros
+			int number = first - '0';
+			while (Character.isDigit(peek())) {
+				number = number * 10 + read() - '0';
+			}
+			if (peek() == '.') {
+				while (peek() == '.') read();
+				moveNumber = number;
+				return Token.MOVE_NUMBER;
+			}
+			text.append(number);
+			readSymbol();
+			String result = text.toString();
+			if (result.equals("1-0") || result.equals("0-1") || result.equals("1/2-1/2")) return Token.RESULT;
+			if (result.startsWith("0-0")) {
+				//Castling written with zeros
+				for (int i = 0; i<text.length(); i++) {
+					if (text.charAt(i) == '0') text.setCharAt(i, 'O');
+				}
+			}
+			return Token.MOVE;
+		}
+		text.append((char) first);
+		readSymbol();
+		//Remove annotations attached to the move
+		int end = text.length();
+		while (end > 0 && (text.charAt(end-1) == '!' || text.charAt(end-1) == '?')) end--;
+		text.setLength(end);
+		return Token.MOVE;
+	}
+
+	private void readSymbol() throws IOException {
+		while (true) {
+			int c = peek();
+			if (c == -1 || Character.isWhitespace(c)) return;
+			switch (c) {
+			case '[':
+			case ']':
+			case '{':
+			case '}':
+			case '(':
+			case ')':
+			case ';':
+			case '$':
+			case '"':
+				return;
+			default:
+				text.append((char) read());
+			}
+		}
+	}
+
+	private Token tag() throws IOException {
+		//Read the raw tag up to the bracket after the closing quote
+		//Real files contain unescaped quotes and backslashes, so a tag also ends at the end of its line
+		text.setLength(0);
+		int quotes = 0;
+		while (true) {
+			int c = peek();
+			if (c == -1 || c == '\n' || c == '\r') break;
+			read();
+			if (c == ']' && quotes >= 2) break;
+			if (c == '"') quotes++;
+			text.append((char) c);
+		}
+
+		//Split the name from the value
+		int nameStart = 0;
+		while (nameStart<text.length() && Character.isWhitespace(text.charAt(nameStart))) nameStart++;
+		int nameEnd = nameStart;
+		while (nameEnd<text.length() && text.charAt(nameEnd) != '"' && !Character.isWhitespace(text.charAt(nameEnd))) nameEnd++;
+		tagName = text.substring(nameStart, nameEnd);
+
+		int valueStart = text.indexOf("\"", nameEnd) + 1;
+		int valueEnd = text.lastIndexOf("\"");
+		if (valueStart == 0 || valueEnd < valueStart) {
+			text.setLength(0);
+		} else {
+			String value = text.substring(valueStart, valueEnd);
+			text.setLength(0);
+			for (int i = 0; i<value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\' && i + 1<value.length() && (value.charAt(i + 1) == '"' || value.charAt(i + 1) == '\\')) c = value.charAt(++i);
+				text.append(c);
+			}
+		}
+		return Token.TAG;
+	}
+
+	//Brace comments do not nest, so the first closing brace ends the comment whatever it contains
+	private void skipComment() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c != '}' && c != -1);
+	}
+
+	private void skipVariation() throws IOException {
+		int depth = 1;
+		while (depth > 0) {
+			int c = read();
+			switch (c) {
+			case -1:
+				return;
+			case '(':
+				depth++;
+				break;
+			case ')':
+				depth--;
+				break;
+			case '{':
+				//Comments inside of a variation may contain parentheses
+				skipComment();
+				break;
+			case ';':
+				skipLine();
+				break;
+			}
+		}
+	}
+
+	private void skipLine() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c != -1 && c != '\n');
+	}
+
+	private int peek() throws IOException {
+		if (position == limit && !fill()) return -1;
+		return buffer[position];
+	}
+
+	private int read() throws IOException {
+		if (position == limit && !fill()) return -1;
+		char c = buffer[position++];
+		lineStart = c == '\n';
+		if (lineStart) line++;
+		return c;
+	}
+
+	private boolean fill() throws IOException {
+		int n = reader.read(buffer, 0, buffer.length);
+		if (n <= 0) return false;
+		position = 0;
+		limit = n;
+		return true;
+	}
+}
@@ -0,0 +1,53 @@
+package sergeysav.neuralnetwork.chess;
+
+/**
+ * Thrown when a game in a PGN file cannot be read
+ * 
+ * The parser skips the rest of the game before this is thrown, so the next game can still be read
+ * 
+ * @author sergeys
+ *
+ */
+public class PgnParseException extends Exception {
+
+	private static final long serialVersionUID = -2317925518253612410L;
+
+	//The index of the game in its file starting at 1
+	private final int game;
+
+	//The line of the file that the error was found on
+	private final int line;
+
+	/**
+	 * Create a new parse exception
+	 * 
+	 * @param source the name of the file being parsed
+	 * @param game the index of the game in the file starting at 1
+	 * @param line the line of the file that the error was found on
+	 * @param message a description of the error
+	 * @param cause the exception that caused the error or null
+	 */
+	public PgnParseException(String source, int game, int line, String message, Throwable cause) {
+		super("Error reading " + source + "#" + game + " on line " + line + ": " + message, cause);
+		this.game = game;
+		this.line = line;
+	}
+
+	/**
+	 * Get the index of the game that could not be read
+	 * 
+	 * @return the index of the game in its file starting at 1
+	 */
+	public int getGame() {
+		return game;
+	}
+
+	/**
+	 * Get the line that the error was found on
+	 * 
+	 * @return the line number starting at 1
+	 */
+	public int getLine() {
+		return line;
+	}
+}
@@ -0,0 +1,133 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import sergeysav.neuralnetwork.chess.PgnLexer.Token;
+
+/**
+ * Reads the games of a PGN file as transcripts
+ *
+ * Each move is converted and played on a board as soon as it is lexed, so the move text of a game is never held as a string.
+ * A game ends at its result, at the tags of the next game or at the end of the file.
+ *
+ * @author sergeys
+ *
+ */
+public class PgnParser {
+
+	//The lexer of the file
+	private PgnLexer lexer;
+
+	//The name of the file used in errors
+	private String source;
+
+	//The number of games started
+	private int games;
+
+	/**
+	 * Create a new parser
+	 *
+	 * @param reader the reader of the PGN text
+	 * @param source the name of the text used in errors
+	 */
+	public PgnParser(Reader reader, String source) {
+		this.lexer = new PgnLexer(reader);
+		this.source = source;
+	}
+
+	/**
+	 * Read the next game
+	 *
+	 * @throws IOException when the reader fails or the file is malformed
+	 * @throws PgnParseException when the game cannot be read, after which the next game can still be read
+	 *
+	 * @return the transcript of the game or null if there are no more games
+	 */
+	public Transcript next() throws IOException, PgnParseException {
+		Transcript transcript = null;
+		ChessBoard board = null;
+		boolean whiteMoving = true;
+		boolean moved = false;
+		PgnParseException failure = null;
+
+		while (true) {
+			Token token = lexer.next();
+			if (token == Token.END) break;
+
+			if (transcript == null) {
+				games++;
+				transcript = new Transcript();
+				board = new ChessBoard();
+			}
+
+			if (token == Token.TAG) {
+				if (moved) {
+					//The tags of the next game ended a game without a result
+					lexer.pushBack();
+					break;
+				}
+				if (failure == null && (lexer.getTagName().equals("FEN") || (lexer.getTagName().equals("SetUp") && lexer.getText().equals("1")))) {
+					failure = new PgnParseException(source, games, lexer.getLine(), "Games starting from a set up position are not supported", null);
+				}
+			} else if (token == Token.MOVE) {
+				moved = true;
+				if (failure != null) continue; //Skip the rest of a game that could not be read
+				String move = lexer.getText();
+				try {
+					int converted = board.getMoveConverted(move, whiteMoving);
+					board.makeMove(converted);
+					transcript.addMove(converted);
+				} catch (RuntimeException e) {
+					failure = new PgnParseException(source, games, lexer.getLine(), "Could not play " + move + " for " + (whiteMoving ? "white" : "black"), e);
+				}
+				whiteMoving = !whiteMoving;
+			} else if (token == Token.RESULT) {
+				transcript.setOutcome(lexer.getText());
+				break;
+			}
+		}
+
+		if (failure != null) throw failure;
+		return transcript;
+	}
+
+	/**
+	 * Get the number of games started so far
+	 *
+	 * @return the index of the last game starting at 1
+	 */
+	public int getGames() {
+		return games;
+	}
+
+	/**
+	 * Read every game of a PGN file
+	 * Games that cannot be read are reported and skipped
+	 *
+	 * @param file the PGN file
+	 * @param transcripts the consumer given the transcript of each game as soon as it is read
+	 */
+	public static void readTranscripts(File file, Consumer<Transcript> transcripts) {
+		try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.ISO_8859_1)) {
+			PgnParser parser = new PgnParser(reader, file.getName());
+			while (true) {
+				try {
+					Transcript transcript = parser.next();
+					if (transcript == null) break;
+					transcripts.accept(transcript);
+				} catch (PgnParseException e) {
+					System.err.println(e.getMessage() + (e.getCause() != null ? " (" + e.getCause() + ")" : ""));
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Error reading " + file.getName());
+			e.printStackTrace();
+		}
+	}
+}
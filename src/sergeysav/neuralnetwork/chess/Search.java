@@ -0,0 +1,506 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import sergeysav.neuralnetwork.NeuralNetwork;
+import sergeysav.neuralnetwork.SparseVector;
+
+/**
+ * An iterative deepening principal variation search of a chess position
+ *
+ * Positions are scored by material from the point of view of the side to move.
+ * The outputs of the network (from square, to square and new piece type, as written by the transcripts) are used as a policy
+ * that orders the quiet moves of nodes near the root, where a good ordering saves the most work.
+ * Captures are searched first by most valuable victim and least valuable attacker, and the best move stored in the
+ * transposition table is always searched before anything else.
+ *
+ * The network outputs are cached in the transposition table with the search results, so a position reached again
+ * by another move order or in the next iteration is not evaluated twice.
+ *
+ * A search allocates nothing once it has been created. It is not thread safe, but many searches can share one table.
+ *
+ * @author sergeys
+ *
+ */
+public class Search {
+
+	/**
+	 * The score of being checkmated at the root, which is reduced by one for every ply to the mate
+	 */
+	public static final int MATE = 30000;
+
+	/**
+	 * The deepest ply that the search can reach
+	 */
+	public static final int MAX_PLY = 128;
+
+	//A score outside of every real score
+	private static final int INFINITY = 32000;
+
+	//Scores further from 0 than this are mates
+	private static final int MATE_BOUND = MATE - MAX_PLY;
+
+	//The value of each piece type in centipawns, starting at 0 for an empty square
+	private static final int[] VALUES = {0, 100, 500, 320, 330, 900, 0};
+
+	//The network is only evaluated at nodes with at least this much depth left, below that the ordering is not worth a forward pass
+	private static final int POLICY_DEPTH = 2;
+
+	//The policy is scaled by this before it is added to the history of a quiet move
+	private static final int POLICY_WEIGHT = 4096;
+
+	//The history of a move is halved once it passes this
+	private static final int MAX_HISTORY = 1 << 16;
+
+	//The ordering scores of the move from the table, captures and killer moves, which are all above any quiet move
+	private static final int TABLE_MOVE_SCORE = 1 << 30;
+	private static final int CAPTURE_SCORE = 1 << 24;
+	private static final int KILLER_SCORE = 1 << 22;
+
+	//The time is checked once every this many nodes plus one
+	private static final int CHECK_INTERVAL = 1023;
+
+	//The position being searched, which is restored after every search
+	private final ChessBoard board;
+
+	//The table of results and network outputs
+	private final TranspositionTable table;
+
+	//The network, or null if moves are ordered without it
+	private final NeuralNetwork network;
+
+	//The inputs and the outputs of each layer of the network
+	private final SparseVector inputs;
+	private final double[][] activations;
+
+	//The moves of every ply and the ordering score of each of them, MAX_MOVES for each ply
+	private final int[] moves = new int[ChessBoard.MAX_MOVES * MAX_PLY];
+	private final int[] scores = new int[ChessBoard.MAX_MOVES * MAX_PLY];
+
+	//Two quiet moves of each ply that caused a cutoff
+	private final int[][] killers = new int[MAX_PLY][2];
+
+	//A score for each quiet move indexed by [white ? 0 : 1][from][to] that grows every time the move causes a cutoff
+	private final int[] history = new int[2 * 64 * 64];
+
+	//The principal variation of each ply, MAX_PLY moves for each ply, and the number of moves in it
+	private final int[] pv = new int[MAX_PLY * MAX_PLY];
+	private final int[] pvLength = new int[MAX_PLY];
+
+	//The principal variation of the last completed iteration
+	private final int[] bestLine = new int[MAX_PLY];
+	private int bestLineLength;
+
+	//Called after every completed iteration
+	private Consumer<Search> listener;
+
+	//The state of the current search
+	private volatile boolean stopped;
+	private long deadline;
+	private long startTime;
+	private long endTime;
+	private long nodes;
+	private int completedDepth;
+	private int score;
+
+	/**
+	 * Create a new search
+	 *
+	 * @throws IllegalArgumentException when the network does not have 384 inputs and 134 outputs
+	 *
+	 * @param board the position to search, which is copied
+	 * @param table the table to store results in, which can be shared with other searches
+	 * @param network the network to order moves with or null to order them by history alone
+	 */
+	public Search(ChessBoard board, TranspositionTable table, NeuralNetwork network) {
+		this.board = new ChessBoard(board);
+		this.table = table;
+
+		this.network = network;
+
+		if (network != null) {
+			activations = network.createLayerOutputs();
+			MoveDecoder.checkNetwork(network.getInputNeurons(), activations[activations.length-1].length);
+			inputs = new SparseVector(MoveDecoder.INPUTS);
+		} else {
+			inputs = null;
+			activations = null;
+		}
+	}
+
+	/**
+	 * Search the position until the time runs out or the depth is reached
+	 * A new iteration is only started if it is likely to finish in the time left
+	 *
+	 * @param millis the most time to search for in milliseconds or 0 for no limit
+	 * @param maxDepth the deepest iteration to search, from 1 to {@link Search#MAX_PLY} - 1
+	 * @return the best move or {@link Move#NONE} if the side to move has no legal moves
+	 */
+	public int search(long millis, int maxDepth) {
+		if (maxDepth < 1 || maxDepth >= MAX_PLY) throw new IllegalArgumentException("The depth " + maxDepth + " is not between 1 and " + (MAX_PLY - 1) + ".");
+
+		prepare(millis);
+		return iterate(millis, 1, maxDepth);
+	}
+
+	//Reset the state of the search
+	//This is separate from iterate so that the search of another thread can be prepared, and stopped, before the thread starts
+	void prepare(long millis) {
+		startTime = System.nanoTime();
+		endTime = 0;
+		deadline = millis > 0 ? startTime + millis * 1000000 : Long.MAX_VALUE;
+		stopped = false;
+		nodes = 0;
+		completedDepth = 0;
+		score = 0;
+		bestLineLength = 0;
+		for (int[] k : killers) {
+			Arrays.fill(k, Move.NONE);
+		}
+		for (int i = 0; i<history.length; i++) {
+			history[i] >>= 3;
+		}
+	}
+
+	//Search every depth from the first depth to the max depth until the search is stopped
+	int iterate(long millis, int firstDepth, int maxDepth) {
+		for (int depth = firstDepth; depth<=maxDepth; depth++) {
+			int result = search(depth, -INFINITY, INFINITY, 0, true);
+			if (stopped) break;
+
+			score = result;
+			completedDepth = depth;
+			bestLineLength = pvLength[0];
+			System.arraycopy(pv, 0, bestLine, 0, bestLineLength);
+			if (listener != null) listener.accept(this);
+
+			//Each iteration takes a few times longer than the last, so one started after half of the time would not finish
+			if (millis > 0 && System.nanoTime() - startTime > millis * 500000) break;
+			//There is nothing more to find once a mate is found
+			if (Math.abs(score) >= MATE_BOUND) break;
+		}
+		endTime = System.nanoTime();
+
+		if (bestLineLength > 0) return bestLine[0];
+		//Not even the first iteration finished, so any legal move is better than none
+		return board.generateMoves(moves, 0) > 0 ? moves[0] : Move.NONE;
+	}
+
+	/**
+	 * Stop the search as soon as possible
+	 * Can be called from any thread
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Set a function to call after every completed iteration of a search
+	 *
+	 * @param listener the function, or null to remove it
+	 */
+	public void setListener(Consumer<Search> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Get the score of the last completed iteration
+	 *
+	 * @return the score in centipawns for the side to move, or ±({@link Search#MATE} - plies to mate) for a mate
+	 */
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * Get the depth of the last completed iteration
+	 *
+	 * @return the depth
+	 */
+	public int getDepth() {
+		return completedDepth;
+	}
+
+	/**
+	 * Get the number of positions searched so far by the current or last search
+	 *
+	 * @return the number of nodes
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Get the time taken by the last search or the time since the current search started
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getElapsed() {
+		return getNanos() / 1000000;
+	}
+
+	/**
+	 * Get the speed of the current or last search
+	 *
+	 * @return the number of nodes searched per second
+	 */
+	public long getNodesPerSecond() {
+		long nanos = getNanos();
+		return nanos == 0 ? 0 : nodes * 1000000000 / nanos;
+	}
+
+	private long getNanos() {
+		return (endTime != 0 ? endTime : System.nanoTime()) - startTime;
+	}
+
+	/**
+	 * Get the best line found by the last completed iteration
+	 *
+	 * @return the moves of the line starting with the best move
+	 */
+	public int[] getPrincipalVariation() {
+		return Arrays.copyOf(bestLine, bestLineLength);
+	}
+
+	/**
+	 * Get the time to spend on a move in a game with a clock
+	 *
+	 * @param remaining the time left on the clock in milliseconds
+	 * @param increment the time added to the clock after every move in milliseconds
+	 * @param movesToGo the number of moves until more time is added, or 0 if the time has to last for the rest of the game
+	 * @return the time to search for in milliseconds
+	 */
+	public static long getMoveTime(long remaining, long increment, int movesToGo) {
+		//Assume a game without a time control lasts about 30 more moves
+		int moves = movesToGo > 0 ? movesToGo : 30;
+		long time = remaining / moves + increment * 3 / 4;
+		//Never use more than half of the clock so that there is time for the moves after this one
+		return Math.max(1, Math.min(time, remaining / 2));
+	}
+
+	private int search(int depth, int alpha, int beta, int ply, boolean pvNode) {
+		pvLength[ply] = ply;
+		if (ply > 0 && board.isRepetition()) return 0;
+		if (depth <= 0) return quiesce(alpha, beta, ply);
+
+		if ((++nodes & CHECK_INTERVAL) == 0 && System.nanoTime() > deadline) stopped = true;
+		if (stopped) return 0;
+		if (ply >= MAX_PLY - 1) return evaluate();
+
+		long key = board.getKey();
+		long entry = table.probe(key);
+		int tableMove = Move.NONE;
+		if (entry != 0) {
+			tableMove = TranspositionTable.getMove(entry);
+			if (!pvNode && TranspositionTable.getDepth(entry) >= depth) {
+				int tableScore = fromTable(TranspositionTable.getScore(entry), ply);
+				int bound = TranspositionTable.getBound(entry);
+				if (bound == TranspositionTable.EXACT ||
+						(bound == TranspositionTable.LOWER_BOUND && tableScore >= beta) ||
+						(bound == TranspositionTable.UPPER_BOUND && tableScore <= alpha)) {
+					return tableScore;
+				}
+			}
+		}
+
+		int offset = ply * ChessBoard.MAX_MOVES;
+		int count = board.generateMoves(moves, offset);
+		boolean inCheck = board.isInCheck();
+		if (count == 0) return inCheck ? -MATE + ply : 0;
+
+		scoreMoves(offset, count, ply, tableMove, ply == 0 || depth >= POLICY_DEPTH, false);
+
+		int originalAlpha = alpha;
+		int best = -INFINITY;
+		int bestMove = Move.NONE;
+		for (int i = 0; i<count; i++) {
+			int move = pickMove(offset, i, count);
+			boolean quiet = board.getCaptured(move) == 0 && Move.getPromotion(move) == 0;
+
+			board.makeMove(move);
+			//Extend checks so that a forced line is not cut off at the horizon
+			int newDepth = board.isInCheck() ? depth : depth - 1;
+			int result;
+			if (i == 0) {
+				result = -search(newDepth, -beta, -alpha, ply + 1, pvNode);
+			} else {
+				//Late quiet moves are unlikely to be best, so they are first searched to a reduced depth
+				int reduction = depth >= 3 && i >= 3 && quiet && !inCheck && newDepth < depth ? 1 : 0;
+				result = -search(newDepth - reduction, -alpha - 1, -alpha, ply + 1, false);
+				if (result > alpha && reduction > 0) result = -search(newDepth, -alpha - 1, -alpha, ply + 1, false);
+				if (result > alpha && result < beta) result = -search(newDepth, -beta, -alpha, ply + 1, true);
+			}
+			board.unmakeMove();
+			if (stopped) return 0;
+
+			if (result > best) {
+				best = result;
+				bestMove = move;
+				if (result > alpha) {
+					alpha = result;
+					updatePrincipalVariation(ply, move);
+					if (result >= beta) {
+						if (quiet) updateHistory(ply, move, depth);
+						break;
+					}
+				}
+			}
+		}
+
+		int bound = best >= beta ? TranspositionTable.LOWER_BOUND : best > originalAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER_BOUND;
+		table.store(key, bound == TranspositionTable.UPPER_BOUND ? Move.NONE : bestMove, toTable(best, ply), depth, bound);
+		return best;
+	}
+
+	//Only search captures and promotions until the position is quiet so that the evaluation does not miss a hanging piece
+	private int quiesce(int alpha, int beta, int ply) {
+		if ((++nodes & CHECK_INTERVAL) == 0 && System.nanoTime() > deadline) stopped = true;
+		if (stopped) return 0;
+
+		boolean inCheck = board.isInCheck();
+		int best = -INFINITY;
+		if (!inCheck) {
+			//The side to move can usually do at least as well as standing still
+			best = evaluate();
+			if (best >= beta || ply >= MAX_PLY - 1) return best;
+			if (best > alpha) alpha = best;
+		} else if (ply >= MAX_PLY - 1) {
+			return evaluate();
+		}
+
+		int offset = ply * ChessBoard.MAX_MOVES;
+		int count = board.generateMoves(moves, offset);
+		if (count == 0) return inCheck ? -MATE + ply : 0;
+
+		//Every move out of check is searched, otherwise only the captures and promotions are
+		count = scoreMoves(offset, count, ply, Move.NONE, false, !inCheck);
+		for (int i = 0; i<count; i++) {
+			int move = pickMove(offset, i, count);
+			board.makeMove(move);
+			int result = -quiesce(-beta, -alpha, ply + 1);
+			board.unmakeMove();
+			if (stopped) return 0;
+
+			if (result > best) {
+				best = result;
+				if (result > alpha) {
+					alpha = result;
+					if (result >= beta) break;
+				}
+			}
+		}
+		return best;
+	}
+
+	//Score the moves for ordering, optionally dropping the quiet moves, and return the number of moves kept
+	private int scoreMoves(int offset, int count, int ply, int tableMove, boolean usePolicy, boolean capturesOnly) {
+		double[] policy = usePolicy && network != null ? getPolicy() : null;
+		boolean white = board.isWhiteMoving();
+		int side = white ? 0 : 1;
+
+		int kept = 0;
+		for (int i = 0; i<count; i++) {
+			int move = moves[offset + i];
+			int captured = board.getCaptured(move);
+			int promotion = Move.getPromotion(move);
+			if (capturesOnly && captured == 0 && promotion != ChessBoard.QUEEN) continue;
+
+			int from = Move.getFrom(move);
+			int to = Move.getTo(move);
+			int score;
+			if (move == tableMove) {
+				score = TABLE_MOVE_SCORE;
+			} else if (captured != 0 || promotion == ChessBoard.QUEEN) {
+				//Most valuable victim, then least valuable attacker
+				score = CAPTURE_SCORE + (VALUES[captured] + VALUES[promotion]) * 8 - VALUES[Move.getPiece(move)] / 100;
+			} else if (move == killers[ply][0]) {
+				score = KILLER_SCORE + 1;
+			} else if (move == killers[ply][1]) {
+				score = KILLER_SCORE;
+			} else {
+				score = history[(side << 12) | (from << 6) | to];
+			}
+
+			if (policy != null) score += (int) (POLICY_WEIGHT * MoveDecoder.getLogit(policy, 0, move, white));
+
+			moves[offset + kept] = move;
+			scores[offset + kept] = score;
+			kept++;
+		}
+		return kept;
+	}
+
+	//Get the network outputs of the position from the table or from a forward pass
+	private double[] getPolicy() {
+		double[] output = activations[activations.length-1];
+		long key = board.getKey();
+		if (table.probeOutputs(key, output)) return output;
+
+		board.generateNeuralInputs(board.isWhiteMoving(), inputs);
+		network.testAll(inputs, activations);
+		table.storeOutputs(key, output);
+		return output;
+	}
+
+	//Move the best scored move that has not been searched to the index and return it
+	private int pickMove(int offset, int index, int count) {
+		int best = offset + index;
+		for (int i = best + 1; i<offset + count; i++) {
+			if (scores[i] > scores[best]) best = i;
+		}
+		int move = moves[best];
+		int score = scores[best];
+		moves[best] = moves[offset + index];
+		scores[best] = scores[offset + index];
+		moves[offset + index] = move;
+		scores[offset + index] = score;
+		return move;
+	}
+
+	private void updatePrincipalVariation(int ply, int move) {
+		int start = ply * MAX_PLY;
+		int childStart = start + MAX_PLY;
+		pv[start + ply] = move;
+		for (int i = ply + 1; i<pvLength[ply + 1]; i++) {
+			pv[start + i] = pv[childStart + i];
+		}
+		pvLength[ply] = Math.max(pvLength[ply + 1], ply + 1);
+	}
+
+	private void updateHistory(int ply, int move, int depth) {
+		if (killers[ply][0] != move) {
+			killers[ply][1] = killers[ply][0];
+			killers[ply][0] = move;
+		}
+		int index = ((board.isWhiteMoving() ? 0 : 1) << 12) | (Move.getFrom(move) << 6) | Move.getTo(move);
+		history[index] += depth * depth;
+		if (history[index] > MAX_HISTORY) {
+			for (int i = 0; i<history.length; i++) {
+				history[i] >>= 1;
+			}
+		}
+	}
+
+	//Count the material of the side to move minus the material of the other side
+	private int evaluate() {
+		int result = 0;
+		for (int type = ChessBoard.PAWN; type<ChessBoard.KING; type++) {
+			result += VALUES[type] * (Long.bitCount(board.getPieces(type)) - Long.bitCount(board.getPieces(-type)));
+		}
+		return board.isWhiteMoving() ? result : -result;
+	}
+
+	//Mate scores are stored as the distance from the node instead of from the root, so they stay right wherever the node is reached
+	private static int toTable(int score, int ply) {
+		if (score >= MATE_BOUND) return score + ply;
+		if (score <= -MATE_BOUND) return score - ply;
+		return score;
+	}
+
+	private static int fromTable(int score, int ply) {
+		if (score >= MATE_BOUND) return score - ply;
+		if (score <= -MATE_BOUND) return score + ply;
+		return score;
+	}
+}
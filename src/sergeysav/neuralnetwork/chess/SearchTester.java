@@ -0,0 +1,77 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.io.File;
+
+import sergeysav.neuralnetwork.NeuralNetwork;
+
+/**
+ * Searches test positions and reports the depth reached, the nodes per second and the best line of every iteration
+ *
+ * Running it with and without a network shows what the move ordering of the network costs and saves at the same time limit.
+ * Usage: SearchTester [milliseconds] [store file or -] [position]
+ * Without a position, the positions of {@link PerftTester} are searched one after another.
+ *
+ * @author sergeys
+ *
+ */
+public class SearchTester {
+
+	//The positions searched when none is given
+	private static final String[] POSITIONS = {
+			"rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+			"r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+			"8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+			"r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+			"rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+			"r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10"
+	};
+
+	//The memory of the transposition table in megabytes
+	private static final int TABLE_SIZE = 64;
+
+	public static void main(String[] args) {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 5000;
+
+		NeuralNetwork network = null;
+		if (args.length > 1 && !args[1].equals("-")) {
+			ChessStore store = ChessStore.load(new File(args[1]));
+			if (store == null) throw new IllegalArgumentException("Could not load a network from " + args[1] + ".");
+			network = store.network;
+			network.init();
+		}
+
+		String[] positions = POSITIONS;
+		if (args.length > 2) {
+			StringBuilder fen = new StringBuilder(args[2]);
+			for (int i = 3; i<args.length; i++) {
+				fen.append(' ').append(args[i]);
+			}
+			positions = new String[] {fen.toString()};
+		}
+
+		TranspositionTable table = new TranspositionTable(TABLE_SIZE, network == null ? 0 : network.getLayers()[network.getLayers().length-1].getOutputs());
+		long totalNodes = 0;
+		long totalTime = 0;
+		for (String fen : positions) {
+			System.out.println(fen);
+			table.clear();
+			Search search = new Search(new ChessBoard(fen), table, network);
+			search.setListener(SearchTester::printIteration);
+			int move = search.search(millis, Search.MAX_PLY - 1);
+			totalNodes += search.getNodes();
+			totalTime += search.getElapsed();
+			System.out.println("Best move " + (move == Move.NONE ? "none" : Move.toUci(move)) + "\n");
+		}
+		System.out.println(String.format("%d nodes in %.2fs (%.0fk nodes/sec)", totalNodes, totalTime / 1e3, totalNodes / Math.max(1.0, totalTime)));
+	}
+
+	private static void printIteration(Search search) {
+		StringBuilder line = new StringBuilder();
+		for (int move : search.getPrincipalVariation()) {
+			line.append(' ').append(Move.toUci(move));
+		}
+		int score = search.getScore();
+		String scoreText = Math.abs(score) >= Search.MATE - Search.MAX_PLY ? "mate " + (score > 0 ? (Search.MATE - score + 1) / 2 : -(Search.MATE + score) / 2) : "cp " + score;
+		System.out.println(String.format("depth %d score %s nodes %d time %d nps %d pv%s", search.getDepth(), scoreText, search.getNodes(), search.getElapsed(), search.getNodesPerSecond(), line));
+	}
+}
@@ -1,13 +1,20 @@
 package sergeysav.neuralnetwork.chess;
 
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.Spliterator;
 import java.util.function.Consumer;
 
 public class Transcript {
-	private LinkedList<String> moves = new LinkedList<String>();
+	/**
+	 * The number of values in each sample: 384 board inputs followed by 64 from squares, 64 to squares and 6 piece types
+	 */
+	public static final int SAMPLE_LENGTH = 518;
+
+	//The moves of the game packed as described in Move
+	private int[] moves = new int[64];
+	private int moveCount;
 	private String outcome = "ERROR";
 
 	public String getOutcome() {
@@ -18,8 +25,43 @@ public class Transcript {
 		this.outcome = outcome;
 	}
 
-	public LinkedList<String> getMoves() {
-		return moves;
+	/**
+	 * Add a move to the end of the game
+	 *
+	 * @param move the move packed as described in {@link Move}
+	 */
+	public void addMove(int move) {
+		if (moveCount == moves.length) moves = Arrays.copyOf(moves, moves.length * 2);
+		moves[moveCount++] = move;
+	}
+
+	/**
+	 * Get a move of the game
+	 *
+	 * @param index the index of the move starting at 0
+	 * @return the move packed as described in {@link Move}
+	 */
+	public int getMove(int index) {
+		if (index < 0 || index >= moveCount) throw new IndexOutOfBoundsException("Move " + index + " is outside of a game of " + moveCount + " moves.");
+		return moves[index];
+	}
+
+	/**
+	 * Get the number of moves in the game
+	 *
+	 * @return the number of moves
+	 */
+	public int getMoveCount() {
+		return moveCount;
+	}
+
+	/**
+	 * Get a copy of every move of the game
+	 *
+	 * @return the moves packed as described in {@link Move}
+	 */
+	public int[] getMoves() {
+		return Arrays.copyOf(moves, moveCount);
 	}
 
 	public Spliterator<double[]> spliterator() {
@@ -28,64 +70,64 @@ public class Transcript {
 
 	private class TranscriptSpliterator implements Spliterator<double[]> {
 		private Queue<double[]> outputQueue;
-		private Iterator<String> moveIterator;
+		private int nextMove;
 		private int sizeLeft;
 		private ChessBoard board;
 		private boolean whiteMoving;
 
 		public TranscriptSpliterator() {
 			outputQueue = new LinkedList<>();
-			moveIterator = moves.iterator();
 			board = new ChessBoard();
 			whiteMoving = true;
-			sizeLeft = moves.size();
+			sizeLeft = moveCount;
 		}
 
 		@Override
 		public boolean tryAdvance(Consumer<? super double[]> action) {
-			if (moveIterator.hasNext()) {
+			if (nextMove < moveCount) {
 				if (outputQueue.isEmpty()) {
-					String move = moveIterator.next();
-					String[] parts = move.split(";");
+					int move = moves[nextMove++];
+
+					int from = Move.getFrom(move);
+					int to = Move.getTo(move);
 
-					int fromRow = Integer.parseInt(parts[0].charAt(0) + "");
-					int fromCol = Integer.parseInt(parts[0].charAt(1) + "");
+					int fromRow = from >> 3;
+					int fromCol = from & 7;
 
-					int toRow = Integer.parseInt(parts[1].charAt(0) + "");
-					int toCol = Integer.parseInt(parts[1].charAt(1) + "");
+					int toRow = to >> 3;
+					int toCol = to & 7;
 
-					int piece = Integer.parseInt(parts[2]);
-					int pieceTypeMove = Math.abs(piece);
+					int pieceTypeMove = Move.getNewType(move);
 					
 					addData(board, fromRow, fromCol, toRow, toCol, pieceTypeMove);/*
 					if (!(pieceTypeMove == 6 && Math.abs(board.getPieceAt(toRow, toCol)) == 3)) {
 						if (fromRow < 7 && toRow < 7) {
 							ChessBoard b = new ChessBoard(board);
 							b.transpose(1, 0);
-							if (b.isLegalMove((fromRow+1) + "" + fromCol, (toRow+1) + "" + toCol))
+							if (b.isLegalMove(Move.create(from+8, to+8, board.getPieceAt(fromRow, fromCol), Move.getPromotion(move), 0)))
 								addData(b, fromRow+1, fromCol, toRow+1, toCol, pieceTypeMove);
 						}
 						if (fromRow > 0 && toRow > 0) {
 							ChessBoard b = new ChessBoard(board);
 							b.transpose(-1, 0);
-							if (b.isLegalMove((fromRow-1) + "" + fromCol, (toRow-1) + "" + toCol))
+							if (b.isLegalMove(Move.create(from-8, to-8, board.getPieceAt(fromRow, fromCol), Move.getPromotion(move), 0)))
 								addData(b, fromRow-1, fromCol, toRow-1, toCol, pieceTypeMove);
 						}
 						if (fromCol < 7 && toCol < 7){
 							ChessBoard b = new ChessBoard(board);
 							b.transpose(0, 1);
-							if (b.isLegalMove((fromRow) + "" + (fromCol+1), (toRow) + "" + (toCol+1)))
+							if (b.isLegalMove(Move.create(from+1, to+1, board.getPieceAt(fromRow, fromCol), Move.getPromotion(move), 0)))
 								addData(b, fromRow, fromCol+1, toRow, toCol+1, pieceTypeMove);
 						}
 						if (fromCol > 0 && toCol > 0){
 							ChessBoard b = new ChessBoard(board);
 							b.transpose(0, -1);
-							if (b.isLegalMove((fromRow) + "" + (fromCol-1), (toRow) + "" + (toCol-1)))
+							if (b.isLegalMove(Move.create(from-1, to-1, board.getPieceAt(fromRow, fromCol), Move.getPromotion(move), 0)))
 								addData(b, fromRow, fromCol-1, toRow, toCol-1, pieceTypeMove);
 						}
 					}*/
 
-					board.applyConvertedMove(move);
+					board.makeMove(move);
 
 					whiteMoving = !whiteMoving;
 				}
@@ -96,7 +138,7 @@ public class Transcript {
 		}
 		
 		private void addData(ChessBoard board, int fr, int fc, int tr, int tc, int mt) {
-			double[] output = new double[518]; // 6*8*8 input + 2*8*8+6 output
+			double[] output = new double[SAMPLE_LENGTH]; // 6*8*8 input + 2*8*8+6 output
 
 			System.arraycopy(board.generateNeuralInputs(whiteMoving), 0, output, 0, 384);
 
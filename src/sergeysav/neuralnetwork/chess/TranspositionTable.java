@@ -0,0 +1,242 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size hash table of chess positions that can be shared by many threads without locks
+ *
+ * Each slot holds two independent records for the positions whose keys map to it:
+ * a search result (best move, score, depth and bound) and the outputs of the network for a position.
+ * Every record is stored with its position key xored into a check word. A record torn by two threads writing it at once
+ * no longer matches any key, so it is read as a miss instead of as wrong data.
+ *
+ * A search result is only replaced by a shallower result for another position once it is left over from an earlier search.
+ * Network outputs do not depend on the search, so the newest outputs always replace the old ones.
+ *
+ * Slot layout in longs:
+ * 0 = key ^ result, 1 = result, 2 = key ^ the xor of the outputs, 3... = the outputs as two floats per long
+ *
+ * Result bits:
+ * 0-20 = best move
+ * 21-36 = score
+ * 37-44 = depth
+ * 45-46 = bound
+ * 47-54 = search generation
+ *
+ * @author sergeys
+ *
+ */
+public class TranspositionTable {
+
+	/**
+	 * The score is exact
+	 */
+	public static final int EXACT = 1;
+
+	/**
+	 * The score is at least the stored score
+	 */
+	public static final int LOWER_BOUND = 2;
+
+	/**
+	 * The score is at most the stored score
+	 */
+	public static final int UPPER_BOUND = 3;
+
+	//The number of longs before the outputs of a slot
+	private static final int HEADER = 3;
+
+	//The slots
+	private final long[] table;
+
+	//The number of longs in each slot
+	private final int stride;
+
+	//The number of slots minus one, which masks a key into a slot index
+	private final int mask;
+
+	//The number of network outputs stored with each position
+	private final int outputs;
+
+	//The search that results are being stored for
+	private int generation;
+
+	/**
+	 * Create a new table
+	 *
+	 * @param megabytes the most memory the table can use
+	 * @param outputs the number of network outputs to store for each position, or 0 to only store search results
+	 */
+	public TranspositionTable(int megabytes, int outputs) {
+		this.outputs = outputs;
+		stride = HEADER + (outputs + 1) / 2;
+		long slots = Long.highestOneBit(Math.max(1, (megabytes * (1L << 20)) / (stride * 8L)));
+		if (slots * stride > Integer.MAX_VALUE - 8) slots = Integer.highestOneBit((Integer.MAX_VALUE - 8) / stride);
+		mask = (int) slots - 1;
+		table = new long[(int) slots * stride];
+	}
+
+	/**
+	 * Look up the search result of a position
+	 *
+	 * @param key the key of the position
+	 * @return the result, which can be read with the static getters, or 0 if the position is not in the table
+	 */
+	public long probe(long key) {
+		int slot = (int) (key & mask) * stride;
+		long check = table[slot];
+		long result = table[slot + 1];
+		return (check ^ result) == key && result != 0 ? result : 0;
+	}
+
+	/**
+	 * Store the search result of a position
+	 *
+	 * @param key the key of the position
+	 * @param move the best move found or {@link Move#NONE}
+	 * @param score the score, from -32768 to 32767
+	 * @param depth the depth searched, from 0 to 255
+	 * @param bound {@link TranspositionTable#EXACT}, {@link TranspositionTable#LOWER_BOUND} or {@link TranspositionTable#UPPER_BOUND}
+	 */
+	public void store(long key, int move, int score, int depth, int bound) {
+		int slot = (int) (key & mask) * stride;
+		long oldResult = table[slot + 1];
+		boolean samePosition = (table[slot] ^ oldResult) == key && oldResult != 0;
+
+		if (samePosition) {
+			//Keep the best move of a result that did not find one
+			if (move == Move.NONE) move = getMove(oldResult);
+		} else if (oldResult != 0 && getGeneration(oldResult) == (generation & 255) && getDepth(oldResult) > depth) {
+			//Replace by depth within a search
+			return;
+		}
+
+		long result = move | ((long) (score & 0xFFFF) << 21) | ((long) depth << 37) | ((long) bound << 45) | ((long) (generation & 255) << 47);
+		table[slot + 1] = result;
+		table[slot] = key ^ result;
+	}
+
+	/**
+	 * Look up the network outputs of a position
+	 *
+	 * @param key the key of the position
+	 * @param output the array to copy the outputs into
+	 * @return true if the outputs were found, otherwise the array may have been partly overwritten
+	 */
+	public boolean probeOutputs(long key, double[] output) {
+		if (outputs == 0) return false;
+		int slot = (int) (key & mask) * stride;
+		long check = table[slot + 2];
+		long sum = 0;
+		for (int i = 0; i<outputs; i += 2) {
+			long word = table[slot + HEADER + i / 2];
+			sum ^= word;
+			output[i] = Float.intBitsToFloat((int) word);
+			if (i + 1 < outputs) output[i + 1] = Float.intBitsToFloat((int) (word >>> 32));
+		}
+		return (check ^ sum) == key;
+	}
+
+	/**
+	 * Store the network outputs of a position
+	 * The outputs are rounded to floats
+	 *
+	 * @param key the key of the position
+	 * @param output the outputs
+	 */
+	public void storeOutputs(long key, double[] output) {
+		if (outputs == 0) return;
+		int slot = (int) (key & mask) * stride;
+		long sum = 0;
+		for (int i = 0; i<outputs; i += 2) {
+			long word = Float.floatToRawIntBits((float) output[i]) & 0xFFFFFFFFL;
+			if (i + 1 < outputs) word |= (long) Float.floatToRawIntBits((float) output[i + 1]) << 32;
+			table[slot + HEADER + i / 2] = word;
+			sum ^= word;
+		}
+		table[slot + 2] = key ^ sum;
+	}
+
+	/**
+	 * Start a new search, after which results from earlier searches can be replaced by shallower ones
+	 */
+	public void newSearch() {
+		generation++;
+	}
+
+	/**
+	 * Remove every position from the table
+	 */
+	public void clear() {
+		Arrays.fill(table, 0);
+		generation = 0;
+	}
+
+	/**
+	 * Get the number of slots
+	 *
+	 * @return the number of positions the table can hold
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Estimate how full the table is from its first thousand slots
+	 *
+	 * @return the number of slots out of every thousand holding a result of the current search
+	 */
+	public int getUsage() {
+		int used = 0;
+		int sampled = Math.min(1000, mask + 1);
+		for (int i = 0; i<sampled; i++) {
+			long result = table[i * stride + 1];
+			if (result != 0 && getGeneration(result) == (generation & 255)) used++;
+		}
+		return used * 1000 / sampled;
+	}
+
+	/**
+	 * Get the best move of a result
+	 *
+	 * @param result the result
+	 * @return the move or {@link Move#NONE}
+	 */
+	public static int getMove(long result) {
+		return (int) (result & 0x1FFFFF);
+	}
+
+	/**
+	 * Get the score of a result
+	 *
+	 * @param result the result
+	 * @return the score
+	 */
+	public static int getScore(long result) {
+		return (short) (result >>> 21);
+	}
+
+	/**
+	 * Get the depth of a result
+	 *
+	 * @param result the result
+	 * @return the depth searched
+	 */
+	public static int getDepth(long result) {
+		return (int) (result >>> 37) & 255;
+	}
+
+	/**
+	 * Get the bound of a result
+	 *
+	 * @param result the result
+	 * @return {@link TranspositionTable#EXACT}, {@link TranspositionTable#LOWER_BOUND} or {@link TranspositionTable#UPPER_BOUND}
+	 */
+	public static int getBound(long result) {
+		return (int) (result >>> 45) & 3;
+	}
+
+	private static int getGeneration(long result) {
+		return (int) (result >>> 47) & 255;
+	}
+}
@@ -0,0 +1,68 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates executors that run each task on its own virtual thread when the runtime has them
+ *
+ * Virtual threads arrived in Java 21, but the project is built for Java 8, so they are found by reflection.
+ * A virtual thread blocked on a socket or a future gives up its carrier thread, so thousands of mostly waiting requests
+ * cost little more than their stacks. On older runtimes a fixed pool of platform threads is used instead.
+ *
+ * @author sergeys
+ *
+ */
+public class VirtualThreads {
+
+	//Executors.newVirtualThreadPerTaskExecutor, or null before Java 21
+	private static final Method NEW_VIRTUAL_EXECUTOR;
+
+	static {
+		Method method;
+		try {
+			method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			method = null;
+		}
+		NEW_VIRTUAL_EXECUTOR = method;
+	}
+
+	/**
+	 * Check if the runtime has virtual threads
+	 *
+	 * @return true if executors are created with virtual threads
+	 */
+	public static boolean isAvailable() {
+		return NEW_VIRTUAL_EXECUTOR != null;
+	}
+
+	/**
+	 * Create an executor that runs every task on a new virtual thread,
+	 * or that runs the tasks on a fixed number of platform threads if the runtime does not have virtual threads
+	 *
+	 * @param fallbackThreads the number of platform threads to use without virtual threads
+	 * @param name the name of the platform threads, which are followed by their number
+	 * @return the executor
+	 */
+	public static ExecutorService newExecutor(int fallbackThreads, String name) {
+		if (NEW_VIRTUAL_EXECUTOR != null) {
+			try {
+				return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				//Fall back to platform threads
+			}
+		}
+
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = task -> {
+			Thread thread = new Thread(task, name + "-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return Executors.newFixedThreadPool(fallbackThreads, factory);
+	}
+}
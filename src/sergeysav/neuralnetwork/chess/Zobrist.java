@@ -0,0 +1,99 @@
+package sergeysav.neuralnetwork.chess;
+
+import java.util.Random;
+
+/**
+ * A class containing the random keys used to hash chess positions
+ *
+ * The key of a position is the xor of the key of every piece on its square, the key of the castling rights,
+ * the key of the en passant column when a pawn can capture onto it and the side key when black is moving.
+ * Each of those parts can be xored in or out as a move changes it, so {@link ChessBoard} keeps its key up to date
+ * without rehashing the whole board.
+ *
+ * The keys come from a fixed seed so that a position has the same key in every run.
+ *
+ * @author sergeys
+ *
+ */
+public class Zobrist {
+
+	//The seed of the keys
+	private static final long SEED = 0x5A0B81575EEDL;
+
+	//Indexed by [white pieces at type - 1 and black pieces at type + 5][square]
+	private static final long[][] PIECES = new long[12][64];
+
+	//The key of each combination of the four castling rights flags
+	private static final long[] CASTLING = new long[16];
+
+	//The key of each en passant column
+	private static final long[] EN_PASSANT = new long[8];
+
+	//The key xored in when black is moving
+	private static final long SIDE;
+
+	static {
+		Random random = new Random(SEED);
+		for (int p = 0; p<12; p++) {
+			for (int sq = 0; sq<64; sq++) {
+				PIECES[p][sq] = random.nextLong();
+			}
+		}
+
+		//Each right has its own key, so losing a right xors out only that key
+		long[] rights = new long[4];
+		for (int i = 0; i<4; i++) {
+			rights[i] = random.nextLong();
+		}
+		for (int flags = 0; flags<16; flags++) {
+			for (int i = 0; i<4; i++) {
+				if ((flags & (1 << i)) != 0) CASTLING[flags] ^= rights[i];
+			}
+		}
+
+		for (int col = 0; col<8; col++) {
+			EN_PASSANT[col] = random.nextLong();
+		}
+		SIDE = random.nextLong();
+	}
+
+	/**
+	 * Get the key of a piece on a square
+	 *
+	 * @param piece the piece, positive for white and negative for black
+	 * @param square the square
+	 * @return the key
+	 */
+	public static long piece(int piece, int square) {
+		return PIECES[piece > 0 ? piece - 1 : 5 - piece][square];
+	}
+
+	/**
+	 * Get the key of a set of castling rights
+	 *
+	 * @param flags the castling rights flags of {@link ChessBoard}
+	 * @return the key
+	 */
+	public static long castling(int flags) {
+		return CASTLING[flags];
+	}
+
+	/**
+	 * Get the key of an en passant column
+	 *
+	 * @param col the column of the en passant square
+	 * @return the key
+	 */
+	public static long enpassant(int col) {
+		return EN_PASSANT[col];
+	}
+
+	/**
+	 * Get the key xored in when black is moving
+	 *
+	 * @return the key
+	 */
+	public static long side() {
+		return SIDE;
+	}
+}